@@ -0,0 +1,576 @@
+package main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import main.training.DataSet;
+import main.training.Match;
+
+/**
+ * InferenceModel that stops as soon as it is confident enough: the input goes
+ * through a sequence of stages, each one producing an output, and the output
+ * of a stage is returned without running the following ones if its confidence
+ * (the margin between the two greatest outputs) reaches the threshold of the
+ * stage. Easy inputs are classified by the first, cheap stages; only the hard
+ * ones pay for the whole computation. The last stage always answers.
+ *
+ * The stages are either:
+ * <ul>
+ * <li>networks of increasing size (small then large), each one computing its
+ * output from the input;</li>
+ * <li>auxiliary heads attached to intermediate layers of a backbone network:
+ * each stage runs the layers of the backbone from the previous exit up to its
+ * own, then its head, a small network that turns the activations of that layer
+ * into an output. The activations are not computed twice: the next stage
+ * continues from them. The last stage is the output layer of the backbone. The
+ * heads can be trained on the activations returned by features.</li>
+ * </ul>
+ *
+ * The thresholds are set with calibrate, on a validation set, so that the
+ * outputs returned by each early stage are as accurate as required; evaluate
+ * reports the accuracy and the computation saved. The weights are copied when
+ * the cascade is built, as in Network.freeze: the cascade is immutable and
+ * thread-safe.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * Cascade cascade = new Cascade.Builder().addStage(small).addStage(large).build().calibrate(validationSet, 0.97f);
+ * System.out.println(cascade.evaluate(testSet));
+ * </pre>
+ */
+public final class Cascade implements InferenceModel {
+
+	/*
+	 * each stage computes its features from the input (if fromInput) or from the
+	 * features of the previous stage with the trunk, then its output from the
+	 * features with the head (if not null).
+	 */
+	private final DenseModel[] trunks;
+	private final DenseModel[] heads;
+	private final boolean[] fromInput;
+	private final float[] thresholds;
+
+	/*
+	 * floating point operations of the trunk and of the head of each stage (two
+	 * for each weight).
+	 */
+	private final long[] trunkFlops;
+	private final long[] headFlops;
+
+	private final ThreadLocal<float[][]> scratch;
+
+	public static class Builder {
+
+		private final Network backbone;
+		private final List<Network> networks = new ArrayList<>();
+		private final List<Integer> exits = new ArrayList<>();
+		private final List<Float> thresholds = new ArrayList<>();
+
+		/**
+		 * Creates the builder of a cascade of networks, added with addStage.
+		 */
+		public Builder() {
+			this.backbone = null;
+		}
+
+		/**
+		 * Creates the builder of a cascade of auxiliary heads attached to the layers
+		 * of the backbone, added with addExit. The output layer of the backbone is
+		 * the last stage.
+		 */
+		public Builder(Network backbone) {
+			this.backbone = backbone;
+		}
+
+		/**
+		 * Adds a network as the next stage, that never stops the cascade until
+		 * calibrated.
+		 */
+		public Builder addStage(Network network) {
+			return addStage(network, Float.POSITIVE_INFINITY);
+		}
+
+		/**
+		 * Adds a network as the next stage, that stops the cascade if the margin
+		 * between its two greatest outputs is at least the threshold.
+		 */
+		public Builder addStage(Network network, float threshold) {
+			if (backbone != null)
+				throw new IllegalStateException("A cascade with a backbone has exits, not stages.");
+			networks.add(network);
+			thresholds.add(threshold);
+			return this;
+		}
+
+		/**
+		 * Adds a head on the activations of the layer of the backbone, that never
+		 * stops the cascade until calibrated.
+		 */
+		public Builder addExit(int layer, Network head) {
+			return addExit(layer, head, Float.POSITIVE_INFINITY);
+		}
+
+		/**
+		 * Adds a head on the activations of the layer of the backbone, that stops the
+		 * cascade if the margin between its two greatest outputs is at least the
+		 * threshold. The exits must be added in the order of their layers.
+		 */
+		public Builder addExit(int layer, Network head, float threshold) {
+			if (backbone == null)
+				throw new IllegalStateException("A cascade of networks has stages, not exits.");
+			int n = backbone.getLayers().length;
+			if (layer < 0 || layer >= n - 1)
+				throw new IllegalArgumentException(String.format("The exit layer must be in [0, %d): %d.", n - 1, layer));
+			if (!exits.isEmpty() && layer <= exits.get(exits.size() - 1))
+				throw new IllegalArgumentException(
+						String.format("The exit layer %d does not follow the previous one.", layer));
+			exits.add(layer);
+			networks.add(head);
+			thresholds.add(threshold);
+			return this;
+		}
+
+		public Cascade build() {
+			if (backbone == null) {
+				if (networks.isEmpty())
+					throw new IllegalStateException("The cascade has no stages.");
+
+				int n = networks.size();
+				Layer[][] trunks = new Layer[n][];
+				for (int s = 0; s < n; s++) {
+					trunks[s] = networks.get(s).getPublishedLayers();
+					check(trunks[s], trunks[0], s);
+				}
+				boolean[] fromInput = new boolean[n];
+				Arrays.fill(fromInput, true);
+				return new Cascade(trunks, new Layer[n][], fromInput, thresholds(n));
+			}
+
+			Layer[] layers = backbone.getPublishedLayers();
+			int n = exits.size() + 1;
+			Layer[][] trunks = new Layer[n][];
+			Layer[][] heads = new Layer[n][];
+			int from = 0;
+			for (int s = 0; s < n - 1; s++) {
+				int to = exits.get(s) + 1;
+				trunks[s] = Arrays.copyOfRange(layers, from, to);
+				heads[s] = networks.get(s).getPublishedLayers();
+				if (heads[s][0].getInputNumber() != layers[to - 1].getNeuronNumber())
+					throw new IllegalArgumentException(String.format("head[%d].n_input[%d] != layer[%d].n_neurons[%d].",
+							s, heads[s][0].getInputNumber(), to - 1, layers[to - 1].getNeuronNumber()));
+				if (heads[s][heads[s].length - 1].getNeuronNumber() != layers[layers.length - 1].getNeuronNumber())
+					throw new IllegalArgumentException(String.format("head[%d].n_output[%d] != backbone.n_output[%d].", s,
+							heads[s][heads[s].length - 1].getNeuronNumber(), layers[layers.length - 1].getNeuronNumber()));
+				from = to;
+			}
+			trunks[n - 1] = Arrays.copyOfRange(layers, from, layers.length);
+
+			boolean[] fromInput = new boolean[n];
+			fromInput[0] = true;
+			return new Cascade(trunks, heads, fromInput, thresholds(n));
+		}
+
+		private float[] thresholds(int n) {
+			float[] values = new float[n];
+			for (int s = 0; s < thresholds.size(); s++)
+				values[s] = thresholds.get(s);
+			values[n - 1] = Float.NEGATIVE_INFINITY;
+			return values;
+		}
+
+		private static void check(Layer[] stage, Layer[] first, int s) {
+			if (stage[0].getInputNumber() != first[0].getInputNumber())
+				throw new IllegalArgumentException(String.format("stage[%d].n_input[%d] != stage[0].n_input[%d].", s,
+						stage[0].getInputNumber(), first[0].getInputNumber()));
+			if (stage[stage.length - 1].getNeuronNumber() != first[first.length - 1].getNeuronNumber())
+				throw new IllegalArgumentException(String.format("stage[%d].n_output[%d] != stage[0].n_output[%d].", s,
+						stage[stage.length - 1].getNeuronNumber(), first[first.length - 1].getNeuronNumber()));
+		}
+	}
+
+	private Cascade(Layer[][] trunks, Layer[][] heads, boolean[] fromInput, float[] thresholds) {
+		int n = trunks.length;
+		this.trunks = new DenseModel[n];
+		this.heads = new DenseModel[n];
+		this.fromInput = fromInput;
+		this.thresholds = thresholds;
+		this.trunkFlops = new long[n];
+		this.headFlops = new long[n];
+
+		int[] sizes = new int[n];
+		for (int s = 0; s < n; s++) {
+			this.trunks[s] = new DenseModel(trunks[s]);
+			sizes[s] = this.trunks[s].getOutputNumber();
+			trunkFlops[s] = flops(trunks[s]);
+			if (heads[s] != null) {
+				this.heads[s] = new DenseModel(heads[s]);
+				headFlops[s] = flops(heads[s]);
+			}
+		}
+
+		scratch = ThreadLocal.withInitial(() -> {
+			float[][] buffers = new float[n][];
+			for (int s = 0; s < n; s++)
+				buffers[s] = new float[sizes[s]];
+			return buffers;
+		});
+	}
+
+	/*
+	 * Copy of the cascade with other thresholds.
+	 */
+	private Cascade(Cascade cascade, float[] thresholds) {
+		trunks = cascade.trunks;
+		heads = cascade.heads;
+		fromInput = cascade.fromInput;
+		trunkFlops = cascade.trunkFlops;
+		headFlops = cascade.headFlops;
+		scratch = cascade.scratch;
+		this.thresholds = thresholds;
+	}
+
+	private static long flops(Layer[] layers) {
+		long flops = 0;
+		for (Layer layer : layers)
+			flops += 2L * layer.getInputNumber() * layer.getNeuronNumber();
+		return flops;
+	}
+
+	@Override
+	public int getInputNumber() {
+		return trunks[0].getInputNumber();
+	}
+
+	@Override
+	public int getOutputNumber() {
+		return trunks[trunks.length - 1].getOutputNumber();
+	}
+
+	public int getStageNumber() {
+		return trunks.length;
+	}
+
+	/**
+	 * Returns the threshold of each stage (the last one always answers).
+	 */
+	public float[] getThresholds() {
+		return thresholds.clone();
+	}
+
+	@Override
+	public void predict(float[] input, float[] output) {
+		predictStage(input, output);
+	}
+
+	/**
+	 * Computes the output for the input vector, writing it in the output vector,
+	 * and returns the index of the stage that produced it.
+	 */
+	public int predictStage(float[] input, float[] output) {
+		float[][] buffers = scratch.get();
+		for (int s = 0;; s++) {
+			float[] features = heads[s] == null ? output : buffers[s];
+			trunks[s].predict(fromInput[s] ? input : buffers[s - 1], features);
+			if (heads[s] != null)
+				heads[s].predict(features, output);
+			if (s == trunks.length - 1 || margin(output) >= thresholds[s])
+				return s;
+		}
+	}
+
+	/*
+	 * Difference between the two greatest outputs, the output itself if there is
+	 * only one.
+	 */
+	static float margin(float[] output) {
+		float first = Float.NEGATIVE_INFINITY, second = Float.NEGATIVE_INFINITY;
+		for (float o : output) {
+			if (o > first) {
+				second = first;
+				first = o;
+			} else if (o > second) {
+				second = o;
+			}
+		}
+		return output.length == 1 ? first : first - second;
+	}
+
+	private static int argmax(float[] output) {
+		int index = 0;
+		for (int i = 1; i < output.length; i++)
+			if (output[i] > output[index])
+				index = i;
+		return index;
+	}
+
+	// calibration
+
+	/**
+	 * Returns a copy of the cascade with the thresholds calibrated on the set: the
+	 * threshold of each stage is the lowest one such that the inputs that stop at
+	 * that stage (among the ones not stopped by the previous stages) are
+	 * classified with at least the target accuracy. A stage that can't reach it
+	 * never stops the cascade. The accuracy of the whole cascade is at least the
+	 * target one if the last stage reaches it on the inputs left to it.
+	 *
+	 * @param set            the labelled validation set
+	 * @param targetAccuracy the accuracy required to the early stages, in [0, 1]
+	 * @return the calibrated cascade
+	 */
+	public Cascade calibrate(DataSet set, float targetAccuracy) {
+		if (!(targetAccuracy >= 0 && targetAccuracy <= 1))
+			throw new IllegalArgumentException("The target accuracy must be in [0, 1].");
+
+		List<Match> left = new ArrayList<>();
+		for (Match match : set)
+			if (match.hasLabel())
+				left.add(match);
+		if (left.isEmpty())
+			throw new IllegalArgumentException("The set has no labels.");
+
+		int n = trunks.length;
+		float[] thresholds = new float[n];
+		thresholds[n - 1] = Float.NEGATIVE_INFINITY;
+		float[][] outputs = new float[n][getOutputNumber()];
+
+		for (int s = 0; s < n - 1; s++) {
+			int m = left.size();
+			float[] margins = new float[m];
+			boolean[] correct = new boolean[m];
+			Integer[] order = new Integer[m];
+			for (int i = 0; i < m; i++) {
+				Match match = left.get(i);
+				outputs(match.getInput(), outputs, s);
+				margins[i] = margin(outputs[s]);
+				correct[i] = argmax(outputs[s]) == match.getLabel();
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Float.compare(margins[b], margins[a]));
+
+			/*
+			 * the longest prefix (by decreasing margin) that reaches the accuracy, not
+			 * split between equal margins.
+			 */
+			int right = 0, stop = 0;
+			for (int k = 0; k < m; k++) {
+				if (correct[order[k]])
+					right++;
+				boolean boundary = k == m - 1 || margins[order[k + 1]] < margins[order[k]];
+				if (boundary && right >= targetAccuracy * (k + 1))
+					stop = k + 1;
+			}
+
+			thresholds[s] = stop == 0 ? Float.POSITIVE_INFINITY : margins[order[stop - 1]];
+			List<Match> next = new ArrayList<>();
+			for (int k = stop; k < m; k++)
+				next.add(left.get(order[k]));
+			left = next;
+		}
+		return new Cascade(this, thresholds);
+	}
+
+	/*
+	 * Outputs of all the stages up to the given one (without stopping).
+	 */
+	private void outputs(float[] input, float[][] outputs, int last) {
+		float[][] buffers = scratch.get();
+		for (int s = 0; s <= last; s++) {
+			float[] features = heads[s] == null ? outputs[s] : buffers[s];
+			trunks[s].predict(fromInput[s] ? input : buffers[s - 1], features);
+			if (heads[s] != null)
+				heads[s].predict(features, outputs[s]);
+		}
+	}
+
+	/**
+	 * Runs the cascade on the set and reports where it stops and how much
+	 * computation it saves.
+	 *
+	 * @param set the set, with labels to compute the accuracy
+	 * @return the report
+	 */
+	public Report evaluate(DataSet set) {
+		int n = trunks.length;
+		long[] exits = new long[n];
+		long samples = 0, labelled = 0, correct = 0, fullCorrect = 0;
+		double totalFlops = 0;
+		float[] output = new float[getOutputNumber()];
+		float[][] outputs = new float[n][getOutputNumber()];
+
+		// operations of a sample that stops at each stage
+		long[] cumulative = new long[n];
+		for (int s = 0; s < n; s++)
+			cumulative[s] = (s == 0 ? 0 : cumulative[s - 1]) + trunkFlops[s] + headFlops[s];
+
+		for (Match match : set) {
+			int s = predictStage(match.getInput(), output);
+			exits[s]++;
+			totalFlops += cumulative[s];
+			samples++;
+			if (match.hasLabel()) {
+				labelled++;
+				if (argmax(output) == match.getLabel())
+					correct++;
+				outputs(match.getInput(), outputs, n - 1);
+				if (argmax(outputs[n - 1]) == match.getLabel())
+					fullCorrect++;
+			}
+		}
+
+		float[] fractions = new float[n];
+		for (int s = 0; s < n; s++)
+			fractions[s] = samples == 0 ? Float.NaN : (float) exits[s] / samples;
+		return new Report(fractions, labelled == 0 ? Float.NaN : (float) correct / labelled,
+				labelled == 0 ? Float.NaN : (float) fullCorrect / labelled,
+				samples == 0 ? Float.NaN : (float) (totalFlops / samples), baselineFlops());
+	}
+
+	/*
+	 * Operations of the model the cascade replaces: the last network, or the whole
+	 * backbone.
+	 */
+	private long baselineFlops() {
+		if (fromInput[trunks.length - 1])
+			return trunkFlops[trunks.length - 1];
+		long total = 0;
+		for (long flops : trunkFlops)
+			total += flops;
+		return total;
+	}
+
+	// auxiliary heads
+
+	/**
+	 * Returns a dataset with the activations of the layer of the network for each
+	 * match of the set, with the same labels, to train a head on them with
+	 * Network.train.
+	 *
+	 * @param network the backbone network
+	 * @param layer   the index of the layer
+	 * @param set     the set
+	 * @return the activations of the layer
+	 */
+	public static DataSet features(Network network, int layer, DataSet set) {
+		Layer[] layers = network.getPublishedLayers();
+		if (layer < 0 || layer >= layers.length)
+			throw new IllegalArgumentException(String.format("Invalid layer: %d.", layer));
+
+		DenseModel model = new DenseModel(Arrays.copyOfRange(layers, 0, layer + 1));
+		FeatureSet features = new FeatureSet(set);
+		for (Match match : set)
+			features.addMatch(new Match(model.predict(match.getInput()), match.getLabel()));
+		return features;
+	}
+
+	/*
+	 * Dataset of activations, that delegates the creation of new datasets to the
+	 * one it has been computed from.
+	 */
+	private static class FeatureSet extends DataSet {
+
+		private final DataSet source;
+
+		FeatureSet(DataSet source) {
+			this.source = source;
+		}
+
+		@Override
+		public DataSet createSet(File dataFile, File labelFile) {
+			return source.createSet(dataFile, labelFile);
+		}
+
+		@Override
+		public DataSet createSet(File dataFile) {
+			return source.createSet(dataFile);
+		}
+
+		@Override
+		public DataSet createSet(File dataFile, File labelFile, int matches) {
+			return source.createSet(dataFile, labelFile, matches);
+		}
+
+		@Override
+		public DataSet createSet(File dataFile, int matches) {
+			return source.createSet(dataFile, matches);
+		}
+	}
+
+	/**
+	 * Behaviour of a cascade on a set.
+	 */
+	public static class Report {
+
+		private final float[] exits;
+		private final float accuracy;
+		private final float fullAccuracy;
+		private final float meanFlops;
+		private final long baselineFlops;
+
+		Report(float[] exits, float accuracy, float fullAccuracy, float meanFlops, long baselineFlops) {
+			this.exits = exits;
+			this.accuracy = accuracy;
+			this.fullAccuracy = fullAccuracy;
+			this.meanFlops = meanFlops;
+			this.baselineFlops = baselineFlops;
+		}
+
+		/**
+		 * Returns the fraction of the samples that stopped at each stage.
+		 */
+		public float[] getExits() {
+			return exits.clone();
+		}
+
+		/**
+		 * Returns the fraction of the labelled samples classified correctly by the
+		 * cascade.
+		 */
+		public float getAccuracy() {
+			return accuracy;
+		}
+
+		/**
+		 * Returns the fraction of the labelled samples classified correctly by the
+		 * last stage, without early exits.
+		 */
+		public float getFullAccuracy() {
+			return fullAccuracy;
+		}
+
+		/**
+		 * Returns the mean floating point operations of a sample.
+		 */
+		public float getMeanFlops() {
+			return meanFlops;
+		}
+
+		/**
+		 * Returns the floating point operations of a sample without the cascade: the
+		 * ones of the last network, or of the whole backbone.
+		 */
+		public long getBaselineFlops() {
+			return baselineFlops;
+		}
+
+		/**
+		 * Returns the fraction of the operations saved with respect to the baseline
+		 * (negative if the cascade takes more).
+		 */
+		public float getSaved() {
+			return 1 - meanFlops / baselineFlops;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int s = 0; s < exits.length; s++)
+				sb.append(String.format("Stage %d: %f%%\n", s, exits[s] * 100));
+			sb.append(String.format("Accuracy: %f%%\nFull accuracy: %f%%\nMean FLOPs: %.0f\nBaseline FLOPs: %d\nSaved: %f%%",
+					accuracy * 100, fullAccuracy * 100, meanFlops, baselineFlops, getSaved() * 100));
+			return sb.toString();
+		}
+	}
+}
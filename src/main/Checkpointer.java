@@ -0,0 +1,423 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes periodic checkpoints of a network while it is being trained. A
+ * checkpoint is taken every N batches, every N epochs or every T seconds (the
+ * first condition met triggers it); the parameters of all the layers are copied
+ * between two updates, so the checkpoint is always consistent, and the copy is
+ * written in the binary .net format by a background thread, so the training
+ * does not wait for the disk.
+ *
+ * Each checkpoint is written to a temporary file, forced on the disk and then
+ * atomically renamed, so a crash never leaves a partially written checkpoint.
+ * Only the last K checkpoints are kept. If the previous checkpoint is still
+ * being written when a new one is due, the new one is skipped; if the last one
+ * due during the training has been skipped, it is taken at the end of the
+ * training, once the previous one has been written, so that the final state of
+ * the network is never lost.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * Checkpointer checkpointer = new Checkpointer.Builder(new File("checkpoints"), "mnist").everyBatches(500)
+ * 		.everySeconds(600).keep(3).build();
+ * network.setCheckpointer(checkpointer);
+ * network.train(set, batchSize, epochs);
+ * Network last = Network.restoreNetwork(checkpointer.latest());
+ * </pre>
+ *
+ * Checkpoints are named &lt;name&gt;-&lt;sequence number&gt;.net; the sequence
+ * continues from the checkpoints already in the directory. A resumable
+ * checkpointer writes a TrainingState (&lt;name&gt;-&lt;sequence
+ * number&gt;.state) instead, with everything needed to resume the training
+ * exactly where it stopped:
+ *
+ * <pre>
+ * network.train(set, TrainingState.load(checkpointer.latest()));
+ * </pre>
+ *
+ * To save disk space, a checkpointer can write only one full checkpoint every
+ * N and, in between, deltas (&lt;name&gt;-&lt;sequence number&gt;.delta) that
+ * store the compressed difference from the previous checkpoint. When the
+ * weights change slowly a delta is a fraction of the size of a full
+ * checkpoint. Any checkpoint, full or delta, is restored with:
+ *
+ * <pre>
+ * Network network = Checkpointer.restore(checkpointer.latest());
+ * </pre>
+ */
+public class Checkpointer implements AutoCloseable {
+
+	private final File directory;
+	private final String name;
+	private final Pattern pattern;
+
+	private final int everyBatches;
+	private final int everyEpochs;
+	private final long everyNanos;
+	private final int keep;
+	private final boolean resumable;
+	private final int fullEvery;
+
+	private final ExecutorService writer;
+	private Future<?> pending;
+
+	private int sequence;
+	private int batches = 0;
+	private int epochs = 0;
+	private long last = System.nanoTime();
+	private int skipped = 0;
+
+	// whether the last checkpoint due has been skipped
+	private boolean behind = false;
+
+	/*
+	 * copy of the network, reused by every checkpoint: the next copy is only taken
+	 * when the previous one has been written.
+	 */
+	private TrainingState snapshot = new TrainingState();
+
+	/*
+	 * copy of the last checkpoint written, the next delta is computed from it. It
+	 * is null if the next checkpoint must be a full one.
+	 */
+	private TrainingState previous;
+	private String previousName;
+	private int deltas = 0;
+
+	private Checkpointer(Builder builder) {
+		this.directory = builder.directory;
+		this.name = builder.name;
+		this.resumable = builder.resumable;
+		this.fullEvery = builder.fullEvery;
+		this.pattern = Pattern.compile(Pattern.quote(name) + "-(\\d+)\\."
+				+ (fullEvery > 1 ? "(" + Network.ext + "|" + DeltaCodec.ext + ")" : extension()));
+		this.everyBatches = builder.everyBatches;
+		this.everyEpochs = builder.everyBatches == 0 && builder.everySeconds == 0 && builder.everyEpochs == 0 ? 1
+				: builder.everyEpochs;
+		this.everyNanos = TimeUnit.SECONDS.toNanos(builder.everySeconds);
+		this.keep = builder.keep;
+
+		// leftovers of a crash
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (file.getName().startsWith(name + "-") && file.getName().endsWith(".tmp"))
+					file.delete();
+
+		List<File> checkpoints = getCheckpoints();
+		sequence = checkpoints.isEmpty() ? 0 : sequenceOf(checkpoints.get(checkpoints.size() - 1)) + 1;
+
+		writer = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/*
+	 * Builder pattern to configure the checkpointer. If no condition is set, a
+	 * checkpoint is taken at the end of each epoch.
+	 */
+	public static class Builder {
+
+		private File directory;
+		private String name;
+		private int everyBatches = 0;
+		private int everyEpochs = 0;
+		private long everySeconds = 0;
+		private int keep = 3;
+		private boolean resumable = false;
+		private int fullEvery = 1;
+
+		/**
+		 * @param directory the directory of the checkpoints; it is created if it does
+		 *                  not exist
+		 * @param name      the prefix of the checkpoint file names
+		 */
+		public Builder(File directory, String name) {
+			this.directory = directory;
+			this.name = name;
+		}
+
+		/**
+		 * Takes a checkpoint every n updates of the network.
+		 */
+		public Builder everyBatches(int n) {
+			if (n < 1)
+				throw new IllegalArgumentException("The number of batches must be more than or equal to one.");
+			this.everyBatches = n;
+			return this;
+		}
+
+		/**
+		 * Takes a checkpoint every n epochs, at the end of the epoch.
+		 */
+		public Builder everyEpochs(int n) {
+			if (n < 1)
+				throw new IllegalArgumentException("The number of epochs must be more than or equal to one.");
+			this.everyEpochs = n;
+			return this;
+		}
+
+		/**
+		 * Takes a checkpoint, at the first update, when at least the given number of
+		 * seconds has elapsed from the previous one.
+		 */
+		public Builder everySeconds(long seconds) {
+			if (seconds < 1)
+				throw new IllegalArgumentException("The number of seconds must be more than or equal to one.");
+			this.everySeconds = seconds;
+			return this;
+		}
+
+		/**
+		 * Sets how many checkpoints are kept; the older ones are deleted. The default
+		 * is 3.
+		 */
+		public Builder keep(int k) {
+			if (k < 1)
+				throw new IllegalArgumentException("The number of checkpoints to keep must be more than or equal to one.");
+			this.keep = k;
+			return this;
+		}
+
+		/**
+		 * Writes TrainingState files, from which the training can be resumed, instead
+		 * of .net files. They also contain the deltas accumulated since the last
+		 * update and the order of the dataset.
+		 */
+		public Builder resumable() {
+			this.resumable = true;
+			return this;
+		}
+
+		/**
+		 * Writes a full checkpoint every n and, in between, deltas from the previous
+		 * checkpoint. A full checkpoint is kept as long as any of the last K
+		 * checkpoints depends on it. Deltas are only available for .net checkpoints,
+		 * not for resumable ones.
+		 */
+		public Builder delta(int fullEvery) {
+			if (fullEvery < 1)
+				throw new IllegalArgumentException("fullEvery must be more than or equal to one.");
+			this.fullEvery = fullEvery;
+			return this;
+		}
+
+		public Checkpointer build() {
+			if (resumable && fullEvery > 1)
+				throw new IllegalArgumentException("Resumable checkpoints can't be written as deltas.");
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IllegalArgumentException(
+						String.format("Unable to create the directory <%s>.", directory.getPath()));
+			return new Checkpointer(this);
+		}
+	}
+
+	// getters
+
+	/**
+	 * Returns the checkpoints in the directory, from the oldest to the newest.
+	 */
+	public List<File> getCheckpoints() {
+		List<File> checkpoints = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (pattern.matcher(file.getName()).matches())
+					checkpoints.add(file);
+		checkpoints.sort((a, b) -> Integer.compare(sequenceOf(a), sequenceOf(b)));
+		return checkpoints;
+	}
+
+	/**
+	 * Returns the newest checkpoint, or null if there are none.
+	 */
+	public File latest() {
+		List<File> checkpoints = getCheckpoints();
+		return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+	}
+
+	/**
+	 * Returns how many checkpoints have been skipped because the previous one was
+	 * still being written.
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	private String extension() {
+		return resumable ? TrainingState.ext : Network.ext;
+	}
+
+	private int sequenceOf(File file) {
+		Matcher matcher = pattern.matcher(file.getName());
+		return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+	}
+
+	// object
+
+	/*
+	 * Invoked by the network after each update.
+	 */
+	void batch(Network network) {
+		batches++;
+		if ((everyBatches > 0 && batches % everyBatches == 0)
+				|| (everyNanos > 0 && System.nanoTime() - last >= everyNanos))
+			checkpoint(network);
+	}
+
+	/*
+	 * Invoked by the network at the end of each epoch.
+	 */
+	void epoch(Network network) {
+		epochs++;
+		if (everyEpochs > 0 && epochs % everyEpochs == 0)
+			checkpoint(network);
+	}
+
+	/*
+	 * Invoked by the network at the end of the last epoch: takes the last
+	 * checkpoint due if it has been skipped, then waits until it is written.
+	 */
+	void end(Network network) {
+		if (behind) {
+			flush();
+			checkpoint(network);
+		}
+		flush();
+	}
+
+	/**
+	 * Takes a checkpoint now. It must be invoked from the thread that trains the
+	 * network, or when the network is not being trained. The parameters are
+	 * copied before returning; the file is written in background.
+	 *
+	 * @return false if the checkpoint has been skipped because the previous one is
+	 *         still being written
+	 */
+	public boolean checkpoint(Network network) {
+
+		last = System.nanoTime();
+
+		if (pending != null && !pending.isDone()) {
+			skipped++;
+			behind = true;
+			return false;
+		}
+		behind = false;
+
+		// the copy, on the training thread
+		snapshot.capture(network, resumable);
+
+		boolean delta = fullEvery > 1 && previous != null && deltas < fullEvery - 1 && snapshot.isCompatible(previous);
+		deltas = delta ? deltas + 1 : 0;
+
+		File file = new File(directory,
+				String.format("%s-%06d.%s", name, sequence++, delta ? DeltaCodec.ext : extension()));
+		pending = writer.submit(() -> write(file, delta));
+		return true;
+	}
+
+	/*
+	 * Writes the snapshot to a temporary file, renames it and deletes the oldest
+	 * checkpoints.
+	 */
+	private void write(File file, boolean delta) {
+
+		File tmp = new File(file.getPath() + ".tmp");
+
+		try {
+			if (delta)
+				DeltaCodec.write(snapshot.createLayers(false), previous.createLayers(false), snapshot.getCostFunction(),
+						previousName, tmp, true);
+			else if (resumable)
+				snapshot.write(tmp, true);
+			else
+				NetworkCodec.write(snapshot.createLayers(false), snapshot.getCostFunction(), tmp, true);
+
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			if (fullEvery > 1) {
+				// the next delta is computed from this checkpoint
+				TrainingState tmpState = previous;
+				previous = snapshot;
+				previousName = file.getName();
+				snapshot = tmpState != null ? tmpState : new TrainingState();
+			}
+
+			/*
+			 * the oldest checkpoint to keep may be a delta: the chain it depends on must
+			 * be kept up to its full checkpoint.
+			 */
+			List<File> checkpoints = getCheckpoints();
+			int first = Math.max(0, checkpoints.size() - keep);
+			while (first > 0 && checkpoints.get(first).getName().endsWith('.' + DeltaCodec.ext))
+				first--;
+			for (int i = 0; i < first; i++)
+				Files.deleteIfExists(checkpoints.get(i).toPath());
+
+		} catch (IOException e) {
+			tmp.delete();
+			previous = null; // the next one can't be a delta of a missing file
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Restores the network from a checkpoint: a .net file, a delta (replaying the
+	 * chain of deltas from its full checkpoint) or a TrainingState.
+	 */
+	public static Network restore(File checkpoint) throws IOException {
+		String name = checkpoint.getName();
+		if (name.endsWith('.' + DeltaCodec.ext))
+			return DeltaCodec.read(checkpoint);
+		if (name.endsWith('.' + TrainingState.ext))
+			return TrainingState.load(checkpoint).getNetwork();
+		return Network.restoreNetwork(checkpoint);
+	}
+
+	/**
+	 * Waits until the pending checkpoint, if any, has been written.
+	 */
+	public void flush() {
+		if (pending == null)
+			return;
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		}
+	}
+
+	/**
+	 * Waits for the pending checkpoint and stops the background thread.
+	 */
+	@Override
+	public void close() {
+		flush();
+		writer.shutdown();
+	}
+}
@@ -0,0 +1,294 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import main.math.ActivationFunction;
+import main.math.CostFunction;
+import main.math.Initializer;
+
+/**
+ * Format of the delta checkpoints. A delta stores the parameters of a network
+ * as the difference from the checkpoint that precedes it (its parent), which is
+ * either a full .net file or another delta:
+ *
+ * <pre>
+ * magic | version | parent file name | cost function | n layers
+ * for each layer: n input | n neurons | learning rate | activation | initializer
+ * deflated blocks: for each layer, weights (row by row) and biases
+ * </pre>
+ *
+ * Each float is stored as the XOR of its bits with the bits of the same
+ * parameter in the parent. When the weights change slowly the sign, the
+ * exponent and the high bits of the mantissa don't change, so most of the
+ * resulting bytes are zero. The values are grouped in blocks and the bytes of
+ * each block are reordered by significance (all the most significant bytes
+ * first, and so on) before being deflated, so that the zero bytes are
+ * contiguous.
+ *
+ * A delta is restored by reading the full checkpoint at the start of the chain
+ * and applying all the deltas that follow, in order. The parent of a delta must
+ * be in the same directory.
+ */
+final class DeltaCodec {
+
+	static final String ext = "delta";
+
+	static final int MAGIC = 0x4C444E4E; // NNDL
+	static final short VERSION = 1;
+
+	/*
+	 * number of values reordered together.
+	 */
+	private static final int BLOCK = 1 << 14;
+
+	private DeltaCodec() {
+	}
+
+	/*
+	 * Writes the delta between the current and the previous layers, which must
+	 * have the same structure. The parent is the name of the file the previous
+	 * layers have been written to.
+	 */
+	static void write(Layer[] current, Layer[] previous, CostFunction costFunction, String parent, File file,
+			boolean force) throws IOException {
+
+		if (current.length != previous.length)
+			throw new IllegalArgumentException(
+					String.format("current.length[%d] != previous.length[%d].", current.length, previous.length));
+
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+
+			DataOutputStream header = new DataOutputStream(new BufferedOutputStream(fos));
+			header.writeInt(MAGIC);
+			header.writeShort(VERSION);
+			header.writeUTF(parent);
+			header.writeUTF(costFunction.name());
+			header.writeInt(current.length);
+			for (Layer layer : current) {
+				header.writeInt(layer.getInputNumber());
+				header.writeInt(layer.getNeuronNumber());
+				header.writeFloat(layer.getLearningRate());
+				header.writeUTF(layer.getActivationFunction().name());
+				header.writeUTF(layer.getInitializer().name());
+			}
+			header.flush();
+
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			DeflaterOutputStream out = new DeflaterOutputStream(fos, deflater, 1 << 16);
+			Blocks blocks = new Blocks();
+
+			for (int l = 0; l < current.length; l++) {
+				Layer cur = current[l];
+				Layer prev = previous[l];
+				if (cur.getInputNumber() != prev.getInputNumber() || cur.getNeuronNumber() != prev.getNeuronNumber())
+					throw new IllegalArgumentException(String.format("Layer[%d] has a different structure.", l));
+
+				float[][] cw = cur.getWeights();
+				float[][] pw = prev.getWeights();
+				for (int i = 0; i < cw.length; i++)
+					blocks.write(out, cw[i], pw[i]);
+				blocks.write(out, cur.getBiases(), prev.getBiases());
+			}
+			blocks.flush(out);
+
+			out.finish();
+			deflater.end();
+
+			if (force)
+				fos.getChannel().force(true);
+		}
+	}
+
+	/*
+	 * Reorders the XOR of the values in blocks of BLOCK values, across the rows.
+	 */
+	private static class Blocks {
+
+		private final int[] values = new int[BLOCK];
+		private final byte[] bytes = new byte[BLOCK * Float.BYTES];
+		private int size = 0;
+
+		void write(DeflaterOutputStream out, float[] current, float[] previous) throws IOException {
+			for (int i = 0; i < current.length; i++) {
+				values[size++] = Float.floatToRawIntBits(current[i]) ^ Float.floatToRawIntBits(previous[i]);
+				if (size == BLOCK)
+					flush(out);
+			}
+		}
+
+		void flush(DeflaterOutputStream out) throws IOException {
+			for (int i = 0; i < size; i++) {
+				int v = values[i];
+				bytes[i] = (byte) (v >>> 24);
+				bytes[size + i] = (byte) (v >>> 16);
+				bytes[2 * size + i] = (byte) (v >>> 8);
+				bytes[3 * size + i] = (byte) v;
+			}
+			out.write(bytes, 0, size * Float.BYTES);
+			size = 0;
+		}
+	}
+
+	/**
+	 * Returns true if the file starts with the magic number of this format.
+	 */
+	static boolean accept(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Returns the name of the parent of the delta.
+	 */
+	static String readParent(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return readHeader(in, file.getName());
+		}
+	}
+
+	private static String readHeader(DataInputStream in, String name) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException(String.format("Unknown file format for: %s.", name));
+		short version = in.readShort();
+		if (version != VERSION)
+			throw new IOException(String.format("Unsupported version %d for: %s.", version, name));
+		return in.readUTF();
+	}
+
+	/*
+	 * Restores the network replaying the chain of deltas that ends with the given
+	 * file.
+	 */
+	static Network read(File file) throws IOException {
+
+		// from the delta back to the full checkpoint
+		Deque<File> chain = new ArrayDeque<>();
+		File base = file;
+		while (accept(base)) {
+			chain.push(base);
+			base = new File(base.getParentFile(), readParent(base));
+			if (chain.size() > 1_000_000)
+				throw new IOException(String.format("The chain of %s has a cycle.", file.getName()));
+		}
+
+		Network network = NetworkCodec.read(base);
+		Layer[] layers = network.getLayers();
+		CostFunction costFunction = network.getCostFunction();
+
+		while (!chain.isEmpty()) {
+			File delta = chain.pop();
+			String name = delta.getName();
+
+			try (InputStream fis = new BufferedInputStream(new FileInputStream(delta), 1 << 16)) {
+
+				DataInputStream in = new DataInputStream(fis);
+				readHeader(in, name);
+
+				Layer[] next = new Layer[layers.length];
+				try {
+					costFunction = CostFunction.valueOf(in.readUTF());
+					if (in.readInt() != layers.length)
+						throw new IOException(String.format("%s does not match its parent.", name));
+
+					for (int l = 0; l < layers.length; l++) {
+						int n_input = in.readInt();
+						int n_neurons = in.readInt();
+						float learningRate = in.readFloat();
+						ActivationFunction activationFunction = ActivationFunction.valueOf(in.readUTF());
+						Initializer initializer = Initializer.valueOf(in.readUTF());
+
+						if (n_input != layers[l].getInputNumber() || n_neurons != layers[l].getNeuronNumber())
+							throw new IOException(String.format("%s does not match its parent.", name));
+
+						// the arrays of the parent are updated in place
+						next[l] = new Layer(n_input, n_neurons, activationFunction, initializer, learningRate,
+								layers[l].getWeights(), layers[l].getBiases());
+					}
+				} catch (IllegalArgumentException e) { // unknown enum constants
+					throw new IOException(String.format("Corrupted header in: %s.", name), e);
+				}
+
+				Inflater inflater = new Inflater();
+				DataInputStream data = new DataInputStream(new InflaterInputStream(fis, inflater, 1 << 16));
+				Restorer restorer = new Restorer(data, name, count(next));
+				for (Layer layer : next) {
+					for (float[] row : layer.getWeights())
+						restorer.read(row);
+					restorer.read(layer.getBiases());
+				}
+				inflater.end();
+
+				layers = next;
+			}
+		}
+
+		return new Network(layers, costFunction);
+	}
+
+	private static long count(Layer[] layers) {
+		long n = 0;
+		for (Layer layer : layers)
+			n += (long) layer.getNeuronNumber() * layer.getInputNumber() + layer.getNeuronNumber();
+		return n;
+	}
+
+	/*
+	 * Reads the reordered blocks back and applies the XOR to the values.
+	 */
+	private static class Restorer {
+
+		private final DataInputStream in;
+		private final String name;
+		private final int[] values = new int[BLOCK];
+		private final byte[] bytes = new byte[BLOCK * Float.BYTES];
+		private long remaining;
+		private int size = 0;
+		private int position = 0;
+
+		Restorer(DataInputStream in, String name, long total) {
+			this.in = in;
+			this.name = name;
+			this.remaining = total;
+		}
+
+		void read(float[] dst) throws IOException {
+			for (int i = 0; i < dst.length; i++) {
+				if (position == size)
+					fill();
+				dst[i] = Float.intBitsToFloat(Float.floatToRawIntBits(dst[i]) ^ values[position++]);
+			}
+		}
+
+		private void fill() throws IOException {
+			size = (int) Math.min(BLOCK, remaining);
+			try {
+				in.readFully(bytes, 0, size * Float.BYTES);
+			} catch (EOFException e) {
+				throw new IOException(String.format("Truncated file: %s.", name), e);
+			}
+			for (int i = 0; i < size; i++)
+				values[i] = (bytes[i] & 0xFF) << 24 | (bytes[size + i] & 0xFF) << 16
+						| (bytes[2 * size + i] & 0xFF) << 8 | (bytes[3 * size + i] & 0xFF);
+			remaining -= size;
+			position = 0;
+		}
+	}
+}
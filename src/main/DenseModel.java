@@ -0,0 +1,121 @@
+package main;
+
+import main.math.ActivationFunction;
+
+/**
+ * InferenceModel with the float weights of each layer in a single array, row
+ * by row, so that each row is contiguous in memory and the whole matrix can be
+ * read sequentially.
+ *
+ * The bias and the activation function are applied to each neuron right after
+ * its dot product (fused), while the value is still in a register. The dot
+ * product uses four independent accumulators: it is about four times faster
+ * than the one of the Layer, but the order of the sums changes, so the output
+ * can differ from the one of the network in the last bits.
+ *
+ * The activations of the hidden layers are written in scratch buffers of the
+ * exact size of each layer, one set per thread.
+ */
+final class DenseModel implements InferenceModel {
+
+	private final int[] n_input;
+	private final int[] n_neurons;
+	private final float[][] weights;
+	private final float[][] biases;
+	private final ActivationFunction[] activationFunctions;
+
+	private final ThreadLocal<float[][]> scratch;
+
+	DenseModel(Layer[] layers) {
+
+		int n = layers.length;
+		n_input = new int[n];
+		n_neurons = new int[n];
+		weights = new float[n][];
+		biases = new float[n][];
+		activationFunctions = new ActivationFunction[n];
+
+		for (int l = 0; l < n; l++) {
+			Layer layer = layers[l];
+			n_input[l] = layer.getInputNumber();
+			n_neurons[l] = layer.getNeuronNumber();
+			activationFunctions[l] = layer.getActivationFunction();
+
+			weights[l] = new float[n_neurons[l] * n_input[l]];
+			float[] row = new float[n_input[l]];
+			for (int i = 0; i < n_neurons[l]; i++) {
+				layer.getWeights(i, row);
+				System.arraycopy(row, 0, weights[l], i * n_input[l], n_input[l]);
+			}
+			biases[l] = layer.getBiases().clone();
+		}
+
+		scratch = ThreadLocal.withInitial(() -> {
+			float[][] buffers = new float[n - 1][];
+			for (int l = 0; l < n - 1; l++)
+				buffers[l] = new float[n_neurons[l]];
+			return buffers;
+		});
+	}
+
+	@Override
+	public int getInputNumber() {
+		return n_input[0];
+	}
+
+	@Override
+	public int getOutputNumber() {
+		return n_neurons[n_neurons.length - 1];
+	}
+
+	@Override
+	public void predict(float[] input, float[] output) {
+		float[][] buffers = scratch.get();
+		float[] in = input;
+		for (int l = 0; l < weights.length; l++) {
+			float[] out = l == weights.length - 1 ? output : buffers[l];
+			layer(weights[l], biases[l], n_input[l], n_neurons[l], activationFunctions[l], in, out);
+			in = out;
+		}
+	}
+
+	private static void layer(float[] weights, float[] biases, int n_input, int n_neurons,
+			ActivationFunction activationFunction, float[] input, float[] output) {
+
+		for (int i = 0, offset = 0; i < n_neurons; i++, offset += n_input) {
+			float z = dot(weights, offset, input, n_input) + biases[i];
+
+			switch (activationFunction) {
+			case Sigmoid:
+				output[i] = 1 / (1 + (float) Math.exp(-z));
+				break;
+			case ReLU:
+				output[i] = z <= 0 ? 0 : z;
+				break;
+			case Leaky_ReLU:
+				output[i] = z <= 0 ? 0.01f * z : z;
+				break;
+			default:
+				output[i] = activationFunction.execute(z);
+			}
+		}
+	}
+
+	/*
+	 * Dot product between the row of the weights that starts at the offset and
+	 * the input vector.
+	 */
+	static float dot(float[] weights, int offset, float[] input, int n) {
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int j = 0;
+		for (; j + 3 < n; j += 4) {
+			s0 += weights[offset + j] * input[j];
+			s1 += weights[offset + j + 1] * input[j + 1];
+			s2 += weights[offset + j + 2] * input[j + 2];
+			s3 += weights[offset + j + 3] * input[j + 3];
+		}
+		for (; j < n; j++)
+			s0 += weights[offset + j] * input[j];
+		return (s0 + s1) + (s2 + s3);
+	}
+}
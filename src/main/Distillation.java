@@ -0,0 +1,402 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import main.math.ActivationFunction;
+import main.training.AugmentedDataSet;
+import main.training.DataSet;
+import main.training.Match;
+
+/**
+ * Knowledge distillation: a (small) student network is trained to imitate a
+ * (large) teacher network, using the outputs of the teacher as targets instead
+ * of the one-hot labels. The outputs of the teacher carry more information
+ * than the labels (how much each wrong class looks like the right one), so the
+ * student gets closer to the accuracy of the teacher than if it were trained
+ * on the labels alone.
+ *
+ * The targets are softened by a temperature T: the weighted inputs z of the
+ * output layer of the teacher (its logits) are divided by T before applying the
+ * activation function, so that a greater temperature brings the targets closer
+ * to each other. The output layer of a network has no softmax, so the student
+ * learns the softened outputs themselves: its outputs are softer than the ones
+ * of the teacher, but the order of the classes (so the label predicted) is the
+ * same. The targets can be blended with the one-hot label of the match:
+ *
+ * <pre>
+ * target = (1 - hardWeight) * f(z / T) + hardWeight * label
+ * </pre>
+ *
+ * The logits of the teacher are computed once for the whole training set, in
+ * parallel, on a frozen copy of the teacher, and optionally cached to disk so
+ * that the following trainings on the same set with the same teacher skip them.
+ * The images of an AugmentedDataSet change at every epoch: the logits are
+ * computed by the frozen teacher for each augmented match during the training
+ * instead, and the cache file is not used.
+ * The cache file is made of a header (magic | version | count | outputs | crc32)
+ * followed by count * outputs little-endian floats, in the order the matches
+ * have been added to the set (so shuffling the set does not matter); the
+ * checksum covers the parameters of the teacher and the inputs of the set, so a
+ * cache built for another teacher or another set is never used.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * Distillation distillation = new Distillation.Builder(teacher).setTemperature(2).setHardWeight(0.25f)
+ * 		.setCacheFile(new File("teacher.logits")).build();
+ * student.train(trainingSet, distillation, 10, 5);
+ * </pre>
+ */
+public final class Distillation {
+
+	private static final int MAGIC = 0x4E4E4B44; // NNKD
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+
+	/*
+	 * matches whose logits are computed by each task.
+	 */
+	private static final int CHUNK_SIZE = 256;
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private final Layer[] teacher;
+	private final float temperature;
+	private final float hardWeight;
+	private final int threads;
+	private final File cacheFile;
+
+	/*
+	 * frozen copy of the teacher whose output layer has no activation function,
+	 * so that it computes the logits.
+	 */
+	private final InferenceModel model;
+
+	/*
+	 * logits of the teacher for the matches of the last prepared set, by their
+	 * position in the dataset they have been added to (the positions are sorted).
+	 * Null if the set is augmented.
+	 */
+	private DataSet set;
+	private int[] positions;
+	private float[][] logits;
+
+	public static class Builder {
+
+		private final Network teacher;
+		private float temperature = 1;
+		private float hardWeight = 0;
+		private int threads = Runtime.getRuntime().availableProcessors();
+		private File cacheFile;
+
+		public Builder(Network teacher) {
+			this.teacher = teacher;
+		}
+
+		/**
+		 * Sets the temperature the logits of the teacher are divided by, 1 (the
+		 * outputs of the teacher as they are) by default.
+		 */
+		public Builder setTemperature(float temperature) {
+			if (!(temperature > 0))
+				throw new IllegalArgumentException("The temperature must be greater than zero.");
+			this.temperature = temperature;
+			return this;
+		}
+
+		/**
+		 * Sets the weight of the one-hot label in the targets, in [0, 1]: 0 (the
+		 * default) to use only the outputs of the teacher, 1 to use only the labels.
+		 * The matches without a label use only the outputs of the teacher.
+		 */
+		public Builder setHardWeight(float hardWeight) {
+			if (!(hardWeight >= 0 && hardWeight <= 1))
+				throw new IllegalArgumentException("The hard weight must be in [0, 1].");
+			this.hardWeight = hardWeight;
+			return this;
+		}
+
+		/**
+		 * Sets the number of threads computing the logits of the teacher, the number
+		 * of processors by default.
+		 */
+		public Builder setThreads(int threads) {
+			if (threads < 1)
+				throw new IllegalArgumentException("The number of threads must be more than or equal to one.");
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * Sets the file the logits of the teacher are cached in, none by default.
+		 */
+		public Builder setCacheFile(File cacheFile) {
+			this.cacheFile = cacheFile;
+			return this;
+		}
+
+		public Distillation build() {
+			return new Distillation(this);
+		}
+	}
+
+	private Distillation(Builder builder) {
+		teacher = builder.teacher.getPublishedLayers();
+		temperature = builder.temperature;
+		hardWeight = builder.hardWeight;
+		threads = builder.threads;
+		cacheFile = builder.cacheFile;
+		model = logitModel(teacher);
+	}
+
+	// getters
+
+	public float getTemperature() {
+		return temperature;
+	}
+
+	public float getHardWeight() {
+		return hardWeight;
+	}
+
+	public File getCacheFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * Returns the length of the output vector of the teacher.
+	 */
+	public int getOutputNumber() {
+		return teacher[teacher.length - 1].getNeuronNumber();
+	}
+
+	// targets
+
+	/*
+	 * Computes (or reads from the cache) the logits of the teacher for the
+	 * matches of the set, unless it is augmented. Nothing is done if the set is
+	 * the last prepared one.
+	 */
+	synchronized void prepare(DataSet set) {
+		if (set instanceof AugmentedDataSet) {
+			this.set = set;
+			positions = null;
+			logits = null;
+			return;
+		}
+		if (set == this.set && logits != null && logits.length == set.size())
+			return;
+
+		/*
+		 * the matches in the order they have been added to the dataset, so that the
+		 * cache is the same however the set has been shuffled.
+		 */
+		int[] order = set.getOrder();
+		long[] keys = new long[order.length];
+		for (int i = 0; i < order.length; i++)
+			keys[i] = (long) order[i] << 32 | i;
+		Arrays.sort(keys);
+		int[] positions = new int[keys.length];
+		Match[] matches = new Match[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			positions[i] = (int) (keys[i] >>> 32);
+			matches[i] = set.get((int) keys[i]);
+		}
+
+		long checksum = checksum(matches);
+		float[][] values = null;
+		if (cacheFile != null && cacheFile.isFile()) {
+			try {
+				values = read(matches.length, checksum);
+			} catch (IOException e) {
+				e.printStackTrace(); // computed again
+			}
+		}
+
+		if (values == null) {
+			values = compute(matches);
+			if (cacheFile != null) {
+				try {
+					write(values, checksum);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		this.positions = positions;
+		this.logits = values;
+		this.set = set;
+	}
+
+	/*
+	 * Writes in the target array the target of the match, given with its position
+	 * in the dataset it has been added to (as returned by DataSet.getOrder). The
+	 * match must belong to the prepared set; if the set is augmented, the logits
+	 * are computed from its input.
+	 */
+	void target(int position, Match match, float[] target) {
+		float[] z;
+		if (logits == null)
+			z = model.predict(match.getInput());
+		else {
+			int i = Arrays.binarySearch(positions, position);
+			if (i < 0)
+				throw new IllegalStateException("The match does not belong to the prepared set.");
+			z = logits[i];
+		}
+
+		ActivationFunction activationFunction = teacher[teacher.length - 1].getActivationFunction();
+		float soft = match.hasLabel() ? 1 - hardWeight : 1;
+		for (int i = 0; i < target.length; i++)
+			target[i] = soft * activationFunction.execute(z[i] / temperature);
+		if (match.hasLabel())
+			target[match.getLabel()] += hardWeight;
+	}
+
+	/*
+	 * Frozen copy of the teacher whose output layer has no activation function.
+	 */
+	private static InferenceModel logitModel(Layer[] teacher) {
+		Layer[] layers = teacher.clone();
+		Layer output = layers[layers.length - 1];
+		float[][] weights = new float[output.getNeuronNumber()][output.getInputNumber()];
+		for (int i = 0; i < weights.length; i++)
+			output.getWeights(i, weights[i]);
+		layers[layers.length - 1] = new Layer(output.getInputNumber(), output.getNeuronNumber(),
+				ActivationFunction.Identity, output.getInitializer(), output.getLearningRate(), weights,
+				output.getBiases().clone());
+		return new DenseModel(layers);
+	}
+
+	/*
+	 * Logits of the teacher, computed in parallel by chunks of matches.
+	 */
+	private float[][] compute(Match[] matches) {
+
+		float[][] values = new float[matches.length][];
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> chunks = new ArrayList<>();
+			for (int from = 0; from < matches.length; from += CHUNK_SIZE) {
+				int start = from, end = Math.min(matches.length, from + CHUNK_SIZE);
+				chunks.add(executor.submit(() -> {
+					for (int i = start; i < end; i++)
+						values[i] = model.predict(matches[i].getInput());
+				}));
+			}
+			for (Future<?> chunk : chunks)
+				chunk.get();
+			return values;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing the outputs of the teacher.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// cache
+
+	/*
+	 * Checksum of the parameters of the teacher and of the inputs of the matches.
+	 */
+	private long checksum(Match[] matches) {
+		CRC32 crc = new CRC32();
+		for (Layer layer : teacher) {
+			float[] row = new float[layer.getInputNumber()];
+			for (int i = 0; i < layer.getNeuronNumber(); i++) {
+				layer.getWeights(i, row);
+				update(crc, row);
+			}
+			update(crc, layer.getBiases());
+		}
+		for (Match match : matches)
+			update(crc, match.getInput());
+		return crc.getValue();
+	}
+
+	private static void update(CRC32 crc, float[] values) {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asFloatBuffer().put(values);
+		crc.update(buffer);
+	}
+
+	/*
+	 * Reads the logits from the cache. Returns null if the cache has been built
+	 * for another teacher or set.
+	 */
+	private float[][] read(int count, long checksum) throws IOException {
+		int outputs = getOutputNumber();
+		long size = HEADER_SIZE + (long) count * outputs * Float.BYTES;
+		if (cacheFile.length() != size || size > Integer.MAX_VALUE)
+			return null;
+
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != count
+					|| buffer.getInt() != outputs || buffer.getLong() != checksum)
+				return null;
+
+			float[][] values = new float[count][outputs];
+			for (float[] z : values) {
+				buffer.asFloatBuffer().get(z);
+				buffer.position(buffer.position() + outputs * Float.BYTES);
+			}
+			return values;
+		}
+	}
+
+	/*
+	 * Writes the logits in the cache file. The file is written aside and then
+	 * moved in place, so that a crash never leaves a truncated cache behind.
+	 */
+	private void write(float[][] values, long checksum) throws IOException {
+		int outputs = getOutputNumber();
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE, WRITE_BUFFER_SIZE / (outputs * Float.BYTES)
+					* outputs * Float.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(values.length).putInt(outputs).putLong(checksum);
+			flush(channel, buffer);
+			for (float[] z : values) {
+				if (buffer.remaining() < outputs * Float.BYTES)
+					flush(channel, buffer);
+				buffer.asFloatBuffer().put(z);
+				buffer.position(buffer.position() + outputs * Float.BYTES);
+			}
+			flush(channel, buffer);
+		}
+		Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
@@ -0,0 +1,170 @@
+package main;
+
+/**
+ * Weights matrix stored on the heap as 16 bit floats (Float16 or BFloat16), in
+ * a single array, row by row. Each weight is converted to float right before
+ * being multiplied, so the dot product streams half the bytes of a float row.
+ *
+ * The conversions are implemented here, as Float.float16ToFloat is not
+ * available before Java 20: a BFloat16 is the upper half of a float, a Float16
+ * is converted through a table of all the 65536 values (256 KB, built the first
+ * time it is needed). Floats are rounded to the nearest 16 bit value, ties to
+ * even.
+ */
+final class HalfWeights implements WeightStorage {
+
+	private final Precision precision;
+	private final int rows;
+	private final int cols;
+	private final short[] weights;
+
+	HalfWeights(Precision precision, int rows, int cols, short[] weights) {
+		if (precision == Precision.Float32)
+			throw new IllegalArgumentException("Float32 weights are not half precision.");
+		if (weights.length != (long) rows * cols)
+			throw new IllegalArgumentException(String.format("weights.length[%d] != rows[%d] * cols[%d].",
+					weights.length, rows, cols));
+		this.precision = precision;
+		this.rows = rows;
+		this.cols = cols;
+		this.weights = weights;
+	}
+
+	/*
+	 * Rounds the rows of the weights matrix (read from the storage if not null,
+	 * from the matrix otherwise) to the given precision.
+	 */
+	static HalfWeights of(Precision precision, int rows, int cols, WeightStorage storage, float[][] matrix) {
+		if ((long) rows * cols > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+					String.format("Too many weights to be stored in half precision: %d x %d.", rows, cols));
+
+		short[] weights = new short[rows * cols];
+		float[] row = new float[cols];
+		for (int i = 0; i < rows; i++) {
+			if (storage != null)
+				storage.getRow(i, row);
+			else
+				row = matrix[i];
+			for (int j = 0; j < cols; j++)
+				weights[i * cols + j] = fromFloat(precision, row[j]);
+		}
+		return new HalfWeights(precision, rows, cols, weights);
+	}
+
+	Precision getPrecision() {
+		return precision;
+	}
+
+	/*
+	 * The 16 bit values, row by row.
+	 */
+	short[] getValues() {
+		return weights;
+	}
+
+	@Override
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public int getCols() {
+		return cols;
+	}
+
+	@Override
+	public long getHeapSize() {
+		final long header = 16; // object header and length of an array
+		return header + (long) weights.length * Short.BYTES;
+	}
+
+	@Override
+	public float dot(int row, float[] input) {
+		int base = row * cols;
+		float res = 0;
+		if (precision == Precision.BFloat16) {
+			for (int j = 0; j < cols; j++)
+				res += Float.intBitsToFloat(weights[base + j] << 16) * input[j];
+		} else {
+			float[] table = Float16Table.TABLE;
+			for (int j = 0; j < cols; j++)
+				res += table[weights[base + j] & 0xFFFF] * input[j];
+		}
+		return res;
+	}
+
+	@Override
+	public void getRow(int row, float[] dst) {
+		int base = row * cols;
+		for (int j = 0; j < cols; j++)
+			dst[j] = toFloat(precision, weights[base + j]);
+	}
+
+	// conversions
+
+	static float toFloat(Precision precision, short value) {
+		if (precision == Precision.BFloat16)
+			return Float.intBitsToFloat(value << 16);
+		return float16ToFloat(value);
+	}
+
+	static short fromFloat(Precision precision, float value) {
+		if (precision == Precision.BFloat16)
+			return floatToBFloat16(value);
+		return floatToFloat16(value);
+	}
+
+	static float float16ToFloat(short value) {
+		int bits = value & 0xFFFF;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1F;
+		int mantissa = bits & 0x3FF;
+
+		if (exponent == 0x1F) // infinity and NaN
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		if (exponent == 0) { // zero and subnormals: mantissa * 2^-24
+			float abs = mantissa * 0x1p-24f;
+			return sign != 0 ? -abs : abs;
+		}
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+	static short floatToFloat16(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int abs = bits & 0x7FFFFFFF;
+
+		if (abs > 0x7F800000) // NaN, kept quiet
+			return (short) (sign | 0x7E00);
+		if (abs >= 0x47800000) // 65536 and beyond, infinity
+			return (short) (sign | 0x7C00);
+		if (abs < 0x38800000) // below the smallest normal, 2^-14: subnormal
+			return (short) (sign | (int) Math.rint(Float.intBitsToFloat(abs) * 0x1p24f));
+
+		int half = (((abs >>> 23) - 112) << 10) | ((abs >>> 13) & 0x3FF);
+		int rest = abs & 0x1FFF;
+		if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+			half++; // the carry can round up to the next exponent, or to infinity
+		return (short) (sign | half);
+	}
+
+	static short floatToBFloat16(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		if ((bits & 0x7FFFFFFF) > 0x7F800000) // NaN, kept quiet
+			return (short) ((bits >>> 16) | 0x40);
+		return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+	}
+
+	/*
+	 * Holder of the conversion table, built at the first use.
+	 */
+	private static final class Float16Table {
+		static final float[] TABLE = new float[1 << 16];
+
+		static {
+			for (int i = 0; i < TABLE.length; i++)
+				TABLE[i] = float16ToFloat((short) i);
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the outputs of Network.feedforward, for the inputs that are fed to
+ * the network many times. The inputs are looked up by a hash of their values
+ * and compared element by element, so two different inputs never share an
+ * output. The least recently used entries are evicted when the cache holds more
+ * than the maximum number of entries or of bytes (the input and the output of
+ * each entry, plus the objects around them).
+ *
+ * The cache is cleared when the weights of the network change: when the
+ * parameters are replaced (i.e. by swap, setPrecision or compress), when the
+ * network is trained and when the weights or the biases of a layer are set.
+ * Changes made to the matrix returned by Layer.getWeights are not seen: clear
+ * the cache after them.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * network.setInferenceCache(new InferenceCache.Builder().setMaxEntries(10000).setMaxBytes(64 << 20).build());
+ * ...
+ * System.out.println(network.getInferenceCache().getStats());
+ * </pre>
+ */
+public final class InferenceCache {
+
+	/*
+	 * memory taken by an entry besides the two arrays: the headers of the arrays
+	 * and of the key, the entry of the map with its links.
+	 */
+	private static final long ENTRY_OVERHEAD = 96;
+
+	private final int maxEntries;
+	private final long maxBytes;
+
+	// access order: the first entry is the least recently used
+	private final LinkedHashMap<Key, float[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	/*
+	 * version and modifications of the network the entries have been computed
+	 * with.
+	 */
+	private long version = -1;
+	private long modifications = -1;
+
+	// stats
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+	private long lookupTime;
+
+	public static class Builder {
+
+		private int maxEntries = 10000;
+		private long maxBytes = Long.MAX_VALUE;
+
+		/**
+		 * Sets the maximum number of entries, 10000 by default.
+		 */
+		public Builder setMaxEntries(int maxEntries) {
+			if (maxEntries < 1)
+				throw new IllegalArgumentException("The maximum number of entries must be more than or equal to one.");
+			this.maxEntries = maxEntries;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum memory taken by the entries, in bytes, unbounded by
+		 * default.
+		 */
+		public Builder setMaxBytes(long maxBytes) {
+			if (maxBytes < 1)
+				throw new IllegalArgumentException("The maximum size must be more than zero.");
+			this.maxBytes = maxBytes;
+			return this;
+		}
+
+		public InferenceCache build() {
+			return new InferenceCache(this);
+		}
+	}
+
+	private InferenceCache(Builder builder) {
+		maxEntries = builder.maxEntries;
+		maxBytes = builder.maxBytes;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/*
+	 * Returns a copy of the output cached for the input, or null. The entries are
+	 * dropped first if the weights of the network have changed.
+	 */
+	synchronized float[] get(Network network, float[] input) {
+		long start = System.nanoTime();
+
+		long version = network.getVersion(), modifications = network.getModifications();
+		if (version != this.version || modifications != this.modifications) {
+			if (!entries.isEmpty())
+				invalidations++;
+			entries.clear();
+			bytes = 0;
+			this.version = version;
+			this.modifications = modifications;
+		}
+
+		float[] output = entries.get(new Key(input));
+		if (output != null)
+			hits++;
+		else
+			misses++;
+
+		lookupTime += System.nanoTime() - start;
+		return output == null ? null : output.clone();
+	}
+
+	/*
+	 * Caches a copy of the output computed for the input, evicting the least
+	 * recently used entries beyond the limits.
+	 */
+	synchronized void put(float[] input, float[] output) {
+		long size = size(input, output);
+		if (size > maxBytes)
+			return;
+
+		float[] previous = entries.put(new Key(input.clone()), output.clone());
+		if (previous != null)
+			bytes -= size(input, previous);
+		bytes += size;
+
+		Iterator<Map.Entry<Key, float[]>> iterator = entries.entrySet().iterator();
+		while (entries.size() > maxEntries || bytes > maxBytes) {
+			Map.Entry<Key, float[]> eldest = iterator.next();
+			bytes -= size(eldest.getKey().values, eldest.getValue());
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Removes all the entries. The stats are kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+		version = -1;
+		modifications = -1;
+	}
+
+	/**
+	 * Returns a snapshot of the stats of the cache.
+	 */
+	public synchronized Stats getStats() {
+		return new Stats(hits, misses, evictions, invalidations, entries.size(), bytes, lookupTime);
+	}
+
+	private static long size(float[] input, float[] output) {
+		return ENTRY_OVERHEAD + (long) (input.length + output.length) * Float.BYTES;
+	}
+
+	/*
+	 * Input vector with its hash, computed once. The hash mixes the bits of four
+	 * elements at a time in independent lanes, so that it is not bound by the
+	 * latency of a multiplication for each element. The raw bits are hashed: two
+	 * NaNs with a different payload are equal but can hash differently, which
+	 * only costs a miss.
+	 */
+	private static final class Key {
+
+		final float[] values;
+		final int hash;
+
+		Key(float[] values) {
+			this.values = values;
+			this.hash = hash(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).hash == hash && Arrays.equals(((Key) o).values, values);
+		}
+
+		private static int hash(float[] values) {
+			final int m = 0x9E3779B1;
+			int h0 = 0, h1 = 0, h2 = 0, h3 = 0;
+			int i = 0;
+			for (; i + 3 < values.length; i += 4) {
+				h0 = (h0 + Float.floatToRawIntBits(values[i])) * m;
+				h1 = (h1 + Float.floatToRawIntBits(values[i + 1])) * m;
+				h2 = (h2 + Float.floatToRawIntBits(values[i + 2])) * m;
+				h3 = (h3 + Float.floatToRawIntBits(values[i + 3])) * m;
+			}
+			for (; i < values.length; i++)
+				h0 = (h0 + Float.floatToRawIntBits(values[i])) * m;
+
+			int h = h0 ^ Integer.rotateLeft(h1, 8) ^ Integer.rotateLeft(h2, 16) ^ Integer.rotateLeft(h3, 24)
+					^ values.length;
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			return h;
+		}
+	}
+
+	/**
+	 * Stats of the cache, from its creation.
+	 */
+	public static class Stats {
+
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final long invalidations;
+		private final int entries;
+		private final long bytes;
+		private final long lookupTime;
+
+		Stats(long hits, long misses, long evictions, long invalidations, int entries, long bytes, long lookupTime) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.invalidations = invalidations;
+			this.entries = entries;
+			this.bytes = bytes;
+			this.lookupTime = lookupTime;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * Returns the fraction of the lookups that found the output, NaN if there
+		 * have been none.
+		 */
+		public float getHitRate() {
+			return hits + misses == 0 ? Float.NaN : (float) hits / (hits + misses);
+		}
+
+		/**
+		 * Returns the number of entries evicted to stay within the limits.
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * Returns how many times the entries have been dropped because the weights of
+		 * the network have changed.
+		 */
+		public long getInvalidations() {
+			return invalidations;
+		}
+
+		public int getEntries() {
+			return entries;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Returns the mean time of a lookup (hashing and comparing the input
+		 * included), in nanoseconds, NaN if there have been none.
+		 */
+		public double getMeanLookupTime() {
+			return hits + misses == 0 ? Double.NaN : (double) lookupTime / (hits + misses);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"Hits: %d\nMisses: %d\nHit rate: %f%%\nEvictions: %d\nInvalidations: %d\nEntries: %d\nBytes: %d\nMean lookup time: %.0f ns",
+					hits, misses, getHitRate() * 100, evictions, invalidations, entries, bytes, getMeanLookupTime());
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package main;
+
+/**
+ * Immutable, inference-only form of a network, obtained from Network.freeze.
+ * An InferenceModel keeps only what is needed to compute the output: no
+ * learning rate, no deltas, no activation state. All the implementations are
+ * thread-safe: the same model can serve many threads at the same time.
+ *
+ * To keep the calls as cheap as possible, the length of the vectors is not
+ * checked: an input or an output vector of the wrong length results in an
+ * ArrayIndexOutOfBoundsException or in a wrong output.
+ */
+public interface InferenceModel {
+
+	/**
+	 * Returns the length of the input vector.
+	 */
+	int getInputNumber();
+
+	/**
+	 * Returns the length of the output vector.
+	 */
+	int getOutputNumber();
+
+	/**
+	 * Computes the output for the input vector, writing it in the output vector.
+	 */
+	void predict(float[] input, float[] output);
+
+	/**
+	 * Computes the output for the input vector and returns it in a new array.
+	 */
+	default float[] predict(float[] input) {
+		float[] output = new float[getOutputNumber()];
+		predict(input, output);
+		return output;
+	}
+
+	/**
+	 * Returns the index of the greatest element of the output vector for the
+	 * input vector, i.e. the label predicted for it.
+	 */
+	default int classify(float[] input) {
+		float[] output = predict(input);
+		int index = 0;
+		for (int i = 1; i < output.length; i++)
+			if (output[i] > output[index])
+				index = i;
+		return index;
+	}
+}
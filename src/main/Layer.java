@@ -45,11 +45,80 @@ public class Layer implements Serializable {
 	private float[][] weights;
 	private float[] biases;
 
+	/*
+	 * when not null, the weights are read from here and the weights matrix is
+	 * only created (copying them) when they have to be modified. Volatile, so that
+	 * the weights matrix is visible to the threads that see the storage dropped.
+	 */
+	private transient volatile WeightStorage storage;
+
 	// weights and biases update
 	private transient float[][] delta_weights;
 	private transient float[] delta_biases;
 	private int batch;
 
+	/**
+	 * How the layer treats its input vector. A sparse input (one with many zeros,
+	 * i.e. the pixels of the background of an image or a bag of features) is
+	 * reduced to its non-zero elements, and both the feedforward and the update
+	 * of the weights touch only the columns of the weights matrix they multiply:
+	 * the cost is proportional to the non-zero elements instead of the length of
+	 * the input. The result is the same of the dense computation.
+	 */
+	public static enum Sparsity {
+
+		/**
+		 * The input is treated as sparse when at least half of its elements are zero.
+		 */
+		Auto,
+
+		/**
+		 * The input is always treated as sparse.
+		 */
+		Sparse,
+
+		/**
+		 * The input is always treated as dense.
+		 */
+		Dense
+	}
+
+	/*
+	 * null (i.e. after the deserialization) means Auto.
+	 */
+	private transient Sparsity sparsity;
+
+	/*
+	 * non-zero elements of the last input fed to activate(input), if it has been
+	 * treated as sparse.
+	 */
+	private transient boolean sparse;
+	private transient int nnz;
+	private transient int[] indices;
+	private transient float[] values;
+
+	/*
+	 * if all the deltas accumulated since the last update were sparse, only the
+	 * touched columns of the weights matrix are updated.
+	 */
+	private transient boolean sparseBatch;
+	private transient boolean[] touched;
+	private transient int[] touchedColumns;
+	private transient int n_touched;
+
+	/*
+	 * weights removed by the pruning, kept to zero by the training. Null if the
+	 * layer has not been pruned. The weights left out of a CSR matrix count as
+	 * pruned.
+	 */
+	private transient boolean[][] pruned;
+
+	/*
+	 * number of changes made in place to the weights and biases, to invalidate
+	 * the outputs computed before them (i.e. by an InferenceCache).
+	 */
+	private transient int modifications;
+
 	/**
 	 * Used to build a layer for an untrained network. The number of neurons of the
 	 * previous layer and that of the ones in the current layer are required. As
@@ -110,6 +179,44 @@ public class Layer implements Serializable {
 		learningRate = 0.5f;
 	}
 
+	/*
+	 * Used to restore a layer whose weights and biases are already known (i.e.
+	 * read from a file): the initializer is kept only as information and is not
+	 * invoked.
+	 */
+	Layer(int n_input, int n_neurons, ActivationFunction activation, Initializer init, float learningRate,
+			float[][] weights, float[] biases) {
+		if (n_neurons <= 0)
+			throw new IllegalArgumentException("n_neurons can't be <= 0.");
+		if (n_input <= 0)
+			throw new IllegalArgumentException("n_input can't be <= 0.");
+
+		this.n_neurons = n_neurons;
+		this.n_input = n_input;
+		this.learningRate = learningRate;
+
+		this.activations = new float[n_neurons];
+
+		this.activationFunction = activation;
+		this.initializer = init;
+
+		this.weights = weights;
+		this.biases = biases;
+
+		// the deltas are created only if the layer is trained
+		batch = 0;
+	}
+
+	/*
+	 * Used to restore a layer whose weights are kept in a storage other than the
+	 * heap. They will be copied on the heap if the layer is trained.
+	 */
+	Layer(int n_input, int n_neurons, ActivationFunction activation, Initializer init, float learningRate,
+			WeightStorage storage, float[] biases) {
+		this(n_input, n_neurons, activation, init, learningRate, (float[][]) null, biases);
+		this.storage = storage;
+	}
+
 	/**
 	 * Builds a layer with a XavierUniform initializer.
 	 */
@@ -149,10 +256,166 @@ public class Layer implements Serializable {
 		return n_input;
 	}
 
+	public float getLearningRate() {
+		return learningRate;
+	}
+
+	/**
+	 * Returns the weights matrix. If the weights are memory-mapped, they are
+	 * copied on the heap first.
+	 */
 	public float[][] getWeights() {
+		materialize();
 		return weights;
 	}
 
+	/*
+	 * Copies the weights from the storage to the heap (copy-on-write).
+	 */
+	private void materialize() {
+		if (storage != null) {
+			// the layer has been compressed after a pruning, the pruned weights must stay zero
+			if (storage instanceof CsrWeights && pruned == null)
+				pruned = ((CsrWeights) storage).getZeros();
+			weights = storage.toArray();
+			storage = null;
+		}
+	}
+
+	/*
+	 * Copies a row of the weights matrix without copying the whole matrix on the
+	 * heap.
+	 */
+	void getWeights(int row, float[] dst) {
+		if (storage != null)
+			storage.getRow(row, dst);
+		else
+			System.arraycopy(weights[row], 0, dst, 0, n_input);
+	}
+
+	/*
+	 * True if the weights are still backed by a storage other than the heap.
+	 */
+	boolean isBacked() {
+		return storage != null;
+	}
+
+	/**
+	 * Returns the precision in which the weights are stored. Half precision
+	 * weights are converted to float as soon as they have to be modified (i.e. by
+	 * the training).
+	 */
+	public Precision getPrecision() {
+		HalfWeights half = getHalfWeights();
+		return half != null ? half.getPrecision() : Precision.Float32;
+	}
+
+	/*
+	 * The storage of the weights, null if they are a float matrix on the heap.
+	 */
+	WeightStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Returns the fraction of the weights that are zero (i.e. after a pruning).
+	 */
+	public float getWeightSparsity() {
+		long zeros = 0;
+		float[] row = new float[n_input];
+		for (int i = 0; i < n_neurons; i++) {
+			getWeights(i, row);
+			for (float w : row)
+				if (w == 0)
+					zeros++;
+		}
+		return (float) zeros / ((long) n_neurons * n_input);
+	}
+
+	/*
+	 * Zeroes the weights whose magnitude is below the threshold, and at most the
+	 * given number of those whose magnitude is equal to it, returning how many of
+	 * the latter have been zeroed. The pruned weights stay zero if the layer is
+	 * trained.
+	 */
+	int prune(float threshold, int ties) {
+		materialize();
+		if (pruned == null)
+			pruned = new boolean[n_neurons][n_input];
+		int used = 0;
+		for (int i = 0; i < n_neurons; i++)
+			for (int j = 0; j < n_input; j++) {
+				float magnitude = Math.abs(weights[i][j]);
+				if (magnitude < threshold || (magnitude == threshold && used < ties)) {
+					if (magnitude == threshold)
+						used++;
+					weights[i][j] = 0;
+					pruned[i][j] = true;
+				}
+			}
+		modifications++;
+		return used;
+	}
+
+	int getModifications() {
+		return modifications;
+	}
+
+	/*
+	 * Returns a copy of the layer with the weights stored in the CSR format, if
+	 * at least half of them are zero (otherwise the CSR format takes more memory
+	 * than the float matrix), or the layer itself. The zero weights of the copy
+	 * are considered pruned: they stay zero if it is trained.
+	 */
+	Layer compressed() {
+		WeightStorage storage = this.storage;
+		if (storage instanceof CsrWeights || getWeightSparsity() < 0.5f)
+			return this;
+		return new Layer(n_input, n_neurons, activationFunction, initializer, learningRate,
+				CsrWeights.of(n_neurons, n_input, storage, weights), biases.clone());
+	}
+
+	/*
+	 * The half precision weights, null if the weights are stored as floats.
+	 */
+	HalfWeights getHalfWeights() {
+		WeightStorage storage = this.storage;
+		return storage instanceof HalfWeights ? (HalfWeights) storage : null;
+	}
+
+	/*
+	 * Returns a copy of the layer with the weights stored off-heap.
+	 */
+	Layer offHeap() {
+		return new Layer(n_input, n_neurons, activationFunction, initializer, learningRate,
+				OffHeapWeights.of(n_neurons, n_input, storage, weights), biases.clone());
+	}
+
+	/*
+	 * Releases the memory of the storage of the weights, if any (i.e. off-heap
+	 * weights). The layer can't be used anymore.
+	 */
+	void release() {
+		WeightStorage storage = this.storage;
+		if (storage != null)
+			storage.free();
+	}
+
+	/*
+	 * Returns a copy of the layer with the weights stored in the given precision,
+	 * or the layer itself if they already are.
+	 */
+	Layer withPrecision(Precision precision) {
+		WeightStorage storage = this.storage;
+		if (precision == getPrecision())
+			return this;
+		if (precision == Precision.Float32)
+			return new Layer(n_input, n_neurons, activationFunction, initializer, learningRate, storage.toArray(),
+					biases.clone());
+		return new Layer(n_input, n_neurons, activationFunction, initializer, learningRate,
+				HalfWeights.of(precision, n_neurons, n_input, storage, weights), biases.clone());
+	}
+
 	public float[] getBiases() {
 		return biases;
 	}
@@ -161,33 +424,69 @@ public class Layer implements Serializable {
 		return activations;
 	}
 
+	/*
+	 * Accumulated deltas since the last update, null if the layer has never been
+	 * trained.
+	 */
+	float[][] getDeltaWeights() {
+		return delta_weights;
+	}
+
+	float[] getDeltaBiases() {
+		return delta_biases;
+	}
+
+	/*
+	 * Number of deltas accumulated since the last update.
+	 */
+	int getBatch() {
+		return batch;
+	}
+
+	/*
+	 * Restores the accumulated deltas (i.e. to resume an interrupted training).
+	 */
+	void setDeltas(float[][] delta_weights, float[] delta_biases, int batch) {
+		this.delta_weights = delta_weights;
+		this.delta_biases = delta_biases;
+		this.batch = batch;
+		clearTouched();
+	}
+
 	// setters
 
 	/**
 	 * Mostly for debug purpose; lets you set the weights manually. An
 	 * IllegalArgumentException is thrown if the size of the weights matrix passed
 	 * as argument is not compliant with the size of the class weights matrix.
+	 * The weights are not replaced atomically with respect to the predictions in
+	 * progress: use Network.swapParameters on a network in service.
 	 */
 	public void setWeights(float[][] weights) {
-		if (weights.length != this.weights.length)
+		if (weights.length != n_neurons)
 			throw new IllegalArgumentException(
-					String.format("this.weights.rows[%s] != weights.rows[%s].", this.weights.length, weights.length));
-		if (weights[0].length != this.weights[0].length)
+					String.format("this.weights.rows[%s] != weights.rows[%s].", n_neurons, weights.length));
+		if (weights[0].length != n_input)
 			throw new IllegalArgumentException(String.format("this.weights.cols[%s] != weights.cols[%s].",
-					this.weights[0].length, weights[0].length));
+					n_input, weights[0].length));
 		this.weights = weights;
+		this.storage = null;
+		this.pruned = null;
+		modifications++;
 	}
 
 	/**
 	 * Mostly for debug purpose; lets you set the biases manually. An
 	 * IllegalArgumentException is thrown if the size of the biases vector passed as
-	 * argument is not compliant with the class one.
+	 * argument is not compliant with the class one. Use Network.swapParameters on
+	 * a network in service.
 	 */
 	public void setBiases(float[] biases) {
 		if (biases.length != this.biases.length)
 			throw new IllegalArgumentException(
 					String.format("this.biases.length[%s] != biases.length[%s].", this.biases.length, biases.length));
 		this.biases = biases;
+		modifications++;
 	}
 
 	/**
@@ -197,6 +496,20 @@ public class Layer implements Serializable {
 		this.learningRate = learningRate;
 	}
 
+	public Sparsity getSparsity() {
+		return sparsity == null ? Sparsity.Auto : sparsity;
+	}
+
+	/**
+	 * Sets how the input vector is treated, as sparse or dense. The default is
+	 * Auto, which decides for each input. The sparse path is taken only for
+	 * weights stored as a float matrix on the heap. The setting is not saved with
+	 * the network.
+	 */
+	public void setSparsity(Sparsity sparsity) {
+		this.sparsity = sparsity;
+	}
+
 	/**
 	 * Feed the input through the layer. An IllegalArgumentException is thrown if
 	 * the size of the input vector does not match with n_input.
@@ -204,9 +517,94 @@ public class Layer implements Serializable {
 	public float[] activate(float[] input) {
 		if (input.length != n_input)
 			throw new IllegalArgumentException(String.format("input.length[%s] != n_input[%s]", input.length, n_input));
+
+		sparse = false;
+		Sparsity sparsity = getSparsity();
+		if (sparsity == Sparsity.Dense || storage != null)
+			return activate(input, activations);
+
+		if (indices == null) {
+			indices = new int[n_input];
+			values = new float[n_input];
+		}
+		nnz = gather(input, indices, values);
+		if (sparsity == Sparsity.Auto && nnz * 2 > n_input)
+			return activate(input, activations);
+
+		sparse = true;
+		return activate(weights, indices, values, nnz, activations);
+	}
+
+	/**
+	 * Feed the input through the layer, writing the activation in the output
+	 * vector instead of the internal one. As the layer is not modified, this can
+	 * be invoked by many threads at the same time.
+	 */
+	public float[] activate(float[] input, float[] output) {
+		if (input.length != n_input)
+			throw new IllegalArgumentException(String.format("input.length[%s] != n_input[%s]", input.length, n_input));
+		if (output.length != n_neurons)
+			throw new IllegalArgumentException(
+					String.format("output.length[%s] != n_neurons[%s]", output.length, n_neurons));
+		WeightStorage storage = this.storage; // it can be dropped by a concurrent materialize
+		if (storage != null) {
+			storage.beginRead(); // off-heap memory is not released before the end of the read
+			try {
+				for (int i = 0; i < n_neurons; i++)
+					output[i] = activationFunction.execute(storage.dot(i, input) + biases[i]);
+			} finally {
+				storage.endRead();
+			}
+			return output;
+		}
+		float[][] weights = this.weights;
+
+		Sparsity sparsity = getSparsity();
+		if (sparsity != Sparsity.Dense) {
+			int nnz = 0;
+			for (int j = 0; j < n_input; j++)
+				if (input[j] != 0)
+					nnz++;
+			if (sparsity == Sparsity.Sparse || nnz * 2 <= n_input) {
+				int[] indices = new int[nnz];
+				float[] values = new float[nnz];
+				gather(input, indices, values);
+				return activate(weights, indices, values, nnz, output);
+			}
+		}
+
 		for (int i = 0; i < weights.length; i++)
-			activations[i] = activationFunction.execute(MathUtils.dot(weights[i], input) + biases[i]);
-		return activations;
+			output[i] = activationFunction.execute(MathUtils.dot(weights[i], input) + biases[i]);
+		return output;
+	}
+
+	/*
+	 * Copies the non-zero elements of the input and their indices, returning how
+	 * many they are.
+	 */
+	private static int gather(float[] input, int[] indices, float[] values) {
+		int nnz = 0;
+		for (int j = 0; j < input.length; j++)
+			if (input[j] != 0) {
+				indices[nnz] = j;
+				values[nnz++] = input[j];
+			}
+		return nnz;
+	}
+
+	/*
+	 * Feedforward of a sparse input. The products are summed in the same order of
+	 * the dense dot product, which only adds zeros in between.
+	 */
+	private float[] activate(float[][] weights, int[] indices, float[] values, int nnz, float[] output) {
+		for (int i = 0; i < n_neurons; i++) {
+			float[] row = weights[i];
+			float res = 0;
+			for (int k = 0; k < nnz; k++)
+				res += row[indices[k]] * values[k];
+			output[i] = activationFunction.execute(res + biases[i]);
+		}
+		return output;
 	}
 
 	/*
@@ -219,11 +617,58 @@ public class Layer implements Serializable {
 	 * Only the Network object can modify the Layer.
 	 */
 	protected void addWeightsAndBiases(float[][] delta_weights, float[] delta_biases) {
+		if (this.delta_weights == null) {
+			this.delta_weights = new float[n_neurons][n_input];
+			this.delta_biases = new float[n_neurons];
+		}
 		for (int i = 0; i < n_neurons; i++) {
 			this.delta_biases[i] += delta_biases[i];
 			for (int j = 0; j < n_input; j++)
 				this.delta_weights[i][j] += delta_weights[i][j];
 		}
+		clearTouched();
+		batch++;
+	}
+
+	/*
+	 * True if the last input fed to activate(input) has been treated as sparse.
+	 */
+	boolean hasSparseInput() {
+		return sparse;
+	}
+
+	/*
+	 * Accumulates the deltas for the last input, which must have been treated as
+	 * sparse: the delta of each weight is the delta of its bias times the input
+	 * it multiplies, so only the columns of the non-zero inputs change.
+	 */
+	protected void addWeightsAndBiases(float[] delta_biases) {
+		if (this.delta_weights == null) {
+			this.delta_weights = new float[n_neurons][n_input];
+			this.delta_biases = new float[n_neurons];
+		}
+		if (batch == 0) {
+			sparseBatch = true;
+			if (touched == null) {
+				touched = new boolean[n_input];
+				touchedColumns = new int[n_input];
+			}
+		}
+
+		for (int i = 0; i < n_neurons; i++) {
+			this.delta_biases[i] += delta_biases[i];
+			float[] row = this.delta_weights[i];
+			float delta = delta_biases[i];
+			for (int k = 0; k < nnz; k++)
+				row[indices[k]] += delta * values[k];
+		}
+
+		if (sparseBatch)
+			for (int k = 0; k < nnz; k++)
+				if (!touched[indices[k]]) {
+					touched[indices[k]] = true;
+					touchedColumns[n_touched++] = indices[k];
+				}
 		batch++;
 	}
 
@@ -231,15 +676,35 @@ public class Layer implements Serializable {
 	 * Adjusts weights and biases.
 	 */
 	protected void adjustWeightsAndBiases() {
+		if (batch == 0)
+			return;
+		materialize();
 		adjustWeights();
 		adjustBiases();
 		resetDelta();
+		modifications++;
 	}
 
 	private void adjustWeights() {
+		if (sparseBatch) {
+			// the other columns have no delta
+			for (int i = 0; i < n_neurons; i++)
+				for (int k = 0; k < n_touched; k++) {
+					int j = touchedColumns[k];
+					weights[i][j] = pruned != null && pruned[i][j] ? 0
+							: weights[i][j] - (delta_weights[i][j] * learningRate) / batch;
+				}
+			return;
+		}
 		for (int i = 0; i < n_neurons; i++)
 			for (int j = 0; j < n_input; j++)
 				weights[i][j] -= (delta_weights[i][j] * learningRate) / batch;
+
+		if (pruned != null)
+			for (int i = 0; i < n_neurons; i++)
+				for (int j = 0; j < n_input; j++)
+					if (pruned[i][j])
+						weights[i][j] = 0;
 	}
 
 	private void adjustBiases() {
@@ -247,8 +712,26 @@ public class Layer implements Serializable {
 			biases[i] -= (delta_biases[i] * learningRate) / batch;
 	}
 
+	/*
+	 * Forgets the touched columns: the next update will be dense.
+	 */
+	private void clearTouched() {
+		for (int k = 0; k < n_touched; k++)
+			touched[touchedColumns[k]] = false;
+		n_touched = 0;
+		sparseBatch = false;
+	}
+
 	private void resetDelta() {
-		delta_weights = new float[n_neurons][n_input];
+		if (sparseBatch) {
+			// only the touched columns are not zero
+			for (int i = 0; i < n_neurons; i++)
+				for (int k = 0; k < n_touched; k++)
+					delta_weights[i][touchedColumns[k]] = 0;
+			clearTouched();
+		} else {
+			delta_weights = new float[n_neurons][n_input];
+		}
 		delta_biases = new float[n_neurons];
 		batch = 0;
 	}
@@ -0,0 +1,619 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import main.math.ActivationFunction;
+import main.training.DataSet;
+import main.training.Match;
+
+/**
+ * Low-rank factorization of the layers of a network. The weights matrix W
+ * (n_neurons x n_input) of a layer is replaced by its truncated singular value
+ * decomposition, the product of two matrices of rank r, computed as two
+ * consecutive layers: the first one (r x n_input) projects the input with no
+ * activation function (Identity) and no biases, the second one (n_neurons x r)
+ * has the biases and the activation function of the original layer. The r
+ * greatest singular values are the best approximation of rank r of W.
+ *
+ * A layer takes r * (n_input + n_neurons) multiply-adds instead of n_input *
+ * n_neurons: a 784 -> 1024 layer factorized with r = 128 is 3.5 times
+ * smaller and faster. A layer is factorized only if this makes it smaller, the
+ * others are copied as they are. The original network is not modified, and the
+ * factorized one is a regular Network: it can be trained further, frozen,
+ * quantized or saved.
+ *
+ * The singular values are computed in double from the eigenvalues of the Gram
+ * matrix of W (W^T W or W W^T, the smaller one), reduced to tridiagonal form by
+ * Householder reflections and diagonalized with the QL algorithm.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * LowRankFactorization factorization = LowRankFactorization.factorize(network, validationSet, 0.01f);
+ * System.out.println(factorization);
+ * Network smaller = factorization.getNetwork();
+ * </pre>
+ */
+public final class LowRankFactorization {
+
+	/*
+	 * width of the interval of energies the search for the accepted loss stops at.
+	 */
+	private static final float ENERGY_RESOLUTION = 1e-6f;
+
+	private final Network network;
+	private final int[] ranks;
+	private final long originalFlops;
+	private final long flops;
+
+	private LowRankFactorization(Network network, int[] ranks, long originalFlops, long flops) {
+		this.network = network;
+		this.ranks = ranks;
+		this.originalFlops = originalFlops;
+		this.flops = flops;
+	}
+
+	/**
+	 * Factorizes a single layer of the network with the given rank.
+	 *
+	 * @param network the network
+	 * @param layer   the index of the layer
+	 * @param rank    the rank, in [1, min(n_input, n_neurons)]
+	 * @return the factorization
+	 */
+	public static LowRankFactorization factorize(Network network, int layer, int rank) {
+		Layer[] layers = network.getLayers();
+		if (layer < 0 || layer >= layers.length)
+			throw new IllegalArgumentException(String.format("Invalid layer: %d.", layer));
+		if (rank < 1 || rank > Math.min(layers[layer].getInputNumber(), layers[layer].getNeuronNumber()))
+			throw new IllegalArgumentException(String.format("Invalid rank for layer %d: %d.", layer, rank));
+
+		Decomposition[] decompositions = new Decomposition[layers.length];
+		decompositions[layer] = new Decomposition(layers[layer]);
+		int[] ranks = new int[layers.length];
+		ranks[layer] = rank;
+		return build(network, decompositions, ranks);
+	}
+
+	/**
+	 * Factorizes each layer with the smallest rank that keeps the given fraction
+	 * of its energy, i.e. of the sum of its squared singular values (the squared
+	 * Frobenius norm of W): the relative error of the approximation of W is
+	 * sqrt(1 - energy).
+	 *
+	 * @param network the network
+	 * @param energy  the fraction of the energy to keep, in (0, 1]
+	 * @return the factorization
+	 */
+	public static LowRankFactorization factorize(Network network, float energy) {
+		if (!(energy > 0 && energy <= 1))
+			throw new IllegalArgumentException("The energy must be in (0, 1].");
+
+		Decomposition[] decompositions = decompose(network.getLayers());
+		return build(network, decompositions, ranks(decompositions, energy));
+	}
+
+	/**
+	 * Factorizes each layer with the rank that makes it the given number of times
+	 * faster (and smaller).
+	 *
+	 * @param network the network
+	 * @param speedup the reduction of the multiply-adds of each layer, greater
+	 *                than 1
+	 * @return the factorization
+	 */
+	public static LowRankFactorization factorizeForSpeedup(Network network, float speedup) {
+		if (!(speedup > 1))
+			throw new IllegalArgumentException("The speedup must be greater than 1.");
+
+		Layer[] layers = network.getLayers();
+		Decomposition[] decompositions = new Decomposition[layers.length];
+		int[] ranks = new int[layers.length];
+		for (int l = 0; l < layers.length; l++) {
+			long n_input = layers[l].getInputNumber(), n_neurons = layers[l].getNeuronNumber();
+			ranks[l] = (int) Math.max(1, (long) (n_input * n_neurons / (speedup * (n_input + n_neurons))));
+			if (isWorth(layers[l], ranks[l]))
+				decompositions[l] = new Decomposition(layers[l]);
+		}
+		return build(network, decompositions, ranks);
+	}
+
+	/**
+	 * Factorizes the layers with the smallest ranks whose accuracy on the set is
+	 * at most maxLoss less than the one of the network. The ranks are chosen as in
+	 * factorize(network, energy), searching the smallest energy that keeps the
+	 * accuracy (assumed to grow with the energy).
+	 *
+	 * @param network the network
+	 * @param set     the labelled set the accuracy is measured on
+	 * @param maxLoss the greatest accepted loss of accuracy, i.e. 0.01 for one
+	 *                percentage point
+	 * @return the factorization
+	 */
+	public static LowRankFactorization factorize(Network network, DataSet set, float maxLoss) {
+		if (!(maxLoss >= 0))
+			throw new IllegalArgumentException("The accepted loss must not be negative.");
+
+		Decomposition[] decompositions = decompose(network.getLayers());
+		float target = accuracy(network.freeze(), set) - maxLoss;
+
+		// the smallest ranks may already be enough
+		float low = 0, high = 1;
+		int[] lowRanks = ranks(decompositions, low), highRanks = ranks(decompositions, high);
+		LowRankFactorization best = build(network, decompositions, lowRanks);
+		if (accuracy(best.network.freeze(), set) >= target)
+			return best;
+		best = build(network, decompositions, highRanks);
+
+		/*
+		 * binary search of the energy between a rejected bound (low) and an accepted
+		 * one (high). Only the ranks that differ from both bounds are evaluated: the
+		 * others move the bound they are equal to.
+		 */
+		while (high - low > ENERGY_RESOLUTION) {
+			float middle = (low + high) / 2;
+			int[] ranks = ranks(decompositions, middle);
+			if (Arrays.equals(ranks, lowRanks)) {
+				low = middle;
+				continue;
+			}
+			if (Arrays.equals(ranks, highRanks)) {
+				high = middle;
+				continue;
+			}
+
+			LowRankFactorization candidate = build(network, decompositions, ranks);
+			if (accuracy(candidate.network.freeze(), set) >= target) {
+				best = candidate;
+				high = middle;
+				highRanks = ranks;
+			} else {
+				low = middle;
+				lowRanks = ranks;
+			}
+		}
+		return best;
+	}
+
+	// getters
+
+	/**
+	 * Returns the factorized network. It has a layer more for each factorized
+	 * one.
+	 */
+	public Network getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Returns the rank of each layer of the original network, 0 for the layers
+	 * that have not been factorized.
+	 */
+	public int[] getRanks() {
+		return ranks.clone();
+	}
+
+	/**
+	 * Returns the floating point operations of a feedforward of the original
+	 * network: two (a multiplication and an addition) for each weight.
+	 */
+	public long getOriginalFlops() {
+		return originalFlops;
+	}
+
+	/**
+	 * Returns the floating point operations of a feedforward of the factorized
+	 * network.
+	 */
+	public long getFlops() {
+		return flops;
+	}
+
+	/**
+	 * Returns how many times the factorized network takes less operations than
+	 * the original one.
+	 */
+	public float getFlopReduction() {
+		return (float) originalFlops / flops;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		Layer[] layers = network.getLayers();
+		for (int l = 0, f = 0; l < ranks.length; l++, f++) {
+			Layer layer = layers[f];
+			if (ranks[l] == 0) {
+				sb.append(String.format("Layer %d: %d -> %d, not factorized\n", l, layer.getInputNumber(),
+						layer.getNeuronNumber()));
+			} else {
+				Layer next = layers[++f];
+				sb.append(String.format("Layer %d: %d -> %d, rank %d\n", l, layer.getInputNumber(), next.getNeuronNumber(),
+						ranks[l]));
+			}
+		}
+		sb.append(String.format("FLOPs: %d -> %d (%.2fx)", originalFlops, flops, getFlopReduction()));
+		return sb.toString();
+	}
+
+	// factorization
+
+	/*
+	 * A layer of rank r takes r * (n_input + n_neurons) weights instead of n_input
+	 * * n_neurons.
+	 */
+	private static boolean isWorth(Layer layer, int rank) {
+		long n_input = layer.getInputNumber(), n_neurons = layer.getNeuronNumber();
+		return rank * (n_input + n_neurons) < n_input * n_neurons;
+	}
+
+	private static Decomposition[] decompose(Layer[] layers) {
+		Decomposition[] decompositions = new Decomposition[layers.length];
+		for (int l = 0; l < layers.length; l++)
+			if (isWorth(layers[l], 1))
+				decompositions[l] = new Decomposition(layers[l]);
+		return decompositions;
+	}
+
+	/*
+	 * Smallest rank of each layer that keeps the energy, 0 if it is not worth
+	 * factorizing the layer with it.
+	 */
+	private static int[] ranks(Decomposition[] decompositions, float energy) {
+		int[] ranks = new int[decompositions.length];
+		for (int l = 0; l < decompositions.length; l++)
+			if (decompositions[l] != null)
+				ranks[l] = decompositions[l].rank(energy);
+		return ranks;
+	}
+
+	private static LowRankFactorization build(Network network, Decomposition[] decompositions, int[] ranks) {
+		Layer[] layers = network.getLayers();
+		List<Layer> factorized = new ArrayList<>();
+		long originalFlops = 0, flops = 0;
+		int[] kept = new int[layers.length];
+
+		for (int l = 0; l < layers.length; l++) {
+			Layer layer = layers[l];
+			long n_input = layer.getInputNumber(), n_neurons = layer.getNeuronNumber();
+			originalFlops += 2 * n_input * n_neurons;
+
+			if (decompositions[l] != null && ranks[l] > 0 && isWorth(layer, ranks[l])) {
+				Layer[] pair = decompositions[l].factorize(layer, ranks[l]);
+				factorized.add(pair[0]);
+				factorized.add(pair[1]);
+				kept[l] = ranks[l];
+				flops += 2 * ranks[l] * (n_input + n_neurons);
+			} else {
+				float[][] weights = new float[(int) n_neurons][(int) n_input];
+				for (int i = 0; i < n_neurons; i++)
+					layer.getWeights(i, weights[i]);
+				factorized.add(new Layer((int) n_input, (int) n_neurons, layer.getActivationFunction(),
+						layer.getInitializer(), layer.getLearningRate(), weights, layer.getBiases().clone()));
+				flops += 2 * n_input * n_neurons;
+			}
+		}
+
+		Network result = Network.build(factorized.toArray(new Layer[factorized.size()]), network.getCostFunction());
+		return new LowRankFactorization(result, kept, originalFlops, flops);
+	}
+
+	private static float accuracy(InferenceModel model, DataSet set) {
+		int labelled = 0, correct = 0;
+		for (Match match : set)
+			if (match.hasLabel()) {
+				labelled++;
+				if (model.classify(match.getInput()) == match.getLabel())
+					correct++;
+			}
+		if (labelled == 0)
+			throw new IllegalArgumentException("The set has no labels.");
+		return (float) correct / labelled;
+	}
+
+	/*
+	 * Singular values and vectors of the weights matrix of a layer, sorted from
+	 * the greatest. If n_input <= n_neurons the vectors are the right singular
+	 * vectors (eigenvectors of W^T W, of length n_input), the left ones (of W W^T,
+	 * of length n_neurons) otherwise.
+	 */
+	private static final class Decomposition {
+
+		private final boolean right;
+		private final double[] energies; // squared singular values
+		private final double[][] vectors;
+		private final double total;
+
+		Decomposition(Layer layer) {
+			int rows = layer.getNeuronNumber(), cols = layer.getInputNumber();
+			right = cols <= rows;
+			int n = Math.min(rows, cols);
+
+			/*
+			 * Gram matrix, accumulated a row of W at a time (the lower triangle, mirrored
+			 * at the end).
+			 */
+			double[][] gram = new double[n][n];
+			float[] row = new float[cols];
+			if (right) {
+				for (int i = 0; i < rows; i++) {
+					layer.getWeights(i, row);
+					for (int a = 0; a < n; a++) {
+						double w = row[a];
+						if (w == 0)
+							continue;
+						double[] g = gram[a];
+						for (int b = 0; b <= a; b++)
+							g[b] += w * row[b];
+					}
+				}
+			} else {
+				double[][] w = new double[rows][cols];
+				for (int i = 0; i < rows; i++) {
+					layer.getWeights(i, row);
+					for (int j = 0; j < cols; j++)
+						w[i][j] = row[j];
+				}
+				for (int a = 0; a < n; a++)
+					for (int b = 0; b <= a; b++) {
+						double s = 0;
+						for (int j = 0; j < cols; j++)
+							s += w[a][j] * w[b][j];
+						gram[a][b] = s;
+					}
+			}
+			for (int a = 0; a < n; a++)
+				for (int b = a + 1; b < n; b++)
+					gram[a][b] = gram[b][a];
+
+			double[] d = new double[n];
+			double[] e = new double[n];
+			tridiagonalize(gram, d, e);
+			double[][] z = gram;
+			diagonalize(z, d, e);
+
+			// sorted from the greatest
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Double.compare(d[b], d[a]));
+
+			energies = new double[n];
+			vectors = new double[n][];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				energies[i] = Math.max(0, d[order[i]]);
+				vectors[i] = z[order[i]];
+				sum += energies[i];
+			}
+			total = sum;
+		}
+
+		/*
+		 * Smallest rank that keeps the fraction of the energy.
+		 */
+		int rank(float energy) {
+			double target = energy * total, sum = 0;
+			for (int r = 0; r < energies.length; r++) {
+				sum += energies[r];
+				if (sum >= target)
+					return r + 1;
+			}
+			return energies.length;
+		}
+
+		/*
+		 * The two layers of rank r that replace the layer.
+		 */
+		Layer[] factorize(Layer layer, int r) {
+			int rows = layer.getNeuronNumber(), cols = layer.getInputNumber();
+			float[][] first = new float[r][cols];
+			float[][] second = new float[rows][r];
+			float[] row = new float[cols];
+
+			if (right) {
+				// W ~ (W V) V^T
+				for (int k = 0; k < r; k++)
+					for (int j = 0; j < cols; j++)
+						first[k][j] = (float) vectors[k][j];
+				for (int i = 0; i < rows; i++) {
+					layer.getWeights(i, row);
+					for (int k = 0; k < r; k++) {
+						double s = 0;
+						for (int j = 0; j < cols; j++)
+							s += row[j] * vectors[k][j];
+						second[i][k] = (float) s;
+					}
+				}
+			} else {
+				// W ~ U (U^T W)
+				double[][] projection = new double[r][cols];
+				for (int i = 0; i < rows; i++) {
+					layer.getWeights(i, row);
+					for (int k = 0; k < r; k++) {
+						double u = vectors[k][i];
+						second[i][k] = (float) u;
+						for (int j = 0; j < cols; j++)
+							projection[k][j] += u * row[j];
+					}
+				}
+				for (int k = 0; k < r; k++)
+					for (int j = 0; j < cols; j++)
+						first[k][j] = (float) projection[k][j];
+			}
+
+			return new Layer[] {
+					new Layer(cols, r, ActivationFunction.Identity, layer.getInitializer(), layer.getLearningRate(), first,
+							new float[r]),
+					new Layer(r, rows, layer.getActivationFunction(), layer.getInitializer(), layer.getLearningRate(), second,
+							layer.getBiases().clone()) };
+		}
+	}
+
+	/*
+	 * Householder reduction of the symmetric matrix v to tridiagonal form: on
+	 * return d holds the diagonal, e the subdiagonal (in e[1..n-1]) and v the
+	 * transposed orthogonal transformation. The matrix is accessed transposed
+	 * (v[j][k] for the element at row k, column j), so that the inner loops, which
+	 * run along columns, read contiguous memory.
+	 */
+	private static void tridiagonalize(double[][] v, double[] d, double[] e) {
+		int n = d.length;
+		for (int j = 0; j < n; j++)
+			d[j] = v[j][n - 1];
+
+		for (int i = n - 1; i > 0; i--) {
+			double scale = 0, h = 0;
+			for (int k = 0; k < i; k++)
+				scale += Math.abs(d[k]);
+
+			if (scale == 0) {
+				e[i] = d[i - 1];
+				for (int j = 0; j < i; j++) {
+					d[j] = v[j][i - 1];
+					v[j][i] = 0;
+					v[i][j] = 0;
+				}
+			} else {
+				for (int k = 0; k < i; k++) {
+					d[k] /= scale;
+					h += d[k] * d[k];
+				}
+				double f = d[i - 1];
+				double g = Math.sqrt(h);
+				if (f > 0)
+					g = -g;
+				e[i] = scale * g;
+				h -= f * g;
+				d[i - 1] = f - g;
+				for (int j = 0; j < i; j++)
+					e[j] = 0;
+
+				for (int j = 0; j < i; j++) {
+					f = d[j];
+					v[i][j] = f;
+					g = e[j] + v[j][j] * f;
+					for (int k = j + 1; k <= i - 1; k++) {
+						g += v[j][k] * d[k];
+						e[k] += v[j][k] * f;
+					}
+					e[j] = g;
+				}
+				f = 0;
+				for (int j = 0; j < i; j++) {
+					e[j] /= h;
+					f += e[j] * d[j];
+				}
+				double hh = f / (h + h);
+				for (int j = 0; j < i; j++)
+					e[j] -= hh * d[j];
+				for (int j = 0; j < i; j++) {
+					f = d[j];
+					g = e[j];
+					for (int k = j; k <= i - 1; k++)
+						v[j][k] -= (f * e[k] + g * d[k]);
+					d[j] = v[j][i - 1];
+					v[j][i] = 0;
+				}
+			}
+			d[i] = h;
+		}
+
+		// accumulation of the transformations
+		for (int i = 0; i < n - 1; i++) {
+			v[i][n - 1] = v[i][i];
+			v[i][i] = 1;
+			double h = d[i + 1];
+			if (h != 0) {
+				for (int k = 0; k <= i; k++)
+					d[k] = v[i + 1][k] / h;
+				for (int j = 0; j <= i; j++) {
+					double g = 0;
+					for (int k = 0; k <= i; k++)
+						g += v[i + 1][k] * v[j][k];
+					for (int k = 0; k <= i; k++)
+						v[j][k] -= g * d[k];
+				}
+			}
+			for (int k = 0; k <= i; k++)
+				v[i + 1][k] = 0;
+		}
+		for (int j = 0; j < n; j++) {
+			d[j] = v[j][n - 1];
+			v[j][n - 1] = 0;
+		}
+		v[n - 1][n - 1] = 1;
+		e[0] = 0;
+	}
+
+	/*
+	 * QL algorithm with implicit shifts on the tridiagonal matrix (d, e): on
+	 * return d holds the eigenvalues and the rows of z (the transformation
+	 * returned by tridiagonalize) the eigenvectors. The rotations are
+	 * applied to rows, which are contiguous in memory.
+	 */
+	private static void diagonalize(double[][] z, double[] d, double[] e) {
+		int n = d.length;
+		for (int i = 1; i < n; i++)
+			e[i - 1] = e[i];
+		e[n - 1] = 0;
+
+		double f = 0, tst1 = 0;
+		final double eps = Math.ulp(1.0);
+		for (int l = 0; l < n; l++) {
+			tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+			int m = l;
+			while (m < n - 1 && Math.abs(e[m]) > eps * tst1)
+				m++;
+
+			if (m > l) {
+				do {
+					double g = d[l];
+					double p = (d[l + 1] - g) / (2 * e[l]);
+					double r = Math.hypot(p, 1);
+					if (p < 0)
+						r = -r;
+					d[l] = e[l] / (p + r);
+					d[l + 1] = e[l] * (p + r);
+					double dl1 = d[l + 1];
+					double h = g - d[l];
+					for (int i = l + 2; i < n; i++)
+						d[i] -= h;
+					f += h;
+
+					p = d[m];
+					double c = 1, c2 = c, c3 = c;
+					double el1 = e[l + 1];
+					double s = 0, s2 = 0;
+					for (int i = m - 1; i >= l; i--) {
+						c3 = c2;
+						c2 = c;
+						s2 = s;
+						g = c * e[i];
+						h = c * p;
+						r = Math.hypot(p, e[i]);
+						e[i + 1] = s * r;
+						s = e[i] / r;
+						c = p / r;
+						p = c * d[i] - s * g;
+						d[i + 1] = h + s * (c * g + s * d[i]);
+
+						double[] zi = z[i], zi1 = z[i + 1];
+						for (int k = 0; k < n; k++) {
+							h = zi1[k];
+							zi1[k] = s * zi[k] + c * h;
+							zi[k] = c * zi[k] - s * h;
+						}
+					}
+					p = -s * s2 * c3 * el1 * e[l] / dl1;
+					e[l] = s * p;
+					d[l] = c * p;
+				} while (Math.abs(e[l]) > eps * tst1);
+			}
+			d[l] += f;
+			e[l] = 0;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Weights matrix backed by a read-only memory-mapped region of a .net file.
+ * The rows are not copied on the heap: the pages are loaded lazily by the
+ * operating system and are shared, through the page cache, by all the
+ * processes that map the same file.
+ *
+ * A single mapping can't be bigger than 2 GB, so the matrix is split in blocks
+ * made of whole rows.
+ */
+final class MappedWeights implements WeightStorage {
+
+	private static final long MAX_MAPPED_REGION = 1 << 30;
+
+	private final int rows;
+	private final int cols;
+	private final int rowsPerBlock;
+	private final FloatBuffer[] blocks;
+
+	/**
+	 * Maps the rows * cols little-endian floats that start at the given position
+	 * of the channel. The mapping stays valid after the channel is closed.
+	 */
+	MappedWeights(FileChannel channel, long position, int rows, int cols) throws IOException {
+		this.rows = rows;
+		this.cols = cols;
+
+		long rowBytes = (long) cols * Float.BYTES;
+		rowsPerBlock = (int) Math.max(1, Math.min(rows, MAX_MAPPED_REGION / rowBytes));
+		blocks = new FloatBuffer[(rows + rowsPerBlock - 1) / rowsPerBlock];
+
+		for (int b = 0; b < blocks.length; b++) {
+			int n = Math.min(rowsPerBlock, rows - b * rowsPerBlock);
+			blocks[b] = channel
+					.map(FileChannel.MapMode.READ_ONLY, position + b * rowsPerBlock * rowBytes, n * rowBytes)
+					.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		}
+	}
+
+	@Override
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public int getCols() {
+		return cols;
+	}
+
+	@Override
+	public float dot(int row, float[] input) {
+		FloatBuffer block = blocks[row / rowsPerBlock];
+		int base = (row % rowsPerBlock) * cols;
+
+		float res = 0;
+		for (int j = 0; j < cols; j++)
+			res += block.get(base + j) * input[j];
+		return res;
+	}
+
+	@Override
+	public void getRow(int row, float[] dst) {
+		FloatBuffer block = blocks[row / rowsPerBlock].duplicate();
+		block.position((row % rowsPerBlock) * cols);
+		block.get(dst, 0, cols);
+	}
+}
@@ -0,0 +1,298 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import main.math.ActivationFunction;
+
+/**
+ * Compiles a network into an InferenceModel specialised for its exact
+ * structure. The source of a class with one method per layer is generated,
+ * with the dimensions of each layer as constants and the activation functions
+ * inlined; small layers are completely unrolled, so each weight is read at a
+ * constant index and no loop is left. The source is compiled in memory with the
+ * system Java compiler and defined as a hidden class that holds the weights in
+ * static final fields. Only the references to the weight arrays are constants
+ * for the JIT: the elements can still be changed, so they are loaded from memory
+ * on every call.
+ *
+ * The compilation takes some hundreds of milliseconds and is meant to be done
+ * once, when a model is deployed. If the system Java compiler is not available
+ * (i.e. on a JRE) or the compilation fails, the model returned is the one of
+ * Network.freeze.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * InferenceModel model = ModelCompiler.compile(network);
+ * float[] output = model.predict(input);
+ * </pre>
+ */
+public final class ModelCompiler {
+
+	/*
+	 * a layer is completely unrolled if it has at most this number of weights, so
+	 * that the method stays small enough to be compiled by the JIT.
+	 */
+	private static final int UNROLL_WEIGHTS = 512;
+
+	/*
+	 * the neurons of a layer are unrolled if they are at most this number, the
+	 * inputs if they are at most this number.
+	 */
+	private static final int UNROLL_NEURONS = 64;
+	private static final int UNROLL_INPUTS = 32;
+
+	private static final String CLASS_NAME = "GeneratedModel";
+
+	private ModelCompiler() {
+	}
+
+	/**
+	 * Returns true if the system Java compiler is available.
+	 */
+	public static boolean isAvailable() {
+		return ToolProvider.getSystemJavaCompiler() != null;
+	}
+
+	/**
+	 * Compiles the network into a specialised model, or freezes it if it can't be
+	 * compiled.
+	 *
+	 * @param network the network
+	 * @return the compiled (or frozen) model
+	 */
+	public static InferenceModel compile(Network network) {
+		Layer[] layers = network.getPublishedLayers();
+		try {
+			if (isAvailable())
+				return define(generate(layers), data(layers));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return new DenseModel(layers);
+	}
+
+	/*
+	 * Weights (row by row) and biases of each layer, in this order.
+	 */
+	private static float[][] data(Layer[] layers) {
+		float[][] data = new float[layers.length * 2][];
+		for (int l = 0; l < layers.length; l++) {
+			Layer layer = layers[l];
+			int n_input = layer.getInputNumber();
+			float[] weights = new float[layer.getNeuronNumber() * n_input];
+			float[] row = new float[n_input];
+			for (int i = 0; i < layer.getNeuronNumber(); i++) {
+				layer.getWeights(i, row);
+				System.arraycopy(row, 0, weights, i * n_input, n_input);
+			}
+			data[2 * l] = weights;
+			data[2 * l + 1] = layer.getBiases().clone();
+		}
+		return data;
+	}
+
+	/*
+	 * Generates the source of the specialised model.
+	 */
+	static String generate(Layer[] layers) {
+
+		StringBuilder sb = new StringBuilder();
+		int n = layers.length;
+
+		sb.append("package main;\n\n");
+		sb.append("import java.lang.invoke.MethodHandles;\n");
+		sb.append("import main.math.ActivationFunction;\n\n");
+		sb.append("final class ").append(CLASS_NAME).append(" implements InferenceModel {\n\n");
+
+		for (int l = 0; l < n; l++)
+			sb.append("\tprivate static final float[] W").append(l).append(", B").append(l).append(";\n");
+
+		sb.append("\n\tstatic {\n");
+		sb.append("\t\tfloat[][] data;\n");
+		sb.append("\t\ttry {\n");
+		sb.append("\t\t\tdata = MethodHandles.classData(MethodHandles.lookup(), \"_\", float[][].class);\n");
+		sb.append("\t\t} catch (IllegalAccessException e) {\n");
+		sb.append("\t\t\tthrow new ExceptionInInitializerError(e);\n");
+		sb.append("\t\t}\n");
+		for (int l = 0; l < n; l++)
+			sb.append("\t\tW").append(l).append(" = data[").append(2 * l).append("];\n\t\tB").append(l)
+					.append(" = data[").append(2 * l + 1).append("];\n");
+		sb.append("\t}\n\n");
+
+		/*
+		 * exactly sized buffers for the hidden layers, one set per thread. A lambda
+		 * would be a class of its own, which can't see a hidden class by name.
+		 */
+		sb.append("\tprivate static final ThreadLocal<float[][]> SCRATCH = new ThreadLocal<>();\n\n");
+
+		sb.append("\tpublic int getInputNumber() {\n\t\treturn ").append(layers[0].getInputNumber())
+				.append(";\n\t}\n\n");
+		sb.append("\tpublic int getOutputNumber() {\n\t\treturn ").append(layers[n - 1].getNeuronNumber())
+				.append(";\n\t}\n\n");
+
+		sb.append("\tpublic void predict(float[] input, float[] output) {\n");
+		sb.append("\t\tfloat[][] s = SCRATCH.get();\n");
+		sb.append("\t\tif (s == null) {\n\t\t\ts = new float[][] {");
+		for (int l = 0; l < n - 1; l++)
+			sb.append(l > 0 ? ", " : " ").append("new float[").append(layers[l].getNeuronNumber()).append("]");
+		sb.append(" };\n\t\t\tSCRATCH.set(s);\n\t\t}\n");
+		for (int l = 0; l < n; l++)
+			sb.append("\t\tlayer").append(l).append("(").append(l == 0 ? "input" : "s[" + (l - 1) + "]").append(", ")
+					.append(l == n - 1 ? "output" : "s[" + l + "]").append(");\n");
+		sb.append("\t}\n");
+
+		for (int l = 0; l < n; l++)
+			generateLayer(sb, l, layers[l]);
+
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static void generateLayer(StringBuilder sb, int l, Layer layer) {
+
+		int n_input = layer.getInputNumber();
+		int n_neurons = layer.getNeuronNumber();
+		String w = "W" + l;
+		String b = "B" + l;
+		ActivationFunction f = layer.getActivationFunction();
+
+		sb.append("\n\tprivate static void layer").append(l).append("(float[] in, float[] out) {\n");
+
+		if (n_neurons <= UNROLL_NEURONS
+				&& ((long) n_neurons * n_input <= UNROLL_WEIGHTS || n_input > UNROLL_INPUTS)) {
+			// one statement per neuron, with constant offsets
+			sb.append("\t\tfloat z;\n");
+			for (int i = 0; i < n_neurons; i++) {
+				sb.append("\t\tz = ");
+				sum(sb, w, String.valueOf(i * n_input), n_input);
+				sb.append(" + ").append(b).append('[').append(i).append("];\n");
+				sb.append("\t\tout[").append(i).append("] = ").append(activation(f)).append(";\n");
+			}
+		} else {
+			sb.append("\t\tfor (int i = 0, o = 0; i < ").append(n_neurons).append("; i++, o += ").append(n_input)
+					.append(") {\n");
+			sb.append("\t\t\tfloat z = ");
+			sum(sb, w, "o", n_input);
+			sb.append(" + ").append(b).append("[i];\n");
+			sb.append("\t\t\tout[i] = ").append(activation(f)).append(";\n");
+			sb.append("\t\t}\n");
+		}
+
+		sb.append("\t}\n");
+	}
+
+	/*
+	 * Dot product between the row of the weights at the given offset and the
+	 * input: unrolled for few inputs (summed in the same order of the Layer), a
+	 * constant trip count loop otherwise.
+	 */
+	private static void sum(StringBuilder sb, String w, String offset, int n_input) {
+		if (n_input > UNROLL_INPUTS) {
+			sb.append("DenseModel.dot(").append(w).append(", ").append(offset).append(", in, ").append(n_input)
+					.append(")");
+			return;
+		}
+		boolean constant = !offset.equals("o");
+		for (int j = 0; j < n_input; j++) {
+			if (j > 0)
+				sb.append(" + ");
+			sb.append(w).append('[');
+			if (constant)
+				sb.append(Integer.parseInt(offset) + j);
+			else
+				sb.append(j == 0 ? "o" : "o + " + j);
+			sb.append("] * in[").append(j).append(']');
+		}
+	}
+
+	/*
+	 * Expression of the activation function applied to z, the same computed by
+	 * the enum.
+	 */
+	private static String activation(ActivationFunction f) {
+		switch (f) {
+		case Sigmoid:
+			return "1 / (1 + (float) Math.exp(-z))";
+		case ReLU:
+			return "z <= 0 ? 0 : z";
+		case Leaky_ReLU:
+			return "z <= 0 ? 0.01f * z : z";
+		case ArcTan:
+			return "(float) Math.atan(z)";
+		case Identity:
+			return "z";
+		default:
+			return "ActivationFunction." + f.name() + ".execute(z)";
+		}
+	}
+
+	/*
+	 * Compiles the source in memory and defines it as a hidden class in this
+	 * package, with the weights as class data.
+	 */
+	private static InferenceModel define(String source, float[][] data) throws Exception {
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		StringWriter diagnostics = new StringWriter();
+		ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+
+		JavaFileObject unit = new SimpleJavaFileObject(URI.create("string:///main/" + CLASS_NAME + ".java"),
+				JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+
+		try (StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, null);
+				JavaFileManager manager = new ForwardingJavaFileManager<JavaFileManager>(standard) {
+					@Override
+					public JavaFileObject getJavaFileForOutput(Location location, String className,
+							JavaFileObject.Kind kind, FileObject sibling) {
+						return new SimpleJavaFileObject(URI.create("bytes:///" + className + kind.extension), kind) {
+							@Override
+							public OutputStream openOutputStream() {
+								return bytecode;
+							}
+						};
+					}
+				}) {
+
+			// the classes of the framework must be visible to the compiler
+			String classpath = System.getProperty("java.class.path");
+			try {
+				File location = new File(InferenceModel.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+				classpath = location.getPath() + File.pathSeparator + classpath;
+			} catch (Exception e) {
+				// keep the class path of the JVM
+			}
+
+			List<String> options = Arrays.asList("-classpath", classpath, "-proc:none", "-g:none", "-nowarn");
+			if (!compiler.getTask(diagnostics, manager, null, options, null, Collections.singletonList(unit)).call())
+				throw new IOException("Unable to compile the model:\n" + diagnostics);
+		}
+
+		MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(bytecode.toByteArray(),
+				data, true);
+		return (InferenceModel) lookup.lookupClass().getDeclaredConstructor().newInstance();
+	}
+}
@@ -0,0 +1,292 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of networks restored from files, for serving many models from the same
+ * JVM. Networks are keyed by the canonical path of their file and kept until
+ * the memory they take (estimated from the size of their layers) exceeds the
+ * budget of the registry: then the least recently used ones are evicted.
+ *
+ * When a file changes (its size or modification time is different from the
+ * ones it had when it was restored) the network is restored again the next time
+ * it is requested; the file is checked at most once every check interval. A new
+ * version of a model should be written to a temporary file and then renamed, so
+ * that a partially written file is never read. If it can't be restored, the
+ * previous version is kept.
+ *
+ * Concurrent requests of the same file while it is being restored wait for the
+ * same restore instead of restoring it again. All the methods are thread-safe;
+ * the networks returned are shared among the callers.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * ModelRegistry registry = new ModelRegistry.Builder().setMemoryBudget(512L &lt;&lt; 20).build();
+ * Network network = registry.get(new File("models/digits.net"));
+ * </pre>
+ */
+public class ModelRegistry {
+
+	private final long memoryBudget;
+	private final long checkInterval;
+	private final boolean mapped;
+
+	/*
+	 * cached entries in access order, from the least recently used. Guarded by
+	 * this.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryUsage = 0;
+
+	/*
+	 * restores in progress.
+	 */
+	private final ConcurrentHashMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<>();
+
+	private static class Entry {
+		final Network network;
+		final long lastModified;
+		final long length;
+		final long size;
+
+		/*
+		 * last time the file has been checked for changes.
+		 */
+		volatile long checked;
+
+		Entry(Network network, long lastModified, long length, long size) {
+			this.network = network;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.size = size;
+			this.checked = System.nanoTime();
+		}
+	}
+
+	private ModelRegistry(Builder builder) {
+		this.memoryBudget = builder.memoryBudget;
+		this.checkInterval = TimeUnit.MILLISECONDS.toNanos(builder.checkInterval);
+		this.mapped = builder.mapped;
+	}
+
+	/*
+	 * Builder pattern to configure the registry.
+	 */
+	public static class Builder {
+
+		private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+		private long checkInterval = 1000;
+		private boolean mapped = false;
+
+		/**
+		 * Sets the memory, in bytes, the cached networks can take. The default one is
+		 * half of the maximum heap size.
+		 */
+		public Builder setMemoryBudget(long bytes) {
+			if (bytes < 0)
+				throw new IllegalArgumentException("The memory budget must be positive.");
+			this.memoryBudget = bytes;
+			return this;
+		}
+
+		/**
+		 * Sets how often, at most, the file of a cached network is checked for
+		 * changes. The default one is one second; zero checks it at each request.
+		 */
+		public Builder setCheckInterval(long millis) {
+			if (millis < 0)
+				throw new IllegalArgumentException("The check interval must be positive.");
+			this.checkInterval = millis;
+			return this;
+		}
+
+		/**
+		 * If true, the networks are restored with Network.mapNetwork: the weights stay
+		 * in the page cache and only the rest of the network counts in the memory
+		 * budget. The files must be in the binary .net format.
+		 */
+		public Builder setMapped(boolean mapped) {
+			this.mapped = mapped;
+			return this;
+		}
+
+		public ModelRegistry build() {
+			return new ModelRegistry(this);
+		}
+	}
+
+	// getters
+
+	/**
+	 * Returns the estimated memory taken by the cached networks, in bytes.
+	 */
+	public synchronized long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Returns the number of cached networks.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns true if the network of the file is cached.
+	 */
+	public synchronized boolean contains(File file) throws IOException {
+		return entries.containsKey(file.getCanonicalPath());
+	}
+
+	// object
+
+	/**
+	 * Returns the network restored from the file, restoring it only if it is not
+	 * cached or if the file has changed.
+	 *
+	 * @param file the file containing the network
+	 * @return the network, shared with the other callers
+	 * @throws IOException if the network is not cached and can't be restored
+	 */
+	public Network get(File file) throws IOException {
+
+		String key = file.getCanonicalPath();
+
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key); // also moves it to the end of the access order
+		}
+
+		if (entry != null) {
+
+			long now = System.nanoTime();
+			if (now - entry.checked < checkInterval)
+				return entry.network;
+			entry.checked = now;
+
+			// a missing file keeps the last version in service
+			if (!file.exists() || (file.lastModified() == entry.lastModified && file.length() == entry.length))
+				return entry.network;
+
+			try {
+				return load(key, file).network;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return entry.network;
+			}
+		}
+
+		return load(key, file).network;
+	}
+
+	/*
+	 * Restores the network, or waits for the restore already in progress for the
+	 * same file.
+	 */
+	private Entry load(String key, File file) throws IOException {
+
+		FutureTask<Entry> task = new FutureTask<>(() -> {
+			long lastModified = file.lastModified();
+			long length = file.length();
+			Network network = mapped ? Network.mapNetwork(file) : Network.restoreNetwork(file);
+			if (network == null)
+				throw new IOException(String.format("Unable to restore the network from <%s>.", file.getPath()));
+			Entry entry = new Entry(network, lastModified, length, sizeOf(network));
+			put(key, entry);
+			return entry;
+		});
+
+		FutureTask<Entry> running = loading.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the network to be restored.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/*
+	 * Caches the entry and evicts the least recently used ones, but not the new
+	 * one, until the memory usage is within the budget.
+	 */
+	private synchronized void put(String key, Entry entry) {
+
+		Entry old = entries.put(key, entry);
+		if (old != null)
+			memoryUsage -= old.size;
+		memoryUsage += entry.size;
+
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (memoryUsage > memoryBudget && iterator.hasNext()) {
+			Entry eldest = iterator.next().getValue();
+			if (eldest == entry)
+				continue;
+			memoryUsage -= eldest.size;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Removes the network of the file from the cache.
+	 */
+	public synchronized void invalidate(File file) throws IOException {
+		Entry entry = entries.remove(file.getCanonicalPath());
+		if (entry != null)
+			memoryUsage -= entry.size;
+	}
+
+	/**
+	 * Removes all the networks from the cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		memoryUsage = 0;
+	}
+
+	/**
+	 * Returns an estimate of the heap memory taken by the network, in bytes:
+	 * weights, biases and the buffers of each layer. Weights that are still
+	 * memory-mapped or off-heap are not counted, the other storages (half
+	 * precision, sparse) count for the memory they take.
+	 */
+	public static long sizeOf(Network network) {
+		final long header = 16; // object header and length of an array
+		long size = 0;
+		for (Layer layer : network.getLayers()) {
+			long n_neurons = layer.getNeuronNumber();
+			long n_input = layer.getInputNumber();
+			if (!layer.isBacked())
+				size += header + n_neurons * (header + n_input * Float.BYTES);
+			else
+				size += layer.getStorage().getHeapSize();
+			size += 2 * (header + n_neurons * Float.BYTES); // biases and activations
+		}
+		return size;
+	}
+}
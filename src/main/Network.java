@@ -1,20 +1,27 @@
 package main;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 
 import main.math.CostFunction;
 import main.math.MathUtils;
+import main.training.AugmentedDataSet;
 import main.training.DataSet;
 import main.training.Match;
 
@@ -22,7 +29,7 @@ import main.training.Match;
  * The Network object is composed of several Layers. It exposes the method to
  * create, train and execute a simple (non convolutional) DFF neural network.
  */
-public class Network implements Serializable {
+public class Network implements Serializable, AutoCloseable {
 
 	private static final long serialVersionUID = -6735634455779850654L;
 
@@ -43,30 +50,70 @@ public class Network implements Serializable {
 	 */
 	protected transient File file;
 
-	/*
-	 * instance of the Gson class (singleton with lazy initialization). We can
-	 * expect that the object translation in json is not frequent and above all that
-	 * it may not occur.
-	 */
-	protected transient static Gson gson;
-
 	protected static enum State {
 		training, executing, restored, saved, not_restored, not_saved
 	};
 
 	protected transient State state = State.executing;
 
+	/*
+	 * if not null, it takes the checkpoints during the training.
+	 */
+	private transient Checkpointer checkpointer;
+
+	/*
+	 * if not null, the outputs of feedforward are cached.
+	 */
+	private transient InferenceCache cache;
+
 	protected transient int current_epoch = 0;
 	protected transient int total_epoch = 0;
 	protected transient int current_match = 0;
 	protected transient int total_matches = 0;
 
+	/*
+	 * if not null, the targets of the training are given by the teacher.
+	 */
+	private transient Distillation distillation;
+
+	// stuff for resuming the training
+	protected transient DataSet training_set;
+	protected transient int batch_size = 0;
+	protected transient boolean shuffle = false;
+	protected transient long seed = 0;
+
+	/*
+	 * Layers as seen by predict, with their version. The layers are replaced as a
+	 * whole (copy-on-write) by a swap, so a prediction reads this reference once
+	 * and never sees a mix of two versions, without locking.
+	 */
+	private static final class Parameters {
+		final Layer[] layers;
+		final long version;
+
+		Parameters(Layer[] layers, long version) {
+			this.layers = layers;
+			this.version = version;
+		}
+	}
+
+	private transient volatile Parameters parameters;
+
 	private Network(Builder builder) {
 		this.layers = builder.layers;
 		this.costFunction = builder.costFunction;
 		logger = new ConsoleLogger(this);
 	}
 
+	/*
+	 * Used to restore a network whose layers are already known and checked.
+	 */
+	Network(Layer[] layers, CostFunction costFunction) {
+		this.layers = layers;
+		this.costFunction = costFunction;
+		logger = new ConsoleLogger(this);
+	}
+
 	/*
 	 * Builder pattern to build efficiently the network.
 	 * 
@@ -154,12 +201,438 @@ public class Network implements Serializable {
 		return layers[layers.length - 1];
 	}
 
+	public CostFunction getCostFunction() {
+		return costFunction;
+	}
+
 	// misc
 
 	public void verbose(boolean verbose) {
 		this.verbose = verbose;
 	}
 
+	/**
+	 * Sets the checkpointer that takes the checkpoints of the network during the
+	 * training, or null to disable them.
+	 */
+	public void setCheckpointer(Checkpointer checkpointer) {
+		this.checkpointer = checkpointer;
+	}
+
+	/**
+	 * Sets the cache of the outputs of feedforward, or null to disable it. The
+	 * cache is cleared, and must not be used by other networks.
+	 */
+	public void setInferenceCache(InferenceCache cache) {
+		if (cache != null)
+			cache.clear();
+		this.cache = cache;
+	}
+
+	public InferenceCache getInferenceCache() {
+		return cache;
+	}
+
+	// versions
+
+	/**
+	 * Returns the version of the parameters used by predict. It starts from zero
+	 * and is incremented by each swap and restore.
+	 */
+	public long getVersion() {
+		return getParameters().version;
+	}
+
+	/*
+	 * Number of changes made in place to the weights of the current layers (by
+	 * the training or the setters of the layers), which do not change the version.
+	 */
+	long getModifications() {
+		long modifications = 0;
+		for (Layer layer : getParameters().layers)
+			modifications += layer.getModifications();
+		return modifications;
+	}
+
+	private Parameters getParameters() {
+		Parameters p = parameters;
+		if (p == null) {
+			synchronized (this) {
+				// i.e. a network deserialized through Gson or the Java serialization
+				if (parameters == null)
+					parameters = new Parameters(layers, 0);
+				p = parameters;
+			}
+		}
+		return p;
+	}
+
+	/*
+	 * Replaces the layers and the cost function, publishing them with a new
+	 * version.
+	 */
+	private synchronized long publish(Layer[] layers, CostFunction costFunction) {
+		long version = getParameters().version + 1;
+		this.layers = layers;
+		this.costFunction = costFunction;
+		parameters = new Parameters(layers, version);
+		return version;
+	}
+
+	/**
+	 * Atomically replaces the layers of this network with the ones of the given
+	 * network, that must have the same number of inputs and outputs. The
+	 * predictions in progress complete with the previous layers, the following
+	 * ones use the new layers: none of them sees a mix of the two. The given
+	 * network must not be used anymore.
+	 * 
+	 * @param network the network with the new parameters
+	 * @return the new version
+	 */
+	public long swap(Network network) {
+		if (network.getInputLayer().getInputNumber() != getInputLayer().getInputNumber())
+			throw new IllegalArgumentException(String.format("network.n_input[%d] != n_input[%d].",
+					network.getInputLayer().getInputNumber(), getInputLayer().getInputNumber()));
+		if (network.getOutputLayer().getNeuronNumber() != getOutputLayer().getNeuronNumber())
+			throw new IllegalArgumentException(String.format("network.n_output[%d] != n_output[%d].",
+					network.getOutputLayer().getNeuronNumber(), getOutputLayer().getNeuronNumber()));
+		return publish(network.layers, network.costFunction);
+	}
+
+	/**
+	 * Atomically replaces weights and biases of all the layers (copy-on-write):
+	 * new layers with the given parameters and the same structure are created and
+	 * swapped with the current ones, which are not modified. The arrays are used
+	 * as they are and must not be modified afterwards. Unlike Layer.setWeights and
+	 * Layer.setBiases, this is safe while the network is serving predictions.
+	 * 
+	 * @param weights the weights matrix of each layer
+	 * @param biases  the biases vector of each layer
+	 * @return the new version
+	 */
+	public long swapParameters(float[][][] weights, float[][] biases) {
+		Layer[] current = layers;
+		if (weights.length != current.length || biases.length != current.length)
+			throw new IllegalArgumentException(String.format("weights.length[%d] and biases.length[%d] != layers[%d].",
+					weights.length, biases.length, current.length));
+
+		Layer[] next = new Layer[current.length];
+		for (int i = 0; i < current.length; i++) {
+			Layer layer = current[i];
+			if (weights[i].length != layer.getNeuronNumber() || weights[i][0].length != layer.getInputNumber())
+				throw new IllegalArgumentException(String.format("weights[%d] is not a %dx%d matrix.", i,
+						layer.getNeuronNumber(), layer.getInputNumber()));
+			if (biases[i].length != layer.getNeuronNumber())
+				throw new IllegalArgumentException(String.format("biases[%d].length[%d] != n_neurons[%d].", i,
+						biases[i].length, layer.getNeuronNumber()));
+
+			next[i] = new Layer(layer.getInputNumber(), layer.getNeuronNumber(), layer.getActivationFunction(),
+					layer.getInitializer(), layer.getLearningRate(), weights[i], biases[i]);
+		}
+		return publish(next, costFunction);
+	}
+
+	/**
+	 * Atomically replaces the layers with copies whose weights are stored in the
+	 * given precision (copy-on-write, as swapParameters). Half precision weights
+	 * halve the memory taken by the network and the size of its .net file, and
+	 * speed up the feedforward of the networks bound by the memory bandwidth; the
+	 * sums are still computed in float. If the network is trained, the weights
+	 * of each layer return to Float32.
+	 * 
+	 * @param precision the precision of the weights
+	 * @return the new version
+	 */
+	public long setPrecision(Precision precision) {
+		Layer[] current = layers;
+		Layer[] next = new Layer[current.length];
+		for (int i = 0; i < current.length; i++)
+			next[i] = current[i].withPrecision(precision);
+		return publish(next, costFunction);
+	}
+
+	/**
+	 * Atomically replaces the layers with copies whose weights are stored off-heap
+	 * (copy-on-write, as swapParameters): they no longer count in the heap size,
+	 * which can be sized for the requests only, and are released by close. If the
+	 * network is trained, the weights of each layer are copied back on the heap.
+	 * 
+	 * @return the new version
+	 */
+	public long moveOffHeap() {
+		Layer[] current = layers;
+		Layer[] next = new Layer[current.length];
+		for (int i = 0; i < current.length; i++)
+			next[i] = current[i].offHeap();
+		return publish(next, costFunction);
+	}
+
+	/**
+	 * Releases the off-heap memory of the weights of the current layers, without
+	 * waiting for the garbage collector. The predictions in progress complete
+	 * before the memory is released; the network can't be used anymore (the
+	 * following predictions throw an IllegalStateException).
+	 */
+	@Override
+	public void close() {
+		for (Layer layer : getParameters().layers)
+			layer.release();
+	}
+
+	/**
+	 * Prunes the network zeroing the weights with the smallest magnitude, so that
+	 * the given fraction of them is zero: either of all the weights of the
+	 * network (global), which prunes more the layers with more redundant weights,
+	 * or of the weights of each layer. The pruned weights stay zero if the
+	 * network is trained (fine-tuned) afterwards; invoke compress to store the
+	 * pruned layers in a sparse format.
+	 * 
+	 * @param sparsity the fraction of weights to zero, in [0, 1]
+	 * @param global   whether the fraction is of all the weights or of each layer
+	 */
+	public void prune(float sparsity, boolean global) {
+		if (!(sparsity >= 0 && sparsity <= 1))
+			throw new IllegalArgumentException("The sparsity must be in [0, 1].");
+
+		if (global)
+			prune(layers, sparsity);
+		else
+			for (Layer layer : layers)
+				prune(new Layer[] { layer }, sparsity);
+	}
+
+	/**
+	 * Prunes the network gradually, training it after each step so that the
+	 * remaining weights compensate for the pruned ones: the sparsity grows
+	 * linearly up to the given one in the given number of steps.
+	 * 
+	 * @param set       the dataset used for the training
+	 * @param sparsity  the final fraction of weights to zero, in [0, 1]
+	 * @param global    whether the fraction is of all the weights or of each layer
+	 * @param steps     the number of pruning steps
+	 * @param batchSize batch size of the training after each step
+	 * @param epochs    epochs of the training after each step
+	 */
+	public void prune(DataSet set, float sparsity, boolean global, int steps, int batchSize, int epochs) {
+		if (steps < 1)
+			throw new IllegalArgumentException("The number of steps must be positive.");
+
+		for (int step = 1; step <= steps; step++) {
+			prune(sparsity * step / steps, global);
+			train(set, batchSize, epochs);
+		}
+	}
+
+	/*
+	 * Zeroes the given fraction of the weights of the layers with the smallest
+	 * magnitude.
+	 */
+	private static void prune(Layer[] layers, float sparsity) {
+
+		long total = 0;
+		for (Layer layer : layers)
+			total += (long) layer.getNeuronNumber() * layer.getInputNumber();
+		if (total > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException(String.format("Too many weights to be pruned together: %d.", total));
+
+		int n = (int) Math.round((double) sparsity * total);
+		if (n == 0)
+			return;
+
+		float[] magnitudes = new float[(int) total];
+		int k = 0;
+		for (Layer layer : layers)
+			for (float[] row : layer.getWeights())
+				for (float w : row)
+					magnitudes[k++] = Math.abs(w);
+		Arrays.sort(magnitudes);
+
+		// the weights equal to the threshold are zeroed only until n is reached
+		float threshold = magnitudes[n - 1];
+		int first = n - 1;
+		while (first > 0 && magnitudes[first - 1] == threshold)
+			first--;
+		int ties = n - first;
+
+		for (Layer layer : layers)
+			ties -= layer.prune(threshold, ties);
+	}
+
+	/**
+	 * Atomically replaces the layers with at least half of the weights zero (i.e.
+	 * after a pruning) with copies whose weights are stored in the compressed
+	 * sparse row format (copy-on-write, as swapParameters): only the non-zero
+	 * weights are kept and multiplied. The sparse format is also used to save
+	 * the network. If the network is trained, the weights return dense, but the
+	 * zero ones stay zero as the pruned weights of a pruned network.
+	 * 
+	 * @return the new version
+	 */
+	public long compress() {
+		Layer[] current = layers;
+		Layer[] next = new Layer[current.length];
+		for (int i = 0; i < current.length; i++)
+			next[i] = current[i].compressed();
+		return publish(next, costFunction);
+	}
+
+	/**
+	 * Returns a smaller network with the same layers of this one but a fraction
+	 * of the neurons of each hidden layer removed: the rows of the removed
+	 * neurons are removed from the weights matrix of their layer and their
+	 * columns from the one of the next layer, so the matrices stay dense and
+	 * smaller, and the network is faster in any form. The neurons are ranked by
+	 * the norm of their incoming weights times the norm of their outgoing ones.
+	 * This network is not modified.
+	 * 
+	 * @param fraction the fraction of the neurons of each hidden layer to remove,
+	 *                 in [0, 1); at least one neuron is kept
+	 * @return the pruned network
+	 */
+	public Network pruneNeurons(float fraction) {
+		return pruneNeurons(fraction, null);
+	}
+
+	/**
+	 * Returns a smaller network with a fraction of the neurons of each hidden
+	 * layer removed, as pruneNeurons(fraction), ranking the neurons on the
+	 * activations they have for the sample: a neuron whose activation varies
+	 * little carries little information. The mean activation of each removed
+	 * neuron is added to the biases of the next layer, so that a neuron with a
+	 * constant activation is removed without changing the output.
+	 * 
+	 * @param fraction the fraction of the neurons of each hidden layer to remove,
+	 *                 in [0, 1); at least one neuron is kept
+	 * @param sample   the inputs the activations are computed on, null to rank
+	 *                 the neurons on their weights only
+	 * @return the pruned network
+	 */
+	public Network pruneNeurons(float fraction, DataSet sample) {
+		if (!(fraction >= 0 && fraction < 1))
+			throw new IllegalArgumentException("The fraction must be in [0, 1).");
+		if (sample != null && sample.size() == 0)
+			throw new IllegalArgumentException("The sample is empty.");
+
+		Layer[] current = layers;
+		int n = current.length;
+
+		float[][][] weights = new float[n][][];
+		float[][] biases = new float[n][];
+		for (int l = 0; l < n; l++) {
+			weights[l] = new float[current[l].getNeuronNumber()][current[l].getInputNumber()];
+			for (int i = 0; i < weights[l].length; i++)
+				current[l].getWeights(i, weights[l][i]);
+			biases[l] = current[l].getBiases().clone();
+		}
+
+		// mean and standard deviation of the activation of each hidden neuron
+		double[][] mean = new double[n][];
+		double[][] deviation = new double[n][];
+		if (sample != null) {
+			float[][] buffers = new float[n][];
+			for (int l = 0; l < n; l++) {
+				buffers[l] = new float[current[l].getNeuronNumber()];
+				mean[l] = new double[buffers[l].length];
+				deviation[l] = new double[buffers[l].length];
+			}
+			for (Match match : sample) {
+				float[] in = match.getInput();
+				for (int l = 0; l < n; l++) {
+					in = current[l].activate(in, buffers[l]);
+					for (int i = 0; i < in.length; i++) {
+						mean[l][i] += in[i];
+						deviation[l][i] += (double) in[i] * in[i];
+					}
+				}
+			}
+			for (int l = 0; l < n; l++)
+				for (int i = 0; i < mean[l].length; i++) {
+					mean[l][i] /= sample.size();
+					deviation[l][i] = Math.sqrt(Math.max(0, deviation[l][i] / sample.size() - mean[l][i] * mean[l][i]));
+				}
+		}
+
+		for (int l = 0; l < n - 1; l++) {
+			int size = weights[l].length;
+			int keep = Math.max(1, size - Math.round(fraction * size));
+
+			Integer[] ranking = new Integer[size];
+			double[] scores = new double[size];
+			for (int i = 0; i < size; i++) {
+				double out = 0;
+				for (float[] row : weights[l + 1])
+					out += (double) row[i] * row[i];
+				double in = 0;
+				if (sample != null) {
+					in = deviation[l][i];
+				} else {
+					for (float w : weights[l][i])
+						in += (double) w * w;
+					in = Math.sqrt(in);
+				}
+				scores[i] = in * Math.sqrt(out);
+				ranking[i] = i;
+			}
+			Arrays.sort(ranking, (a, b) -> Double.compare(scores[b], scores[a]));
+
+			int[] kept = new int[keep];
+			for (int k = 0; k < keep; k++)
+				kept[k] = ranking[k];
+			Arrays.sort(kept); // the order of the neurons is kept
+
+			if (sample != null) {
+				boolean[] isKept = new boolean[size];
+				for (int i : kept)
+					isKept[i] = true;
+				for (int i = 0; i < size; i++)
+					if (!isKept[i])
+						for (int k = 0; k < weights[l + 1].length; k++)
+							biases[l + 1][k] += (float) (mean[l][i] * weights[l + 1][k][i]);
+			}
+
+			float[][] rows = new float[keep][];
+			float[] b = new float[keep];
+			for (int k = 0; k < keep; k++) {
+				rows[k] = weights[l][kept[k]];
+				b[k] = biases[l][kept[k]];
+			}
+			weights[l] = rows;
+			biases[l] = b;
+
+			for (int r = 0; r < weights[l + 1].length; r++) {
+				float[] row = new float[keep];
+				for (int k = 0; k < keep; k++)
+					row[k] = weights[l + 1][r][kept[k]];
+				weights[l + 1][r] = row;
+			}
+		}
+
+		Layer[] pruned = new Layer[n];
+		for (int l = 0; l < n; l++)
+			pruned[l] = new Layer(weights[l][0].length, weights[l].length, current[l].getActivationFunction(),
+					current[l].getInitializer(), current[l].getLearningRate(), weights[l], biases[l]);
+
+		return build(pruned, costFunction);
+	}
+
+	/*
+	 * Compiles a network from the layers (i.e. obtained transforming the ones of
+	 * another network), keeping the learning rate of each layer: compile sets the
+	 * same one to all of them.
+	 */
+	static Network build(Layer[] layers, CostFunction costFunction) {
+		float[] learningRates = new float[layers.length];
+		for (int l = 0; l < layers.length; l++)
+			learningRates[l] = layers[l].getLearningRate();
+
+		Network network = new Builder(layers[0]).addLayers(Arrays.copyOfRange(layers, 1, layers.length))
+				.setCostFunction(costFunction).compile();
+
+		for (int l = 0; l < layers.length; l++)
+			layers[l].setLearningRate(learningRates[l]);
+		return network;
+	}
+
 	// object
 
 	/*
@@ -175,13 +648,67 @@ public class Network implements Serializable {
 
 	/**
 	 * Feeds the input vector to the network and returns the corresponding output.
-	 * The network will learn nothing through the process.
+	 * The network will learn nothing through the process. If the network has an
+	 * InferenceCache, the output of an input already seen is taken from it.
 	 * 
 	 * @param	input the input float vector
 	 * @return	the output float vector (output layer activation)
 	 */
 	public float[] feedforward(float[] input) {
-		return feedforward(input, null);
+		InferenceCache cache = this.cache;
+		if (cache == null)
+			return feedforward(input, null);
+
+		float[] output = cache.get(this, input);
+		if (output == null) {
+			output = feedforward(input, null);
+			cache.put(input, output);
+		}
+		return output;
+	}
+
+	/**
+	 * Returns an immutable, inference-only copy of the network: the weights of
+	 * each layer are copied in a contiguous array and nothing needed only by the
+	 * training is kept, so the network can be discarded afterwards. The model is
+	 * thread-safe and does not change if the network is trained or swapped.
+	 * 
+	 * @return the frozen model
+	 */
+	public InferenceModel freeze() {
+		return new DenseModel(getParameters().layers);
+	}
+
+	/*
+	 * Layers of the current version of the parameters (used by ModelCompiler).
+	 */
+	Layer[] getPublishedLayers() {
+		return getParameters().layers;
+	}
+
+	/**
+	 * Feeds the input vector to the network and returns the corresponding output
+	 * with the version of the parameters that produced it. Unlike feedforward, it
+	 * does not use the buffers of the layers, so it can be invoked by many threads
+	 * at the same time, also while the parameters are being swapped. It must not
+	 * be invoked while the network is being trained.
+	 * 
+	 * @param	input the input float vector
+	 * @return	the output and the version
+	 */
+	public Prediction predict(float[] input) {
+		Parameters p = getParameters();
+		Layer[] layers = p.layers;
+
+		if (input.length != layers[0].getInputNumber())
+			throw new IllegalArgumentException(String.format("input.lenght[%s] != input_layer.n_neurons[%s]",
+					input.length, layers[0].getInputNumber()));
+
+		float[] activation = input;
+		for (int i = 0; i < layers.length; i++)
+			activation = layers[i].activate(activation, new float[layers[i].getNeuronNumber()]);
+
+		return new Prediction(activation, p.version);
 	}
 
 	/**
@@ -234,12 +761,17 @@ public class Network implements Serializable {
 			else
 				activation = input;
 
-			delta_weights = MathUtils.mul(delta_biases, activation);
-
-			layers[i].addWeightsAndBiases(delta_weights, delta_biases);
+			if (layers[i].hasSparseInput()) {
+				// only the columns of the non-zero inputs, without the outer product
+				layers[i].addWeightsAndBiases(delta_biases);
+			} else {
+				delta_weights = MathUtils.mul(delta_biases, activation);
+				layers[i].addWeightsAndBiases(delta_weights, delta_biases);
+			}
 
-			// dCdO(l) = dCdO(l+1) * weights(l+1)
-			dCdO = MathUtils.mul(delta_biases, layers[i].getWeights());
+			// dCdO(l) = dCdO(l+1) * weights(l+1), not needed for the first layer
+			if (i > 0)
+				dCdO = MathUtils.mul(delta_biases, layers[i].getWeights());
 
 			i--;
 		} while (i >= 0);
@@ -264,6 +796,100 @@ public class Network implements Serializable {
 	 * @throws IllegalArgumentException if batchSize < 1, if epochs < 1 or if batchSize > the set size
 	 */
 	public void train(DataSet set, int batchSize, int epochs) {
+		train(set, batchSize, epochs, false, 0, 0, 0);
+	}
+
+	/**
+	 * Trains the network on the specified dataset, shuffling it at the start of
+	 * each epoch. The shuffle of each epoch only depends on the seed and on the
+	 * epoch, so the training can be reproduced and resumed.
+	 * 
+	 * @param set       the dataset used for the training
+	 * @param batchSize batch size
+	 * @param epochs    epochs
+	 * @param seed      the seed of the shuffle
+	 * @throws IllegalArgumentException if batchSize < 1, if epochs < 1 or if batchSize > the set size
+	 */
+	public void train(DataSet set, int batchSize, int epochs, long seed) {
+		train(set, batchSize, epochs, true, seed, 0, 0);
+	}
+
+	/**
+	 * Resumes the training from a snapshot (i.e. saved by a Checkpointer): the
+	 * parameters and the accumulated deltas of the layers are replaced by the
+	 * ones in the snapshot and the training continues, with the same batch size,
+	 * shuffle and dataset order, from the epoch and the position it was taken at
+	 * up to the total number of epochs. The result is the same of a training that
+	 * has never been interrupted.
+	 * 
+	 * @param set   the same dataset the snapshot was taken from
+	 * @param state the snapshot
+	 * @throws IllegalArgumentException if the dataset does not match the snapshot
+	 */
+	public void train(DataSet set, TrainingState state) {
+
+		state.restore(set);
+
+		publish(state.createLayers(true), state.getCostFunction());
+
+		if (!state.isComplete())
+			train(set, state.getBatchSize(), state.getEpochs(), state.isShuffled(), state.getSeed(), state.getEpoch(),
+					state.getPosition());
+	}
+
+	/**
+	 * Trains the network to imitate the teacher of the distillation: the targets
+	 * are the (softened) outputs of the teacher for each match, optionally blended
+	 * with its label, instead of the label alone.
+	 * 
+	 * @param set          the dataset used for the training
+	 * @param distillation the distillation, with the teacher
+	 * @param batchSize    batch size
+	 * @param epochs       epochs
+	 * @throws IllegalArgumentException if the teacher has a different number of
+	 *                                  outputs, if batchSize < 1, if epochs < 1 or
+	 *                                  if batchSize > the set size
+	 */
+	public void train(DataSet set, Distillation distillation, int batchSize, int epochs) {
+		distill(set, distillation, batchSize, epochs, false, 0);
+	}
+
+	/**
+	 * Trains the network to imitate the teacher of the distillation, shuffling the
+	 * dataset at the start of each epoch as train(DataSet, int, int, long).
+	 * 
+	 * @param set          the dataset used for the training
+	 * @param distillation the distillation, with the teacher
+	 * @param batchSize    batch size
+	 * @param epochs       epochs
+	 * @param seed         the seed of the shuffle
+	 * @throws IllegalArgumentException if the teacher has a different number of
+	 *                                  outputs, if batchSize < 1, if epochs < 1 or
+	 *                                  if batchSize > the set size
+	 */
+	public void train(DataSet set, Distillation distillation, int batchSize, int epochs, long seed) {
+		distill(set, distillation, batchSize, epochs, true, seed);
+	}
+
+	private void distill(DataSet set, Distillation distillation, int batchSize, int epochs, boolean shuffle,
+			long seed) {
+
+		int outputs = layers[layers.length - 1].getNeuronNumber();
+		if (distillation.getOutputNumber() != outputs)
+			throw new IllegalArgumentException(String.format("teacher.outputs[%d] != student.outputs[%d].",
+					distillation.getOutputNumber(), outputs));
+
+		distillation.prepare(set);
+		this.distillation = distillation;
+		try {
+			train(set, batchSize, epochs, shuffle, seed, 0, 0);
+		} finally {
+			this.distillation = null;
+		}
+	}
+
+	private void train(DataSet set, int batchSize, int epochs, boolean shuffle, long seed, int firstEpoch,
+			int position) {
 
 		if (batchSize < 1)
 			throw new IllegalArgumentException("Batch size must be more than or equal to one.");
@@ -277,18 +903,36 @@ public class Network implements Serializable {
 		total_epoch = epochs;
 		total_matches = set.size();
 
+		training_set = set;
+		batch_size = batchSize;
+		this.shuffle = shuffle;
+		this.seed = seed;
+
 		int output_layer_length = layers[layers.length - 1].getNeuronNumber();
 
-		for (int e = 0; e < epochs; e++) {
+		for (int e = firstEpoch; e < epochs; e++) {
 
 			current_epoch = e;
-			current_match = 0;
+			current_match = e == firstEpoch ? position : 0;
+
+			// a resumed epoch keeps the order it had
+			if (shuffle && current_match == 0)
+				set.shuffle(new Random(seed + e * 0x9E3779B97F4A7C15L));
+
+			// the distillation finds the targets by the positions of the matches
+			int[] order = distillation != null ? set.getOrder() : null;
 
-			for (Match match : set) {
+			Iterator<Match> iterator = set.iterator(current_match);
+			while (iterator.hasNext()) {
+
+				Match match = iterator.next();
 
 				// preparing the target array
 				float[] target = new float[output_layer_length];
-				target[match.getLabel()] = 1.0f;
+				if (distillation != null)
+					distillation.target(order[current_match], match, target);
+				else
+					target[match.getLabel()] = 1.0f;
 
 				// giving the target array to the network for reference
 				feedforward(match.getInput(), target);
@@ -296,16 +940,47 @@ public class Network implements Serializable {
 				if (verbose)
 					logger.update();
 
-				if (current_match % batchSize == 0)
-					update();
+				boolean update = current_match % batchSize == 0;
 
+				// from here on the match counts as used, a checkpoint resumes from the next one
 				current_match++;
+
+				if (update) {
+					update();
+					if (checkpointer != null)
+						checkpointer.batch(this);
+				}
 			}
+
+			if (checkpointer != null) {
+				checkpointer.epoch(this);
+
+				// the training is over: a skipped checkpoint is taken, the last one is waited for
+				if (e == epochs - 1)
+					checkpointer.end(this);
+			}
+
+			// the next epoch is augmented differently
+			if (set instanceof AugmentedDataSet)
+				((AugmentedDataSet) set).nextEpoch();
 		}
 
+		training_set = null;
 		state = State.executing;
 	}
 
+	/**
+	 * Returns a snapshot of the network and of the progress of the training, to
+	 * resume it later with train(DataSet, TrainingState). It must be invoked from
+	 * the thread that trains the network (i.e. by a Checkpointer) or when the
+	 * network is not being trained.
+	 */
+	public TrainingState getTrainingState() {
+		TrainingState snapshot = new TrainingState();
+		snapshot.capture(this, true);
+		return snapshot;
+	}
+
 	/*
 	 * Updates the layers (each one will adjust its weights and biases).
 	 */
@@ -315,9 +990,10 @@ public class Network implements Serializable {
 	}
 
 	/**
-	 * Saves the network as an object, serializing it.
+	 * Saves the network in the binary .net format: a small header describing the
+	 * structure of the network followed by the weights and biases of each layer.
 	 * 
-	 * @param file output file that will contain the serialized network
+	 * @param file output file that will contain the network
 	 */
 	public void save(File file) {
 
@@ -328,12 +1004,9 @@ public class Network implements Serializable {
 			if (!getExtension(file.getName()).equals(ext))
 				throw new IllegalArgumentException("Invalid file type.");
 
-			ObjectOutputStream obj_out = new ObjectOutputStream(new FileOutputStream(file));
-			obj_out.writeObject(this);
+			NetworkCodec.write(layers, costFunction, file);
 
 			state = State.saved;
-
-			obj_out.close();
 		} catch (Exception e) {
 			state = State.not_saved;
 			e.printStackTrace();
@@ -344,12 +1017,15 @@ public class Network implements Serializable {
 	}
 
 	/**
-	 * Restores the network deserializing it. This requires an already existing
+	 * Restores the network from a file. This requires an already existing
 	 * object, so we should know the structure of the network, create it and then
 	 * restore its state from a file that we know for sure has the same structure.
 	 * When this is not possible, the static method can be used.
 	 * 
-	 * @param file the file containing the serialized network
+	 * The layers are replaced atomically, as by swap, so the network can be
+	 * restored while it is serving predictions.
+	 * 
+	 * @param file the file containing the network
 	 */
 	public void restore(File file) {
 
@@ -357,18 +1033,11 @@ public class Network implements Serializable {
 
 		try {
 
-			if (!getExtension(file.getName()).equals(ext))
-				throw new IllegalArgumentException("Invalid file type.");
-
-			ObjectInputStream obj_in = new ObjectInputStream(new FileInputStream(file));
-			Network network = (Network) obj_in.readObject();
+			Network network = restoreNetwork(file);
 
-			this.layers = network.layers;
-			this.costFunction = network.costFunction;
+			publish(network.layers, network.costFunction);
 
 			state = State.restored;
-
-			obj_in.close();
 		} catch (Exception e) {
 			state = State.not_restored;
 			e.printStackTrace();
@@ -380,16 +1049,21 @@ public class Network implements Serializable {
 
 	/**
 	 * Restores a network from a file. It is not necessary to know its structure.
+	 * Files saved in the binary .net format and files containing a serialized
+	 * network (written by the previous versions) are both accepted.
 	 * 
-	 * @param file the file containing the serialized network
-	 * @return a Network object equals to the one that was serialized into the input file
+	 * @param file the file containing the network
+	 * @return a Network object equals to the one that was saved into the input file
 	 */
 	public static Network restoreNetwork(File file) throws IOException {
 
 		if (!getExtension(file.getName()).equals(ext))
 			throw new IllegalArgumentException("Invalid file type.");
 
-		ObjectInputStream obj_in = new ObjectInputStream(new FileInputStream(file));
+		if (NetworkCodec.accept(file))
+			return NetworkCodec.read(file);
+
+		ObjectInputStream obj_in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
 		Network network = null;
 
 		try {
@@ -403,6 +1077,51 @@ public class Network implements Serializable {
 		return network;
 	}
 
+	/**
+	 * Restores a network from a file in the binary .net format, mapping the
+	 * weights of each layer in memory instead of reading them: the restore takes
+	 * constant time regardless of the size of the network, and the processes
+	 * that map the same file share the same physical memory. The weights of a
+	 * layer are copied on the heap the first time they are modified (i.e. by the
+	 * training) or requested through Layer.getWeights.
+	 * 
+	 * The file must not be modified while the network is in use.
+	 * 
+	 * @param file the file containing the network
+	 * @return a Network object backed by the file
+	 * @throws IOException if the file is not in the binary .net format
+	 */
+	public static Network mapNetwork(File file) throws IOException {
+
+		if (!getExtension(file.getName()).equals(ext))
+			throw new IllegalArgumentException("Invalid file type.");
+
+		if (!NetworkCodec.accept(file))
+			throw new IOException(String.format("Only binary .net files can be mapped: %s.", file.getName()));
+
+		return NetworkCodec.map(file);
+	}
+
+	/**
+	 * Restores a network from a file in the binary .net format, reading the
+	 * weights of each layer straight off-heap: the heap is never used for them,
+	 * not even temporarily. See moveOffHeap.
+	 * 
+	 * @param file the file containing the network
+	 * @return a Network object with off-heap weights
+	 * @throws IOException if the file is not in the binary .net format
+	 */
+	public static Network restoreOffHeap(File file) throws IOException {
+
+		if (!getExtension(file.getName()).equals(ext))
+			throw new IllegalArgumentException("Invalid file type.");
+
+		if (!NetworkCodec.accept(file))
+			throw new IOException(String.format("Only binary .net files can be read off-heap: %s.", file.getName()));
+
+		return NetworkCodec.readOffHeap(file);
+	}
+
 	/*
 	 * Finds and returns the extension of the file, if any. The extension is the
 	 * last part of the name, the one that succeeds the dot. If multiple extensions
@@ -419,12 +1138,49 @@ public class Network implements Serializable {
 	 * Returns the network in a JSON format. The JSON will contain all the 
 	 * sensible parameters: for each layer - number of neurons in that layer,
 	 * number of neurons in the previous layer, activation function, initializer,
-	 * weights and biases.
+	 * weights and biases. The weights are read where they are stored: the
+	 * layers are not converted (i.e. half precision, sparse or off-heap weights
+	 * stay as they are).
 	 * 
 	 * @return the JSON string containing all the details of the network.
 	 */
 	public String toJson() {
-		return getGsonInstance().toJson(this);
+		StringWriter writer = new StringWriter();
+		try {
+			NetworkJson.write(layers, costFunction, writer, false, "  ");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // never thrown by a StringWriter
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * Writes the network in a JSON format to the writer, one value at a time, so
+	 * that the whole JSON is never kept in memory. The structure is the same of
+	 * the toJson() method, without indentation.
+	 * 
+	 * @param writer the writer; it is flushed but not closed
+	 */
+	public void toJson(Writer writer) throws IOException {
+		toJson(writer, false);
+	}
+
+	/**
+	 * Writes the network in a JSON format to the writer, one value at a time. If
+	 * compact is true, each row of weights and the biases of each layer are
+	 * written as base64 strings of little-endian floats instead of arrays of
+	 * numbers: the output is smaller and faster to write and read, but it is no
+	 * longer human-readable.
+	 * 
+	 * @param writer  the writer; it is flushed but not closed
+	 * @param compact whether to encode weights and biases in base64
+	 * @throws IllegalArgumentException if compact is false and a weight or a bias
+	 *                                  is NaN or infinite, as JSON numbers can't
+	 *                                  represent them (the output is left
+	 *                                  incomplete)
+	 */
+	public void toJson(Writer writer, boolean compact) throws IOException {
+		NetworkJson.write(layers, costFunction, writer, compact);
 	}
 
 	/**
@@ -433,17 +1189,21 @@ public class Network implements Serializable {
 	 * @return the corresponding Network object
 	 */
 	public static Network fromJson(String json) {
-		return getGsonInstance().fromJson(json, Network.class);
+		try {
+			return fromJson(new StringReader(json));
+		} catch (IOException | RuntimeException e) {
+			throw new JsonParseException(e);
+		}
 	}
 
-	/*
-	 * singleton w/lazy initialization
+	/**
+	 * Returns the Network object read from a JSON stream, one value at a time.
+	 * Both the plain and the compact encoding of the weights are accepted.
+	 * 
+	 * @param reader the reader; it is not closed
+	 * @return the corresponding Network object
 	 */
-	private static Gson getGsonInstance() {
-		if (gson == null) {
-			gson = new GsonBuilder().setPrettyPrinting().create();
-		}
-
-		return gson;
+	public static Network fromJson(Reader reader) throws IOException {
+		return NetworkJson.read(reader);
 	}
 }
@@ -0,0 +1,575 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import main.math.ActivationFunction;
+import main.math.CostFunction;
+import main.math.Initializer;
+
+/**
+ * Binary format of the .net files. The file starts with a small header that
+ * describes the structure of the network, followed by the weights and the
+ * biases of each layer as contiguous blocks of little-endian floats:
+ *
+ * <pre>
+ * magic | version | header size | cost function | n layers
+ * for each layer: n input | n neurons | learning rate | activation | initializer | dtype [| nnz]
+ * padding up to header size (a multiple of 64 bytes)
+ * for each layer: weights (n neurons * n input, row by row) | biases (n neurons)
+ * </pre>
+ *
+ * The dtype of a layer is the element type of its weights: little-endian
+ * floats, or little-endian 16 bit values for the layers stored in half
+ * precision (see Precision). The weights of a sparse (pruned) layer are stored
+ * in the CSR format: the header has the number of non-zero weights and the
+ * block has the row pointers (n neurons + 1 ints), the column of each non-zero
+ * weight (ints) and their values (floats). The biases are always floats.
+ *
+ * Enum constants are stored by name, so that adding new activation functions
+ * or initializers does not invalidate the existing files. Blocks are
+ * transferred through a direct buffer with bulk FileChannel operations, so
+ * the time to save or restore a network is bounded by the disk bandwidth.
+ *
+ * Files written by the previous versions, through the Java serialization, do
+ * not start with the magic number and can still be read by Network.
+ */
+final class NetworkCodec {
+
+	static final int MAGIC = 0x54454E4E; // NNET
+	static final short VERSION = 1;
+
+	/*
+	 * element type of the weights blocks.
+	 */
+	static final byte DTYPE_F32 = 0;
+	static final byte DTYPE_F16 = 1;
+	static final byte DTYPE_BF16 = 2;
+	static final byte DTYPE_CSR = 3;
+
+	static final int ALIGNMENT = 64;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private NetworkCodec() {
+	}
+
+	/*
+	 * Structure of a layer as described in the header.
+	 */
+	static class LayerInfo {
+		int n_input;
+		int n_neurons;
+		float learningRate;
+		ActivationFunction activationFunction;
+		Initializer initializer;
+		byte dtype;
+		int nnz; // non-zero weights of a CSR layer
+
+		/*
+		 * position of the weights block in the file.
+		 */
+		long offset;
+
+		long weightsSize() {
+			if (dtype == DTYPE_CSR)
+				return (long) (n_neurons + 1) * Integer.BYTES + (long) nnz * (Integer.BYTES + Float.BYTES);
+			return (long) n_neurons * n_input * precision(dtype).getSize();
+		}
+
+		long blockSize() {
+			return weightsSize() + (long) n_neurons * Float.BYTES;
+		}
+	}
+
+	/*
+	 * Parsed header of a .net file.
+	 */
+	static class Header {
+		CostFunction costFunction;
+		LayerInfo[] layers;
+		int size;
+	}
+
+	static byte dtype(Precision precision) {
+		switch (precision) {
+		case Float16:
+			return DTYPE_F16;
+		case BFloat16:
+			return DTYPE_BF16;
+		default:
+			return DTYPE_F32;
+		}
+	}
+
+	static Precision precision(byte dtype) {
+		switch (dtype) {
+		case DTYPE_F16:
+			return Precision.Float16;
+		case DTYPE_BF16:
+			return Precision.BFloat16;
+		default:
+			return Precision.Float32;
+		}
+	}
+
+	/**
+	 * Returns true if the file starts with the magic number of this format.
+	 */
+	static boolean accept(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining())
+				if (channel.read(magic) < 0)
+					return false;
+			return magic.getInt(0) == MAGIC;
+		}
+	}
+
+	static void write(Layer[] layers, CostFunction costFunction, File file) throws IOException {
+		write(layers, costFunction, file, false);
+	}
+
+	/*
+	 * If force is true the content of the file is forced on the storage device
+	 * before returning, so that it survives a crash of the system.
+	 */
+	static void write(Layer[] layers, CostFunction costFunction, File file, boolean force) throws IOException {
+
+		// the storage is read once, so that header and blocks agree
+		WeightStorage[] storages = new WeightStorage[layers.length];
+		for (int i = 0; i < layers.length; i++)
+			storages[i] = layers[i].getStorage();
+
+		ByteBuffer header = ByteBuffer.allocate(headerSize(layers, storages, costFunction))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(header.capacity());
+		putString(header, costFunction.name());
+		header.putInt(layers.length);
+
+		for (int i = 0; i < layers.length; i++) {
+			Layer layer = layers[i];
+			header.putInt(layer.getInputNumber()).putInt(layer.getNeuronNumber()).putFloat(layer.getLearningRate());
+			putString(header, layer.getActivationFunction().name());
+			putString(header, layer.getInitializer().name());
+			header.put(dtype(storages[i]));
+			if (storages[i] instanceof CsrWeights)
+				header.putInt(((CsrWeights) storages[i]).getNonZeros());
+		}
+		header.position(header.capacity());
+		header.flip();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			while (header.hasRemaining())
+				channel.write(header);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			for (int l = 0; l < layers.length; l++) {
+				Layer layer = layers[l];
+				if (storages[l] instanceof HalfWeights) {
+					put(channel, buffer, ((HalfWeights) storages[l]).getValues());
+				} else if (storages[l] instanceof CsrWeights) {
+					CsrWeights csr = (CsrWeights) storages[l];
+					put(channel, buffer, csr.getRowPointers());
+					put(channel, buffer, csr.getColumns());
+					put(channel, buffer, csr.getValues());
+				} else {
+					// rows are copied one at a time, so mapped weights are not copied on the heap
+					float[] row = new float[layer.getInputNumber()];
+					for (int i = 0; i < layer.getNeuronNumber(); i++) {
+						layer.getWeights(i, row);
+						put(channel, buffer, row);
+					}
+				}
+				put(channel, buffer, layer.getBiases());
+			}
+			flush(channel, buffer);
+
+			if (force)
+				channel.force(true);
+		}
+	}
+
+	private static byte dtype(WeightStorage storage) {
+		if (storage instanceof HalfWeights)
+			return dtype(((HalfWeights) storage).getPrecision());
+		if (storage instanceof CsrWeights)
+			return DTYPE_CSR;
+		return DTYPE_F32;
+	}
+
+	private static int headerSize(Layer[] layers, WeightStorage[] storages, CostFunction costFunction) {
+		int size = 4 + 2 + 2 + 4 + stringSize(costFunction.name()) + 4;
+		for (int i = 0; i < layers.length; i++)
+			size += 4 + 4 + 4 + stringSize(layers[i].getActivationFunction().name())
+					+ stringSize(layers[i].getInitializer().name()) + 1
+					+ (storages[i] instanceof CsrWeights ? 4 : 0);
+		return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	static int stringSize(String s) {
+		return 2 + s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	static void putString(ByteBuffer buffer, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length).put(bytes);
+	}
+
+	static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Copies the values in the buffer, writing the buffer to the channel every
+	 * time it is full.
+	 */
+	static void put(FileChannel channel, ByteBuffer buffer, float[] values) throws IOException {
+		int offset = 0;
+		while (offset < values.length) {
+			if (buffer.remaining() < Float.BYTES)
+				flush(channel, buffer);
+			int n = Math.min(values.length - offset, buffer.remaining() / Float.BYTES);
+			buffer.asFloatBuffer().put(values, offset, n);
+			buffer.position(buffer.position() + n * Float.BYTES);
+			offset += n;
+		}
+	}
+
+	static void put(FileChannel channel, ByteBuffer buffer, short[] values) throws IOException {
+		int offset = 0;
+		while (offset < values.length) {
+			if (buffer.remaining() < Short.BYTES)
+				flush(channel, buffer);
+			int n = Math.min(values.length - offset, buffer.remaining() / Short.BYTES);
+			buffer.asShortBuffer().put(values, offset, n);
+			buffer.position(buffer.position() + n * Short.BYTES);
+			offset += n;
+		}
+	}
+
+	static void put(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+		int offset = 0;
+		while (offset < values.length) {
+			if (buffer.remaining() < Integer.BYTES)
+				flush(channel, buffer);
+			int n = Math.min(values.length - offset, buffer.remaining() / Integer.BYTES);
+			buffer.asIntBuffer().put(values, offset, n);
+			buffer.position(buffer.position() + n * Integer.BYTES);
+			offset += n;
+		}
+	}
+
+	static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/*
+	 * Reads and validates the header. The position of the channel is left at the
+	 * end of the header, where the first block starts.
+	 */
+	static Header readHeader(FileChannel channel, String name) throws IOException {
+
+		ByteBuffer preamble = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, preamble, name);
+		preamble.flip();
+
+		if (preamble.getInt() != MAGIC)
+			throw new IOException(String.format("Unknown file format for: %s.", name));
+		short version = preamble.getShort();
+		if (version != VERSION)
+			throw new IOException(String.format("Unsupported version %d for: %s.", version, name));
+		preamble.getShort(); // flags, unused
+
+		Header header = new Header();
+		header.size = preamble.getInt();
+		if (header.size < preamble.capacity() || header.size % ALIGNMENT != 0)
+			throw new IOException(String.format("Corrupted header in: %s.", name));
+
+		ByteBuffer buffer = ByteBuffer.allocate(header.size - preamble.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, buffer, name);
+		buffer.flip();
+
+		try {
+			header.costFunction = CostFunction.valueOf(getString(buffer));
+
+			// each layer takes more than one byte of the header
+			int count = buffer.getInt();
+			if (count < 1 || count > buffer.remaining())
+				throw new IOException(String.format("Corrupted header in: %s (%d layers).", name, count));
+			header.layers = new LayerInfo[count];
+
+			long offset = header.size;
+			for (int i = 0; i < header.layers.length; i++) {
+				LayerInfo info = new LayerInfo();
+				info.n_input = buffer.getInt();
+				info.n_neurons = buffer.getInt();
+				info.learningRate = buffer.getFloat();
+				info.activationFunction = ActivationFunction.valueOf(getString(buffer));
+				info.initializer = Initializer.valueOf(getString(buffer));
+				info.dtype = buffer.get();
+				info.offset = offset;
+
+				if (info.n_input < 1 || info.n_neurons < 1)
+					throw new IOException(String.format("Corrupted header in: %s (layer[%d] is %dx%d).", name, i,
+							info.n_neurons, info.n_input));
+				if (i > 0 && info.n_input != header.layers[i - 1].n_neurons)
+					throw new IOException(String.format("Corrupted header in: %s (n_input_%d[%d] != n_neuron_%d[%d]).",
+							name, i, info.n_input, i - 1, header.layers[i - 1].n_neurons));
+				if (info.dtype < DTYPE_F32 || info.dtype > DTYPE_CSR)
+					throw new IOException(String.format("Unsupported element type %d in: %s.", info.dtype, name));
+				if (info.dtype == DTYPE_CSR) {
+					info.nnz = buffer.getInt();
+					if (info.nnz < 0 || info.nnz > (long) info.n_neurons * info.n_input)
+						throw new IOException(String.format("Corrupted header in: %s.", name));
+				}
+
+				offset += info.blockSize();
+				header.layers[i] = info;
+			}
+
+			if (channel.size() != offset)
+				throw new IOException(String.format("Truncated file: %s.", name));
+
+		} catch (RuntimeException e) { // buffer underflow, unknown enum constants
+			throw new IOException(String.format("Corrupted header in: %s.", name), e);
+		}
+
+		return header;
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buffer, String name) throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new IOException(String.format("Truncated file: %s.", name));
+	}
+
+	static Network read(File file) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			Header header = readHeader(channel, file.getName());
+			Layer[] layers = new Layer[header.layers.length];
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.flip(); // empty
+
+			for (int i = 0; i < layers.length; i++) {
+				LayerInfo info = header.layers[i];
+
+				if (info.dtype != DTYPE_F32) {
+					WeightStorage weights = readStorage(channel, buffer, info, file.getName());
+
+					float[] biases = new float[info.n_neurons];
+					get(channel, buffer, biases, file.getName());
+
+					layers[i] = new Layer(info.n_input, info.n_neurons, info.activationFunction, info.initializer,
+							info.learningRate, weights, biases);
+					continue;
+				}
+
+				float[][] weights = new float[info.n_neurons][info.n_input];
+				for (float[] row : weights)
+					get(channel, buffer, row, file.getName());
+
+				float[] biases = new float[info.n_neurons];
+				get(channel, buffer, biases, file.getName());
+
+				layers[i] = new Layer(info.n_input, info.n_neurons, info.activationFunction, info.initializer,
+						info.learningRate, weights, biases);
+			}
+
+			return new Network(layers, header.costFunction);
+		}
+	}
+
+	/*
+	 * Reads the weights of a layer whose dtype is not DTYPE_F32 on the heap.
+	 */
+	private static WeightStorage readStorage(FileChannel channel, ByteBuffer buffer, LayerInfo info, String name)
+			throws IOException {
+		if (info.dtype == DTYPE_CSR)
+			return readCsr(channel, buffer, info, name);
+		return readHalf(channel, buffer, info, name);
+	}
+
+	private static CsrWeights readCsr(FileChannel channel, ByteBuffer buffer, LayerInfo info, String name)
+			throws IOException {
+		int[] rowPointers = new int[info.n_neurons + 1];
+		int[] columns = new int[info.nnz];
+		float[] values = new float[info.nnz];
+		get(channel, buffer, rowPointers, name);
+		get(channel, buffer, columns, name);
+		get(channel, buffer, values, name);
+		try {
+			return new CsrWeights(info.n_neurons, info.n_input, rowPointers, columns, values);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(String.format("Corrupted weights in: %s.", name), e);
+		}
+	}
+
+	/*
+	 * Reads the 16 bit weights of the layer on the heap.
+	 */
+	private static HalfWeights readHalf(FileChannel channel, ByteBuffer buffer, LayerInfo info, String name)
+			throws IOException {
+		if ((long) info.n_neurons * info.n_input > Integer.MAX_VALUE)
+			throw new IOException(String.format("Too many half precision weights in: %s.", name));
+		short[] values = new short[info.n_neurons * info.n_input];
+		get(channel, buffer, values, name);
+		return new HalfWeights(precision(info.dtype), info.n_neurons, info.n_input, values);
+	}
+
+	/*
+	 * Restores the network reading the weights of each float layer straight in
+	 * off-heap memory. Half precision and sparse weights are read on the heap.
+	 */
+	static Network readOffHeap(File file) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			Header header = readHeader(channel, file.getName());
+			Layer[] layers = new Layer[header.layers.length];
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			try {
+				for (int i = 0; i < layers.length; i++) {
+					LayerInfo info = header.layers[i];
+
+					WeightStorage weights;
+					channel.position(info.offset);
+					buffer.clear().flip(); // empty
+					if (info.dtype != DTYPE_F32) {
+						weights = readStorage(channel, buffer, info, file.getName());
+					} else {
+						OffHeapWeights offHeap = new OffHeapWeights(info.n_neurons, info.n_input);
+						weights = offHeap;
+						for (int b = 0; b < offHeap.getBlockCount(); b++)
+							readFully(channel, offHeap.block(b), file.getName());
+					}
+
+					float[] biases = new float[info.n_neurons];
+					channel.position(info.offset + info.weightsSize());
+					buffer.clear().flip();
+					get(channel, buffer, biases, file.getName());
+
+					layers[i] = new Layer(info.n_input, info.n_neurons, info.activationFunction, info.initializer,
+							info.learningRate, weights, biases);
+				}
+			} catch (IOException | RuntimeException e) {
+				for (Layer layer : layers)
+					if (layer != null)
+						layer.release();
+				throw e;
+			}
+
+			return new Network(layers, header.costFunction);
+		}
+	}
+
+	/*
+	 * Restores the network mapping the weights of each layer in memory instead of
+	 * reading them. Only the biases are read. Half precision and sparse weights
+	 * are read on the heap: they are already compact.
+	 */
+	static Network map(File file) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			Header header = readHeader(channel, file.getName());
+			Layer[] layers = new Layer[header.layers.length];
+
+			for (int i = 0; i < layers.length; i++) {
+				LayerInfo info = header.layers[i];
+
+				WeightStorage weights;
+				if (info.dtype != DTYPE_F32) {
+					ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+					buffer.flip(); // empty
+					channel.position(info.offset);
+					weights = readStorage(channel, buffer, info, file.getName());
+				} else {
+					weights = new MappedWeights(channel, info.offset, info.n_neurons, info.n_input);
+				}
+
+				float[] biases = new float[info.n_neurons];
+				channel.map(FileChannel.MapMode.READ_ONLY,
+						info.offset + info.weightsSize(),
+						(long) info.n_neurons * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(biases);
+
+				layers[i] = new Layer(info.n_input, info.n_neurons, info.activationFunction, info.initializer,
+						info.learningRate, weights, biases);
+			}
+
+			return new Network(layers, header.costFunction);
+		}
+	}
+
+	/*
+	 * Fills the values from the buffer, reading the channel every time the buffer
+	 * is empty.
+	 */
+	static void get(FileChannel channel, ByteBuffer buffer, float[] values, String name) throws IOException {
+		int offset = 0;
+		while (offset < values.length) {
+			if (buffer.remaining() < Float.BYTES) {
+				buffer.compact();
+				if (channel.read(buffer) < 0)
+					throw new IOException(String.format("Truncated file: %s.", name));
+				buffer.flip();
+				continue;
+			}
+			int n = Math.min(values.length - offset, buffer.remaining() / Float.BYTES);
+			buffer.asFloatBuffer().get(values, offset, n);
+			buffer.position(buffer.position() + n * Float.BYTES);
+			offset += n;
+		}
+	}
+
+	static void get(FileChannel channel, ByteBuffer buffer, short[] values, String name) throws IOException {
+		int offset = 0;
+		while (offset < values.length) {
+			if (buffer.remaining() < Short.BYTES) {
+				buffer.compact();
+				if (channel.read(buffer) < 0)
+					throw new IOException(String.format("Truncated file: %s.", name));
+				buffer.flip();
+				continue;
+			}
+			int n = Math.min(values.length - offset, buffer.remaining() / Short.BYTES);
+			buffer.asShortBuffer().get(values, offset, n);
+			buffer.position(buffer.position() + n * Short.BYTES);
+			offset += n;
+		}
+	}
+
+	static void get(FileChannel channel, ByteBuffer buffer, int[] values, String name) throws IOException {
+		int offset = 0;
+		while (offset < values.length) {
+			if (buffer.remaining() < Integer.BYTES) {
+				buffer.compact();
+				if (channel.read(buffer) < 0)
+					throw new IOException(String.format("Truncated file: %s.", name));
+				buffer.flip();
+				continue;
+			}
+			int n = Math.min(values.length - offset, buffer.remaining() / Integer.BYTES);
+			buffer.asIntBuffer().get(values, offset, n);
+			buffer.position(buffer.position() + n * Integer.BYTES);
+			offset += n;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package main;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import main.math.ActivationFunction;
+import main.math.CostFunction;
+import main.math.Initializer;
+
+/**
+ * Streaming JSON encoding of a Network, built on the Gson JsonWriter and
+ * JsonReader: the network is written and read one value at a time, so the
+ * memory needed does not depend on the size of the network. The structure is
+ * the same produced by Gson for the Network object:
+ *
+ * <pre>
+ * {"layers": [{"n_neurons": .., "n_input": .., "learningRate": .., "activationFunction": "..",
+ * 		"initializer": "..", "weights": [[..], ..], "biases": [..]}, ..], "costFunction": ".."}
+ * </pre>
+ *
+ * With the compact encoding, each row of the weights matrix and the biases
+ * vector are written as the base64 encoding of their little-endian floats
+ * instead of an array of numbers: the text is less than half the size and
+ * much faster to produce and parse. The reader accepts both encodings.
+ */
+final class NetworkJson {
+
+	private NetworkJson() {
+	}
+
+	static void write(Layer[] layers, CostFunction costFunction, Writer out, boolean compact) throws IOException {
+		write(layers, costFunction, out, compact, "");
+	}
+
+	/*
+	 * Writes the network indenting each level of nesting by the given string
+	 * (none if empty). The weights are read a row at a time, so the layers are not
+	 * modified whatever their storage.
+	 */
+	static void write(Layer[] layers, CostFunction costFunction, Writer out, boolean compact, String indent)
+			throws IOException {
+
+		JsonWriter writer = new JsonWriter(out);
+		writer.setIndent(indent);
+		writer.beginObject();
+
+		writer.name("layers").beginArray();
+		for (Layer layer : layers) {
+
+			writer.beginObject();
+			writer.name("n_neurons").value(layer.getNeuronNumber());
+			writer.name("n_input").value(layer.getInputNumber());
+			writer.name("learningRate").jsonValue(number(layer.getLearningRate()));
+			writer.name("activationFunction").value(layer.getActivationFunction().name());
+			writer.name("initializer").value(layer.getInitializer().name());
+
+			float[] row = new float[layer.getInputNumber()];
+			ByteBuffer bytes = compact ? ByteBuffer.allocate(row.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+					: null;
+
+			writer.name("weights").beginArray();
+			for (int i = 0; i < layer.getNeuronNumber(); i++) {
+				layer.getWeights(i, row); // a row at a time, mapped weights stay where they are
+				writeVector(writer, row, bytes);
+			}
+			writer.endArray();
+
+			writer.name("biases");
+			float[] biases = layer.getBiases();
+			writeVector(writer, biases,
+					compact ? ByteBuffer.allocate(biases.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN) : null);
+
+			writer.endObject();
+		}
+		writer.endArray();
+
+		writer.name("costFunction").value(costFunction.name());
+		writer.endObject();
+		writer.flush();
+	}
+
+	/*
+	 * Writes the vector as an array of numbers or, if the buffer is not null, as a
+	 * base64 string.
+	 */
+	private static void writeVector(JsonWriter writer, float[] vector, ByteBuffer bytes) throws IOException {
+		if (bytes != null) {
+			bytes.clear();
+			bytes.asFloatBuffer().put(vector);
+			writer.value(Base64.getEncoder().encodeToString(bytes.array()));
+		} else {
+			writer.beginArray();
+			for (float value : vector)
+				writer.jsonValue(number(value));
+			writer.endArray();
+		}
+	}
+
+	/*
+	 * Returns the JSON number of the value. NaN and the infinities have no JSON
+	 * number: they are rejected, as Gson does by default.
+	 */
+	private static String number(float value) {
+		if (!Float.isFinite(value))
+			throw new IllegalArgumentException(
+					String.format("%s is not a valid JSON number: use the compact encoding to write it.", value));
+		return Float.toString(value);
+	}
+
+	static Network read(Reader in) throws IOException {
+
+		JsonReader reader = new JsonReader(in);
+		List<Layer> layers = new ArrayList<>();
+		CostFunction costFunction = CostFunction.HalfQuadratic;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "layers":
+				reader.beginArray();
+				while (reader.hasNext())
+					layers.add(readLayer(reader));
+				reader.endArray();
+				break;
+			case "costFunction":
+				costFunction = CostFunction.valueOf(reader.nextString());
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (layers.isEmpty())
+			throw new IOException("The network has no layers.");
+
+		for (int i = 1; i < layers.size(); i++)
+			if (layers.get(i).getInputNumber() != layers.get(i - 1).getNeuronNumber())
+				throw new IOException(String.format("Error in layer[%d]: n_input_%d[%d] != n_neuron_%d[%d].", i, i,
+						layers.get(i).getInputNumber(), i - 1, layers.get(i - 1).getNeuronNumber()));
+
+		return new Network(layers.toArray(new Layer[layers.size()]), costFunction);
+	}
+
+	private static Layer readLayer(JsonReader reader) throws IOException {
+
+		int n_neurons = -1;
+		int n_input = -1;
+		float learningRate = 0.5f;
+		ActivationFunction activationFunction = ActivationFunction.Sigmoid;
+		Initializer initializer = Initializer.XavierUniform;
+		float[][] weights = null;
+		float[] biases = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "n_neurons":
+				n_neurons = reader.nextInt();
+				break;
+			case "n_input":
+				n_input = reader.nextInt();
+				break;
+			case "learningRate":
+				learningRate = (float) reader.nextDouble();
+				break;
+			case "activationFunction":
+				activationFunction = ActivationFunction.valueOf(reader.nextString());
+				break;
+			case "initializer":
+				initializer = Initializer.valueOf(reader.nextString());
+				break;
+			case "weights":
+				List<float[]> rows = new ArrayList<>();
+				reader.beginArray();
+				while (reader.hasNext())
+					rows.add(readVector(reader, n_input));
+				reader.endArray();
+				weights = rows.toArray(new float[rows.size()][]);
+				break;
+			case "biases":
+				biases = readVector(reader, n_neurons);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (weights == null || biases == null || weights.length == 0)
+			throw new IOException("Missing weights or biases in layer.");
+
+		if (n_neurons < 0)
+			n_neurons = weights.length;
+		if (n_input < 0)
+			n_input = weights[0].length;
+
+		if (weights.length != n_neurons || biases.length != n_neurons)
+			throw new IOException(String.format("The layer has %d neurons but %d rows of weights and %d biases.",
+					n_neurons, weights.length, biases.length));
+		for (float[] row : weights)
+			if (row.length != n_input)
+				throw new IOException(
+						String.format("The layer has %d inputs but a row of %d weights.", n_input, row.length));
+
+		return new Layer(n_input, n_neurons, activationFunction, initializer, learningRate, weights, biases);
+	}
+
+	/*
+	 * Reads a vector written either as an array of numbers or as a base64 string.
+	 * The expected length is only a hint, as it may not be known yet.
+	 */
+	private static float[] readVector(JsonReader reader, int expected) throws IOException {
+
+		if (reader.peek() == JsonToken.STRING) {
+			byte[] bytes = Base64.getDecoder().decode(reader.nextString());
+			if (bytes.length % Float.BYTES != 0)
+				throw new IOException("Invalid length of a base64 vector.");
+			float[] vector = new float[bytes.length / Float.BYTES];
+			ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+			return vector;
+		}
+
+		float[] vector = new float[Math.max(expected, 16)];
+		int n = 0;
+		reader.beginArray();
+		while (reader.hasNext()) {
+			if (n == vector.length)
+				vector = Arrays.copyOf(vector, n * 2);
+			vector[n++] = (float) reader.nextDouble();
+		}
+		reader.endArray();
+		return n == vector.length ? vector : Arrays.copyOf(vector, n);
+	}
+}
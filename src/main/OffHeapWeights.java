@@ -0,0 +1,218 @@
+package main;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Weights matrix stored outside of the heap, in direct buffers: the weights do
+ * not count in the heap size and are never moved or scanned by the garbage
+ * collector. Each buffer is aligned to 64 bytes (a cache line, and the widest
+ * vector register) and holds at most 1 GB of whole rows, so the matrix can be
+ * bigger than the 2^31 elements of an array.
+ *
+ * The memory is released by free (i.e. when the Network is closed), or by the
+ * garbage collector when the storage is no longer reachable. The reads in
+ * progress when the weights are freed (between beginRead and endRead) keep the
+ * memory until they end, the last one releases it; the reads that begin
+ * afterwards throw an IllegalStateException. Direct memory is limited by
+ * -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ */
+final class OffHeapWeights implements WeightStorage {
+
+	static final int ALIGNMENT = 64;
+
+	private static final long MAX_BLOCK = 1 << 30;
+
+	// sign bit of the state, set once the weights have been freed
+	private static final int FREED = Integer.MIN_VALUE;
+
+	/*
+	 * sun.misc.Unsafe.invokeCleaner, to release a direct buffer without waiting
+	 * for the garbage collector. Null if not available.
+	 */
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			// the buffers are released by the garbage collector
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private final int rows;
+	private final int cols;
+	private final int rowsPerBlock;
+
+	/*
+	 * the allocated buffers (to release them) and the aligned float views.
+	 */
+	private final ByteBuffer[] buffers;
+	private final FloatBuffer[] blocks;
+
+	/*
+	 * number of reads in progress, plus the FREED bit: the memory is released when
+	 * the bit is set and there are no reads in progress, by free or by the last
+	 * read.
+	 */
+	private final AtomicInteger state = new AtomicInteger();
+
+	/**
+	 * Allocates a rows * cols matrix of zeros.
+	 */
+	OffHeapWeights(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+
+		long rowBytes = (long) cols * Float.BYTES;
+		rowsPerBlock = (int) Math.max(1, Math.min(rows, MAX_BLOCK / rowBytes));
+		buffers = new ByteBuffer[(rows + rowsPerBlock - 1) / rowsPerBlock];
+		blocks = new FloatBuffer[buffers.length];
+
+		for (int b = 0; b < buffers.length; b++) {
+			int n = Math.min(rowsPerBlock, rows - b * rowsPerBlock);
+			long size = n * rowBytes;
+			if (size + ALIGNMENT > Integer.MAX_VALUE)
+				throw new IllegalArgumentException(String.format("Row too big to be stored off-heap: %d weights.", cols));
+			buffers[b] = ByteBuffer.allocateDirect((int) size + ALIGNMENT - 1);
+			blocks[b] = block(b).asFloatBuffer();
+		}
+	}
+
+	/*
+	 * Copies the rows of the weights matrix (read from the storage if not null,
+	 * from the matrix otherwise) off-heap.
+	 */
+	static OffHeapWeights of(int rows, int cols, WeightStorage storage, float[][] matrix) {
+		OffHeapWeights weights = new OffHeapWeights(rows, cols);
+		float[] row = new float[cols];
+		for (int i = 0; i < rows; i++) {
+			if (storage != null)
+				storage.getRow(i, row);
+			else
+				row = matrix[i];
+			weights.setRow(i, row);
+		}
+		return weights;
+	}
+
+	@Override
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public int getCols() {
+		return cols;
+	}
+
+	/*
+	 * Number of blocks the matrix is split in.
+	 */
+	int getBlockCount() {
+		return blocks.length;
+	}
+
+	/*
+	 * The bytes of the block (little-endian floats), i.e. to read it from a
+	 * channel. Consecutive blocks hold consecutive rows.
+	 */
+	ByteBuffer block(int b) {
+		check();
+		int n = Math.min(rowsPerBlock, rows - b * rowsPerBlock);
+		ByteBuffer block = buffers[b].alignedSlice(ALIGNMENT);
+		block.limit(n * cols * Float.BYTES);
+		return block.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	void setRow(int row, float[] src) {
+		check();
+		FloatBuffer block = blocks[row / rowsPerBlock].duplicate();
+		block.position((row % rowsPerBlock) * cols);
+		block.put(src, 0, cols);
+	}
+
+	@Override
+	public void beginRead() {
+		int current;
+		do {
+			current = state.get();
+			if ((current & FREED) != 0)
+				throw new IllegalStateException("The off-heap weights have been released.");
+		} while (!state.compareAndSet(current, current + 1));
+	}
+
+	@Override
+	public void endRead() {
+		if (state.decrementAndGet() == FREED)
+			release();
+	}
+
+	/*
+	 * Must be invoked between beginRead and endRead.
+	 */
+	@Override
+	public float dot(int row, float[] input) {
+		FloatBuffer block = blocks[row / rowsPerBlock];
+		int base = (row % rowsPerBlock) * cols;
+
+		float res = 0;
+		for (int j = 0; j < cols; j++)
+			res += block.get(base + j) * input[j];
+		return res;
+	}
+
+	@Override
+	public void getRow(int row, float[] dst) {
+		beginRead();
+		try {
+			FloatBuffer block = blocks[row / rowsPerBlock].duplicate();
+			block.position((row % rowsPerBlock) * cols);
+			block.get(dst, 0, cols);
+		} finally {
+			endRead();
+		}
+	}
+
+	/**
+	 * Releases the memory, as soon as the reads in progress end. The weights
+	 * can't be used anymore.
+	 */
+	@Override
+	public void free() {
+		int previous = state.getAndUpdate(current -> current | FREED);
+		if (previous == 0)
+			release();
+	}
+
+	private void release() {
+		if (INVOKE_CLEANER == null)
+			return;
+		for (ByteBuffer buffer : buffers) {
+			try {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			} catch (Exception e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	private void check() {
+		if ((state.get() & FREED) != 0)
+			throw new IllegalStateException("The off-heap weights have been released.");
+	}
+}
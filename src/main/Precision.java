@@ -0,0 +1,42 @@
+package main;
+
+/**
+ * Precision in which the weights of a layer are stored. Half precision weights
+ * take half the memory and half the disk space of the float ones, and half the
+ * bytes have to be read from the memory at each feedforward: large networks,
+ * whose speed is bound by the memory bandwidth, get faster. The weights are
+ * converted to float right before being multiplied and the sums are computed
+ * in float, so only the rounding of the weights is lost.
+ */
+public enum Precision {
+
+	/**
+	 * 32 bit IEEE 754 float, the default one.
+	 */
+	Float32(4),
+
+	/**
+	 * 16 bit IEEE 754 half precision float: 11 significant bits, values up to
+	 * 65504. Weights beyond the range become infinite.
+	 */
+	Float16(2),
+
+	/**
+	 * 16 bit brain float: the upper half of a float. Same range of a float, 8
+	 * significant bits.
+	 */
+	BFloat16(2);
+
+	private final int size;
+
+	private Precision(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * Returns the size of a weight, in bytes.
+	 */
+	public int getSize() {
+		return size;
+	}
+}
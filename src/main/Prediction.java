@@ -0,0 +1,43 @@
+package main;
+
+/**
+ * Output of a prediction together with the version of the parameters of the
+ * network that produced it. The version is incremented each time the
+ * parameters are swapped, so predictions can be attributed to a model version
+ * (i.e. while a new version is being rolled out).
+ */
+public class Prediction {
+
+	private final float[] output;
+	private final long version;
+
+	Prediction(float[] output, long version) {
+		this.output = output;
+		this.version = version;
+	}
+
+	/**
+	 * Returns the output vector (output layer activation).
+	 */
+	public float[] getOutput() {
+		return output;
+	}
+
+	/**
+	 * Returns the version of the parameters used for the prediction.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the index of the greatest element of the output vector.
+	 */
+	public int getLabel() {
+		int index = 0;
+		for (int i = 1; i < output.length; i++)
+			if (output[i] > output[index])
+				index = i;
+		return index;
+	}
+}
@@ -0,0 +1,397 @@
+package main;
+
+import main.math.ActivationFunction;
+import main.training.DataSet;
+import main.training.Match;
+
+/**
+ * InferenceModel with 8 bit integer weights, four times smaller than the float
+ * ones. The weights of each neuron (row) are quantized symmetrically with their
+ * own scale, so that the greatest absolute weight of the row becomes 127. The
+ * input of each layer is quantized too, with a scale calibrated on a sample of
+ * the data (the greatest absolute value seen): as unsigned 8 bit values if it
+ * has never been negative (i.e. pixels, or the output of a Sigmoid or ReLU
+ * layer), as signed ones otherwise. The dot products are computed on ints and
+ * the result is scaled back to float only to add the bias and apply the
+ * activation function.
+ *
+ * The IDX files store the pixels as unsigned bytes: a model quantized with an
+ * explicit input scale (the float value of one unit of the raw bytes, i.e. 1 if
+ * the images are not normalized or 1/255 if they are scaled to [0, 1]) accepts
+ * the raw bytes as they are, without any conversion.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * QuantizedModel model = QuantizedModel.quantize(network, trainingSet.sample(1000));
+ * System.out.println(model.compare(network.freeze(), testSet));
+ * </pre>
+ */
+public final class QuantizedModel implements InferenceModel {
+
+	private final int[] n_input;
+	private final int[] n_neurons;
+	private final byte[][] weights;
+	private final float[][] scales; // scale of the input times the scale of the row
+	private final float[][] biases;
+	private final ActivationFunction[] activationFunctions;
+
+	/*
+	 * scale of the input of each layer and whether it is quantized as unsigned.
+	 */
+	private final float[] inputScales;
+	private final boolean[] unsigned;
+	private final boolean raw;
+
+	private final ThreadLocal<int[][]> scratch;
+
+	private QuantizedModel(Layer[] layers, float[] inputScales, boolean[] unsigned, boolean raw) {
+
+		int n = layers.length;
+		n_input = new int[n];
+		n_neurons = new int[n];
+		weights = new byte[n][];
+		scales = new float[n][];
+		biases = new float[n][];
+		activationFunctions = new ActivationFunction[n];
+		this.inputScales = inputScales;
+		this.unsigned = unsigned;
+		this.raw = raw;
+
+		for (int l = 0; l < n; l++) {
+			Layer layer = layers[l];
+			n_input[l] = layer.getInputNumber();
+			n_neurons[l] = layer.getNeuronNumber();
+			activationFunctions[l] = layer.getActivationFunction();
+			biases[l] = layer.getBiases().clone();
+
+			// the accumulator must not overflow: 255 * 127 for each input
+			if (n_input[l] > Integer.MAX_VALUE / (255 * 127))
+				throw new IllegalArgumentException(
+						String.format("Too many inputs in layer %d to be quantized: %d.", l, n_input[l]));
+
+			weights[l] = new byte[n_neurons[l] * n_input[l]];
+			scales[l] = new float[n_neurons[l]];
+			float[] row = new float[n_input[l]];
+			for (int i = 0; i < n_neurons[l]; i++) {
+				layer.getWeights(i, row);
+
+				float max = 0;
+				for (float w : row)
+					max = Math.max(max, Math.abs(w));
+				float scale = max > 0 ? max / 127 : 1;
+
+				for (int j = 0; j < row.length; j++)
+					weights[l][i * n_input[l] + j] = (byte) clamp(Math.round(row[j] / scale), -127, 127);
+				scales[l][i] = inputScales[l] * scale;
+			}
+		}
+
+		scratch = ThreadLocal.withInitial(() -> {
+			int[][] buffers = new int[n][];
+			for (int l = 0; l < n; l++)
+				buffers[l] = new int[n_input[l]];
+			return buffers;
+		});
+	}
+
+	/**
+	 * Quantizes the network, calibrating the scale of the input of each layer on
+	 * the set.
+	 *
+	 * @param network     the network
+	 * @param calibration a sample of the inputs the model will be used for
+	 * @return the quantized model
+	 */
+	public static QuantizedModel quantize(Network network, DataSet calibration) {
+		return quantize(network, calibration, Float.NaN);
+	}
+
+	/**
+	 * Quantizes the network for raw unsigned byte inputs, calibrating the scale of
+	 * the input of the hidden layers on the set. The inputs of the calibration set
+	 * must be the raw bytes multiplied by the input scale.
+	 *
+	 * @param network     the network
+	 * @param calibration a sample of the inputs the model will be used for
+	 * @param inputScale  the float value of one unit of the raw bytes
+	 * @return the quantized model
+	 */
+	public static QuantizedModel quantize(Network network, DataSet calibration, float inputScale) {
+
+		if (!Float.isNaN(inputScale) && !(inputScale > 0))
+			throw new IllegalArgumentException("The input scale must be positive.");
+		if (calibration.size() == 0)
+			throw new IllegalArgumentException("The calibration set is empty.");
+
+		Layer[] layers = network.getPublishedLayers();
+		int n = layers.length;
+
+		// range of the input of each layer
+		float[] min = new float[n];
+		float[] max = new float[n];
+		float[][] buffers = new float[n][];
+		for (int l = 0; l < n; l++)
+			buffers[l] = new float[layers[l].getNeuronNumber()];
+
+		for (Match match : calibration) {
+			float[] in = match.getInput();
+			for (int l = 0; l < n; l++) {
+				for (float x : in) {
+					min[l] = Math.min(min[l], x);
+					max[l] = Math.max(max[l], x);
+				}
+				layers[l].activate(in, buffers[l]);
+				in = buffers[l];
+			}
+		}
+
+		float[] inputScales = new float[n];
+		boolean[] unsigned = new boolean[n];
+		for (int l = 0; l < n; l++) {
+			unsigned[l] = min[l] >= 0;
+			float range = Math.max(-min[l], max[l]);
+			inputScales[l] = range > 0 ? range / (unsigned[l] ? 255 : 127) : 1;
+		}
+
+		boolean raw = !Float.isNaN(inputScale);
+		if (raw) {
+			if (!unsigned[0])
+				throw new IllegalArgumentException("The calibration set has negative inputs: they can't be raw bytes.");
+			inputScales[0] = inputScale;
+		}
+
+		return new QuantizedModel(layers, inputScales, unsigned, raw);
+	}
+
+	// getters
+
+	@Override
+	public int getInputNumber() {
+		return n_input[0];
+	}
+
+	@Override
+	public int getOutputNumber() {
+		return n_neurons[n_neurons.length - 1];
+	}
+
+	/**
+	 * Returns true if the model accepts raw bytes as input.
+	 */
+	public boolean isRaw() {
+		return raw;
+	}
+
+	/**
+	 * Returns the memory taken by the weights, the scales and the biases, in
+	 * bytes.
+	 */
+	public long getSize() {
+		long size = 0;
+		for (int l = 0; l < weights.length; l++)
+			size += weights[l].length + (long) (scales[l].length + biases[l].length) * Float.BYTES;
+		return size;
+	}
+
+	// object
+
+	@Override
+	public void predict(float[] input, float[] output) {
+		int[][] buffers = scratch.get();
+		int[] q = buffers[0];
+		float reciprocal = 1 / inputScales[0];
+		int low = unsigned[0] ? 0 : -127;
+		int high = unsigned[0] ? 255 : 127;
+		for (int j = 0; j < q.length; j++)
+			q[j] = clamp(Math.round(input[j] * reciprocal), low, high);
+		forward(buffers, output);
+	}
+
+	/**
+	 * Computes the output for the raw unsigned bytes of the input (i.e. the pixels
+	 * as stored in an IDX file), writing it in the output vector. The model must
+	 * have been quantized with an input scale.
+	 */
+	public void predict(byte[] input, float[] output) {
+		if (!raw)
+			throw new IllegalStateException("The model has not been quantized for raw inputs.");
+		int[][] buffers = scratch.get();
+		int[] q = buffers[0];
+		for (int j = 0; j < q.length; j++)
+			q[j] = input[j] & 0xFF;
+		forward(buffers, output);
+	}
+
+	/*
+	 * Feeds the quantized input (in the first buffer) through the layers,
+	 * quantizing the output of each hidden layer in the buffer of the next one.
+	 */
+	private void forward(int[][] buffers, float[] output) {
+
+		int last = weights.length - 1;
+		for (int l = 0; l <= last; l++) {
+
+			int[] in = buffers[l];
+			byte[] w = weights[l];
+			float[] s = scales[l];
+			float[] b = biases[l];
+			ActivationFunction f = activationFunctions[l];
+			int n = n_input[l];
+
+			if (l == last) {
+				for (int i = 0, offset = 0; i < n_neurons[l]; i++, offset += n)
+					output[i] = f.execute(dot(w, offset, in, n) * s[i] + b[i]);
+			} else {
+				int[] out = buffers[l + 1];
+				float reciprocal = 1 / inputScales[l + 1];
+				int low = unsigned[l + 1] ? 0 : -127;
+				int high = unsigned[l + 1] ? 255 : 127;
+				for (int i = 0, offset = 0; i < n_neurons[l]; i++, offset += n) {
+					float a = f.execute(dot(w, offset, in, n) * s[i] + b[i]);
+					out[i] = clamp(Math.round(a * reciprocal), low, high);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Integer dot product between the row of the weights that starts at the
+	 * offset and the quantized input. Unlike the float one, it is exact in any
+	 * order, and a single accumulator lets the JIT vectorize the loop.
+	 */
+	private static int dot(byte[] weights, int offset, int[] input, int n) {
+		int s = 0;
+		for (int j = 0; j < n; j++)
+			s += weights[offset + j] * input[j];
+		return s;
+	}
+
+	private static int clamp(int value, int low, int high) {
+		return value < low ? low : value > high ? high : value;
+	}
+
+	/**
+	 * Compares the model with a reference one (i.e. the float model of
+	 * Network.freeze) on the set.
+	 *
+	 * @param reference the reference model
+	 * @param set       the set, with labels to compute the accuracy
+	 * @return the report of the comparison
+	 */
+	public Report compare(InferenceModel reference, DataSet set) {
+
+		int samples = 0, labelled = 0, referenceCorrect = 0, correct = 0, agreements = 0;
+		double maxError = 0, totalError = 0;
+		float[] expected = new float[getOutputNumber()];
+		float[] actual = new float[getOutputNumber()];
+
+		for (Match match : set) {
+			reference.predict(match.getInput(), expected);
+			predict(match.getInput(), actual);
+
+			int expectedLabel = argmax(expected);
+			int actualLabel = argmax(actual);
+			if (expectedLabel == actualLabel)
+				agreements++;
+			if (match.hasLabel()) {
+				labelled++;
+				if (expectedLabel == match.getLabel())
+					referenceCorrect++;
+				if (actualLabel == match.getLabel())
+					correct++;
+			}
+
+			for (int i = 0; i < actual.length; i++) {
+				double error = Math.abs(actual[i] - expected[i]);
+				maxError = Math.max(maxError, error);
+				totalError += error;
+			}
+			samples++;
+		}
+
+		return new Report(samples, labelled == 0 ? Float.NaN : (float) referenceCorrect / labelled,
+				labelled == 0 ? Float.NaN : (float) correct / labelled, samples == 0 ? Float.NaN : (float) agreements / samples,
+				(float) maxError, samples == 0 ? Float.NaN : (float) (totalError / ((long) samples * actual.length)));
+	}
+
+	private static int argmax(float[] output) {
+		int index = 0;
+		for (int i = 1; i < output.length; i++)
+			if (output[i] > output[index])
+				index = i;
+		return index;
+	}
+
+	/**
+	 * Accuracy of the quantized model compared with the reference one.
+	 */
+	public static class Report {
+
+		private final int samples;
+		private final float referenceAccuracy;
+		private final float accuracy;
+		private final float agreement;
+		private final float maxError;
+		private final float meanError;
+
+		Report(int samples, float referenceAccuracy, float accuracy, float agreement, float maxError, float meanError) {
+			this.samples = samples;
+			this.referenceAccuracy = referenceAccuracy;
+			this.accuracy = accuracy;
+			this.agreement = agreement;
+			this.maxError = maxError;
+			this.meanError = meanError;
+		}
+
+		public int getSamples() {
+			return samples;
+		}
+
+		/**
+		 * Returns the fraction of the labelled samples classified correctly by the
+		 * reference model.
+		 */
+		public float getReferenceAccuracy() {
+			return referenceAccuracy;
+		}
+
+		/**
+		 * Returns the fraction of the labelled samples classified correctly by the
+		 * quantized model.
+		 */
+		public float getAccuracy() {
+			return accuracy;
+		}
+
+		/**
+		 * Returns the fraction of the samples classified the same way by the two
+		 * models.
+		 */
+		public float getAgreement() {
+			return agreement;
+		}
+
+		/**
+		 * Returns the greatest absolute difference between an output of the two
+		 * models.
+		 */
+		public float getMaxError() {
+			return maxError;
+		}
+
+		/**
+		 * Returns the mean absolute difference between the outputs of the two models.
+		 */
+		public float getMeanError() {
+			return meanError;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"Samples: %d\nReference accuracy: %f%%\nQuantized accuracy: %f%%\nAgreement: %f%%\nMax error: %f\nMean error: %f",
+					samples, referenceAccuracy * 100, accuracy * 100, agreement * 100, maxError, meanError);
+		}
+	}
+}
@@ -0,0 +1,478 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import main.math.ActivationFunction;
+import main.math.CostFunction;
+import main.math.Initializer;
+import main.training.AugmentedDataSet;
+import main.training.DataSet;
+
+/**
+ * Snapshot of a network during the training, with everything that is needed to
+ * resume the training exactly where it stopped: the parameters of the layers
+ * and the deltas accumulated since the last update, the batch size and the
+ * number of epochs, the current epoch and the position in it, the order of the
+ * dataset and the seed the dataset is shuffled with at each epoch.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * TrainingState state = TrainingState.load(checkpointer.latest());
+ * network.train(dataSet, state); // continues up to the total number of epochs
+ * </pre>
+ *
+ * The dataset given back to the network must be the same one (the same
+ * matches, added in the same order) the state was taken from; augmented
+ * datasets must have the same seed and stages.
+ *
+ * States are saved in a binary format similar to the .net one: a header
+ * followed by the order of the dataset and by the parameters and deltas of each
+ * layer as blocks of little-endian numbers.
+ */
+public class TrainingState {
+
+	public static final String ext = "state";
+
+	static final int MAGIC = 0x53544E4E; // NNTS
+	static final short VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/*
+	 * parameters and deltas of a layer.
+	 */
+	private static class LayerState {
+		int n_input;
+		int n_neurons;
+		float learningRate;
+		ActivationFunction activationFunction;
+		Initializer initializer;
+
+		float[][] weights;
+		float[] biases;
+
+		// null if the layer has no deltas or they have not been captured
+		float[][] delta_weights;
+		float[] delta_biases;
+		int batch;
+	}
+
+	private CostFunction costFunction;
+	private LayerState[] layers;
+
+	private int batchSize;
+	private int epochs;
+	private int epoch;
+	private int position;
+
+	private boolean shuffle;
+	private long seed;
+
+	/*
+	 * iteration order of the dataset in the current epoch, null if unknown.
+	 */
+	private int[] order;
+
+	/*
+	 * epoch of the next iteration of an augmented dataset, -1 for the other
+	 * datasets.
+	 */
+	private int dataSetEpoch = -1;
+
+	TrainingState() {
+	}
+
+	// getters
+
+	public CostFunction getCostFunction() {
+		return costFunction;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Returns the total number of epochs of the training.
+	 */
+	public int getEpochs() {
+		return epochs;
+	}
+
+	/**
+	 * Returns the epoch the training resumes from, counted from zero.
+	 */
+	public int getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Returns the number of matches of the current epoch already used.
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns true if the dataset is shuffled at the start of each epoch.
+	 */
+	public boolean isShuffled() {
+		return shuffle;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns true if all the epochs have been completed.
+	 */
+	public boolean isComplete() {
+		return epoch >= epochs;
+	}
+
+	/**
+	 * Returns a new network with the parameters of the snapshot.
+	 */
+	public Network getNetwork() {
+		return new Network(createLayers(true), costFunction);
+	}
+
+	// object
+
+	/*
+	 * Copies the state of the network in this snapshot, reusing the arrays of the
+	 * previous capture when possible. The deltas are captured only if requested.
+	 * Invoked from the thread that trains the network.
+	 */
+	void capture(Network network, boolean deltas) {
+
+		Layer[] src = network.getLayers();
+		if (layers == null || layers.length != src.length)
+			layers = new LayerState[src.length];
+
+		for (int l = 0; l < src.length; l++) {
+			Layer layer = src[l];
+			LayerState dst = layers[l];
+
+			if (dst == null || dst.n_input != layer.getInputNumber() || dst.n_neurons != layer.getNeuronNumber()) {
+				dst = layers[l] = new LayerState();
+				dst.n_input = layer.getInputNumber();
+				dst.n_neurons = layer.getNeuronNumber();
+				dst.weights = new float[dst.n_neurons][dst.n_input];
+				dst.biases = new float[dst.n_neurons];
+			}
+
+			dst.learningRate = layer.getLearningRate();
+			dst.activationFunction = layer.getActivationFunction();
+			dst.initializer = layer.getInitializer();
+
+			for (int i = 0; i < dst.n_neurons; i++)
+				layer.getWeights(i, dst.weights[i]);
+			System.arraycopy(layer.getBiases(), 0, dst.biases, 0, dst.n_neurons);
+
+			dst.batch = layer.getBatch();
+			if (deltas && layer.getDeltaWeights() != null) {
+				if (dst.delta_weights == null) {
+					dst.delta_weights = new float[dst.n_neurons][dst.n_input];
+					dst.delta_biases = new float[dst.n_neurons];
+				}
+				for (int i = 0; i < dst.n_neurons; i++)
+					System.arraycopy(layer.getDeltaWeights()[i], 0, dst.delta_weights[i], 0, dst.n_input);
+				System.arraycopy(layer.getDeltaBiases(), 0, dst.delta_biases, 0, dst.n_neurons);
+			} else {
+				dst.delta_weights = null;
+				dst.delta_biases = null;
+			}
+		}
+
+		costFunction = network.getCostFunction();
+		batchSize = network.batch_size;
+		epochs = network.total_epoch;
+		epoch = network.current_epoch;
+		position = network.current_match;
+		shuffle = network.shuffle;
+		seed = network.seed;
+
+		DataSet set = network.training_set;
+		if (set != null) {
+			order = set.getOrder();
+			dataSetEpoch = set instanceof AugmentedDataSet ? ((AugmentedDataSet) set).getEpoch() : -1;
+
+			/*
+			 * at the end of an epoch, the training resumes from the next one (the
+			 * augmentation moves to the next epoch only after the checkpoints of the
+			 * epoch).
+			 */
+			if (position >= set.size()) {
+				epoch++;
+				position = 0;
+				if (dataSetEpoch >= 0)
+					dataSetEpoch++;
+			}
+		} else {
+			order = null;
+			dataSetEpoch = -1;
+		}
+	}
+
+	/*
+	 * True if the other snapshot has been taken from a network with the same
+	 * structure.
+	 */
+	boolean isCompatible(TrainingState other) {
+		if (layers == null || other.layers == null || layers.length != other.layers.length)
+			return false;
+		for (int l = 0; l < layers.length; l++)
+			if (layers[l].n_input != other.layers[l].n_input || layers[l].n_neurons != other.layers[l].n_neurons)
+				return false;
+		return true;
+	}
+
+	/*
+	 * Creates the layers of the snapshot. If copy is false, the layers share the
+	 * arrays of the snapshot (i.e. to write them).
+	 */
+	Layer[] createLayers(boolean copy) {
+		Layer[] res = new Layer[layers.length];
+		for (int l = 0; l < layers.length; l++) {
+			LayerState src = layers[l];
+
+			float[][] weights = src.weights;
+			float[] biases = src.biases;
+			if (copy) {
+				weights = new float[src.n_neurons][];
+				for (int i = 0; i < weights.length; i++)
+					weights[i] = src.weights[i].clone();
+				biases = biases.clone();
+			}
+
+			res[l] = new Layer(src.n_input, src.n_neurons, src.activationFunction, src.initializer, src.learningRate,
+					weights, biases);
+
+			if (copy && src.delta_weights != null) {
+				float[][] delta_weights = new float[src.n_neurons][];
+				for (int i = 0; i < delta_weights.length; i++)
+					delta_weights[i] = src.delta_weights[i].clone();
+				res[l].setDeltas(delta_weights, src.delta_biases.clone(), src.batch);
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * Restores the order of the dataset and, for an augmented dataset, the epoch
+	 * of the augmentation.
+	 */
+	void restore(DataSet set) {
+		if (order != null)
+			set.setOrder(order);
+		if (dataSetEpoch >= 0 && set instanceof AugmentedDataSet)
+			((AugmentedDataSet) set).setEpoch(dataSetEpoch);
+	}
+
+	/**
+	 * Saves the snapshot in the file.
+	 */
+	public void save(File file) throws IOException {
+
+		if (!file.getName().endsWith('.' + ext))
+			throw new IllegalArgumentException("Invalid file type.");
+
+		write(file, false);
+	}
+
+	/*
+	 * If force is true the content of the file is forced on the storage device
+	 * before returning.
+	 */
+	void write(File file, boolean force) throws IOException {
+
+		int size = 4 + 2 + 2 + 4 + NetworkCodec.stringSize(costFunction.name()) + 4 * 4 + 1 + 8 + 4 + 4 + 4;
+		for (LayerState layer : layers)
+			size += 4 + 4 + 4 + NetworkCodec.stringSize(layer.activationFunction.name())
+					+ NetworkCodec.stringSize(layer.initializer.name()) + 4 + 1;
+		size = (size + NetworkCodec.ALIGNMENT - 1) / NetworkCodec.ALIGNMENT * NetworkCodec.ALIGNMENT;
+
+		ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(size);
+		NetworkCodec.putString(header, costFunction.name());
+		header.putInt(batchSize).putInt(epochs).putInt(epoch).putInt(position);
+		header.put((byte) (shuffle ? 1 : 0)).putLong(seed).putInt(dataSetEpoch);
+		header.putInt(order == null ? -1 : order.length);
+
+		header.putInt(layers.length);
+		for (LayerState layer : layers) {
+			header.putInt(layer.n_input).putInt(layer.n_neurons).putFloat(layer.learningRate);
+			NetworkCodec.putString(header, layer.activationFunction.name());
+			NetworkCodec.putString(header, layer.initializer.name());
+			header.putInt(layer.batch).put((byte) (layer.delta_weights != null ? 1 : 0));
+		}
+		header.position(header.capacity());
+		header.flip();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			while (header.hasRemaining())
+				channel.write(header);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			if (order != null)
+				for (int i = 0; i < order.length; i++) {
+					if (buffer.remaining() < Integer.BYTES)
+						NetworkCodec.flush(channel, buffer);
+					buffer.putInt(order[i]);
+				}
+
+			for (LayerState layer : layers) {
+				for (float[] row : layer.weights)
+					NetworkCodec.put(channel, buffer, row);
+				NetworkCodec.put(channel, buffer, layer.biases);
+				if (layer.delta_weights != null) {
+					for (float[] row : layer.delta_weights)
+						NetworkCodec.put(channel, buffer, row);
+					NetworkCodec.put(channel, buffer, layer.delta_biases);
+				}
+			}
+			NetworkCodec.flush(channel, buffer);
+
+			if (force)
+				channel.force(true);
+		}
+	}
+
+	/**
+	 * Loads a snapshot saved by save or by a Checkpointer.
+	 */
+	public static TrainingState load(File file) throws IOException {
+
+		String name = file.getName();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			ByteBuffer preamble = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			NetworkCodec.readFully(channel, preamble, name);
+			preamble.flip();
+
+			if (preamble.getInt() != MAGIC)
+				throw new IOException(String.format("Unknown file format for: %s.", name));
+			short version = preamble.getShort();
+			if (version != VERSION)
+				throw new IOException(String.format("Unsupported version %d for: %s.", version, name));
+			preamble.getShort(); // flags, unused
+
+			int size = preamble.getInt();
+			if (size < preamble.capacity() || size % NetworkCodec.ALIGNMENT != 0)
+				throw new IOException(String.format("Corrupted header in: %s.", name));
+
+			ByteBuffer header = ByteBuffer.allocate(size - preamble.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+			NetworkCodec.readFully(channel, header, name);
+			header.flip();
+
+			TrainingState state = new TrainingState();
+			int orderLength;
+			boolean[] deltas;
+
+			try {
+				state.costFunction = CostFunction.valueOf(NetworkCodec.getString(header));
+				state.batchSize = header.getInt();
+				state.epochs = header.getInt();
+				state.epoch = header.getInt();
+				state.position = header.getInt();
+				state.shuffle = header.get() != 0;
+				state.seed = header.getLong();
+				state.dataSetEpoch = header.getInt();
+				orderLength = header.getInt();
+
+				if (orderLength < -1)
+					throw new IOException(String.format("Corrupted header in: %s (order of %d matches).", name,
+							orderLength));
+
+				// each layer takes more than one byte of the header
+				int count = header.getInt();
+				if (count < 1 || count > header.remaining())
+					throw new IOException(String.format("Corrupted header in: %s (%d layers).", name, count));
+				state.layers = new LayerState[count];
+				deltas = new boolean[state.layers.length];
+				for (int l = 0; l < state.layers.length; l++) {
+					LayerState layer = state.layers[l] = new LayerState();
+					layer.n_input = header.getInt();
+					layer.n_neurons = header.getInt();
+					layer.learningRate = header.getFloat();
+					layer.activationFunction = ActivationFunction.valueOf(NetworkCodec.getString(header));
+					layer.initializer = Initializer.valueOf(NetworkCodec.getString(header));
+					layer.batch = header.getInt();
+					deltas[l] = header.get() != 0;
+
+					if (layer.n_input < 1 || layer.n_neurons < 1)
+						throw new IOException(String.format("Corrupted header in: %s (layer[%d] is %dx%d).", name, l,
+								layer.n_neurons, layer.n_input));
+					if (l > 0 && layer.n_input != state.layers[l - 1].n_neurons)
+						throw new IOException(
+								String.format("Corrupted header in: %s (n_input_%d[%d] != n_neuron_%d[%d]).", name, l,
+										layer.n_input, l - 1, state.layers[l - 1].n_neurons));
+				}
+			} catch (RuntimeException e) { // buffer underflow, unknown enum constants
+				throw new IOException(String.format("Corrupted header in: %s.", name), e);
+			}
+
+			// the size of the payload is checked before allocating it
+			long payload = Math.max(0, orderLength);
+			for (int l = 0; l < state.layers.length; l++) {
+				LayerState layer = state.layers[l];
+				payload += ((long) layer.n_neurons * layer.n_input + layer.n_neurons) * (deltas[l] ? 2 : 1);
+			}
+			if (payload * Float.BYTES != channel.size() - channel.position())
+				throw new IOException(String.format("Corrupted file: %s.", name));
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.flip(); // empty
+
+			if (orderLength >= 0) {
+				state.order = new int[orderLength];
+				int i = 0;
+				while (i < orderLength) {
+					if (buffer.remaining() < Integer.BYTES) {
+						buffer.compact();
+						if (channel.read(buffer) < 0)
+							throw new IOException(String.format("Truncated file: %s.", name));
+						buffer.flip();
+						continue;
+					}
+					state.order[i++] = buffer.getInt();
+				}
+			}
+
+			for (int l = 0; l < state.layers.length; l++) {
+				LayerState layer = state.layers[l];
+
+				layer.weights = new float[layer.n_neurons][layer.n_input];
+				for (float[] row : layer.weights)
+					NetworkCodec.get(channel, buffer, row, name);
+				layer.biases = new float[layer.n_neurons];
+				NetworkCodec.get(channel, buffer, layer.biases, name);
+
+				if (deltas[l]) {
+					layer.delta_weights = new float[layer.n_neurons][layer.n_input];
+					for (float[] row : layer.delta_weights)
+						NetworkCodec.get(channel, buffer, row, name);
+					layer.delta_biases = new float[layer.n_neurons];
+					NetworkCodec.get(channel, buffer, layer.delta_biases, name);
+				}
+			}
+
+			if (buffer.hasRemaining() || channel.position() != channel.size())
+				throw new IOException(String.format("Corrupted file: %s.", name));
+
+			return state;
+		}
+	}
+}
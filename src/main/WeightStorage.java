@@ -0,0 +1,62 @@
+package main;
+
+/**
+ * Storage of the weights matrix of a Layer other than the default float[][] on
+ * the heap (i.e. a memory-mapped file, or off-heap memory). A Layer backed by a WeightStorage uses
+ * it for the feedforward only: as soon as the weights have to be modified or
+ * exposed through getWeights, they are copied in a float[][] on the heap and
+ * the storage is dropped (copy-on-write).
+ */
+interface WeightStorage {
+
+	int getRows();
+
+	int getCols();
+
+	/**
+	 * Marks the beginning of a read of the storage (i.e. a feedforward through
+	 * the layer), that must be followed by endRead: a storage released by free
+	 * keeps its memory until the reads in progress end.
+	 */
+	default void beginRead() {
+	}
+
+	default void endRead() {
+	}
+
+	/**
+	 * Returns the dot product between the given row and the input vector, between
+	 * beginRead and endRead.
+	 */
+	float dot(int row, float[] input);
+
+	/**
+	 * Copies the given row in the destination array.
+	 */
+	void getRow(int row, float[] dst);
+
+	/**
+	 * Returns an estimate of the heap memory taken by the storage, in bytes: zero
+	 * for the storages outside of the heap.
+	 */
+	default long getHeapSize() {
+		return 0;
+	}
+
+	/**
+	 * Releases the memory of the storage, if it can be released explicitly, once
+	 * the reads in progress end. The storage can't be used afterwards.
+	 */
+	default void free() {
+	}
+
+	/**
+	 * Copies the whole matrix on the heap.
+	 */
+	default float[][] toArray() {
+		float[][] res = new float[getRows()][getCols()];
+		for (int i = 0; i < res.length; i++)
+			getRow(i, res[i]);
+		return res;
+	}
+}
@@ -54,6 +54,15 @@ public enum ActivationFunction {
 		public float derivative(float z) {
 			return 1 / (z * z + 1);
 		}
+	},
+	Identity {
+		public float execute(float z) {
+			return z;
+		}
+
+		public float derivative(float z) {
+			return 1;
+		}
 	};
 
 	public abstract float execute(float z);
@@ -102,7 +102,7 @@ public class TestEMNIST {
 		// training
 		File dataFile = selectFile(chooser, "Select training binary data file");
 		File labelFile = selectFile(chooser, "Select training label file");
-		DataSet dataSet = new LetterDataSet().createSet(dataFile, labelFile);
+		DataSet dataSet = new LetterDataSet().createCachedSet(dataFile, labelFile);
 
 		int batchSize = 5;
 		int epochs = 100;
@@ -123,7 +123,7 @@ public class TestEMNIST {
 		// testing
 		dataFile = selectFile(chooser, "Select testing binary data file");
 		labelFile = selectFile(chooser, "Select testing label file");
-		DataSet testSet = new LetterDataSet().createSet(dataFile, labelFile);
+		DataSet testSet = new LetterDataSet().createCachedSet(dataFile, labelFile);
 
 		testSet.shuffle();
 		
@@ -37,7 +37,7 @@ public class TestMNIST {
 		// training
 		File dataFile = new File(TestMNIST.class.getResource("/resources/mnist/train-images.idx3-ubyte").getPath());
 		File labelFile = new File(TestMNIST.class.getResource("/resources/mnist/train-labels.idx1-ubyte").getPath());
-		DataSet dataSet = new DigitDataSet().createSet(dataFile, labelFile);
+		DataSet dataSet = new DigitDataSet().createCachedSet(dataFile, labelFile);
 
 		network.verbose(false);
 
@@ -76,7 +76,7 @@ public class TestMNIST {
 		// testing
 		dataFile = new File(TestMNIST.class.getResource("/resources/mnist/t10k-images.idx3-ubyte").getPath());
 		labelFile = new File(TestMNIST.class.getResource("/resources/mnist/t10k-labels.idx1-ubyte").getPath());
-		DataSet testSet = new DigitDataSet().createSet(dataFile, labelFile);
+		DataSet testSet = new DigitDataSet().createCachedSet(dataFile, labelFile);
 
 		try {
 
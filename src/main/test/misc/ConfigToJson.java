@@ -1,5 +1,6 @@
 package main.test.misc;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -9,8 +10,6 @@ import javax.swing.JFileChooser;
 import javax.swing.UIManager;
 import javax.swing.filechooser.FileFilter;
 
-import com.google.gson.Gson;
-
 import main.Network;
 
 public class ConfigToJson {
@@ -55,11 +54,9 @@ public class ConfigToJson {
 			if (n == JFileChooser.APPROVE_OPTION) {
 				String filePath = fileChooser.getSelectedFile().getAbsolutePath();
 
-				// write the json on a file
-				Gson gson = new Gson();
-				Writer writer = new FileWriter(filePath);
-				gson.toJson(network, writer);
-				writer.flush();
+				// write the json on a file, streaming it
+				Writer writer = new BufferedWriter(new FileWriter(filePath));
+				network.toJson(writer);
 		        writer.close();
 			}
 		}
@@ -0,0 +1,180 @@
+package main.training;
+
+import java.util.Random;
+
+/**
+ * A stage of a data augmentation pipeline. Each stage reads an image from the
+ * source array and writes the transformed image in the destination array; the
+ * two arrays are never the same. The image is stored row by row, so the pixel
+ * at column x and row y is at index y * width + x.
+ *
+ * The random source is seeded by the AugmentedDataSet for each sample and each
+ * epoch, so a stage must take all its randomness from it in order for the
+ * augmentation to be reproducible.
+ *
+ * Stages for the most common transformations are created by the static
+ * methods of this interface; additional stages can be written as lambdas.
+ */
+public interface Augmentation {
+
+	void apply(float[] src, float[] dst, int width, int height, Random random);
+
+	/**
+	 * Translates the image by a random number of pixels, between -maxPixels and
+	 * maxPixels, in each direction. The uncovered pixels are set to zero.
+	 */
+	public static Augmentation shift(int maxPixels) {
+		if (maxPixels < 0)
+			throw new IllegalArgumentException("maxPixels must be >= 0.");
+
+		return (src, dst, width, height, random) -> {
+			int dx = random.nextInt(2 * maxPixels + 1) - maxPixels;
+			int dy = random.nextInt(2 * maxPixels + 1) - maxPixels;
+
+			for (int y = 0; y < height; y++) {
+				int sy = y - dy;
+				for (int x = 0; x < width; x++) {
+					int sx = x - dx;
+					dst[y * width + x] = sx >= 0 && sx < width && sy >= 0 && sy < height ? src[sy * width + sx] : 0;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Rotates the image around its center by a random angle, between -maxDegrees
+	 * and maxDegrees. Pixels are bilinearly interpolated.
+	 */
+	public static Augmentation rotation(float maxDegrees) {
+		if (maxDegrees < 0)
+			throw new IllegalArgumentException("maxDegrees must be >= 0.");
+
+		return (src, dst, width, height, random) -> {
+			double angle = Math.toRadians((random.nextDouble() * 2 - 1) * maxDegrees);
+			float cos = (float) Math.cos(angle);
+			float sin = (float) Math.sin(angle);
+			float cx = (width - 1) / 2.0f;
+			float cy = (height - 1) / 2.0f;
+
+			// inverse mapping: each destination pixel is taken from the rotated position
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++) {
+					float rx = x - cx;
+					float ry = y - cy;
+					dst[y * width + x] = sample(src, width, height, cos * rx + sin * ry + cx, -sin * rx + cos * ry + cy);
+				}
+		};
+	}
+
+	/**
+	 * Elastic distortion (Simard et al., 2003): each pixel is displaced by a
+	 * random field, smoothed with a gaussian filter of the given standard
+	 * deviation and scaled by alpha. Typical values for 28x28 images are alpha =
+	 * 34 and sigma = 4.
+	 */
+	public static Augmentation elastic(float alpha, float sigma) {
+		if (sigma <= 0)
+			throw new IllegalArgumentException("sigma must be > 0.");
+
+		int radius = (int) Math.ceil(3 * sigma);
+		float[] kernel = new float[2 * radius + 1];
+		float sum = 0;
+		for (int i = -radius; i <= radius; i++)
+			sum += kernel[i + radius] = (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+		for (int i = 0; i < kernel.length; i++)
+			kernel[i] /= sum;
+
+		/*
+		 * displacement fields and scratch buffer for the separable filter, one set per
+		 * worker thread.
+		 */
+		ThreadLocal<float[][]> fields = new ThreadLocal<>();
+
+		return (src, dst, width, height, random) -> {
+			int n = width * height;
+			float[][] buffers = fields.get();
+			if (buffers == null || buffers[0].length != n) {
+				buffers = new float[3][n];
+				fields.set(buffers);
+			}
+			float[] dx = buffers[0];
+			float[] dy = buffers[1];
+			float[] tmp = buffers[2];
+
+			for (int i = 0; i < n; i++) {
+				dx[i] = random.nextFloat() * 2 - 1;
+				dy[i] = random.nextFloat() * 2 - 1;
+			}
+			smooth(dx, tmp, width, height, kernel);
+			smooth(dy, tmp, width, height, kernel);
+
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++) {
+					int i = y * width + x;
+					dst[i] = sample(src, width, height, x + alpha * dx[i], y + alpha * dy[i]);
+				}
+		};
+	}
+
+	/**
+	 * Adds gaussian noise with the given standard deviation to each pixel.
+	 */
+	public static Augmentation noise(float stddev) {
+		if (stddev < 0)
+			throw new IllegalArgumentException("stddev must be >= 0.");
+
+		return (src, dst, width, height, random) -> {
+			for (int i = 0; i < width * height; i++)
+				dst[i] = src[i] + (float) random.nextGaussian() * stddev;
+		};
+	}
+
+	/**
+	 * Bilinear interpolation of the image at the (x, y) position. Pixels outside
+	 * the image are considered zero.
+	 */
+	public static float sample(float[] image, int width, int height, float x, float y) {
+		int x0 = (int) Math.floor(x);
+		int y0 = (int) Math.floor(y);
+		float fx = x - x0;
+		float fy = y - y0;
+
+		return (1 - fy) * ((1 - fx) * pixel(image, width, height, x0, y0) + fx * pixel(image, width, height, x0 + 1, y0))
+				+ fy * ((1 - fx) * pixel(image, width, height, x0, y0 + 1)
+						+ fx * pixel(image, width, height, x0 + 1, y0 + 1));
+	}
+
+	static float pixel(float[] image, int width, int height, int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height ? image[y * width + x] : 0;
+	}
+
+	/*
+	 * Separable gaussian filter (in-place), first along the rows and then along
+	 * the columns.
+	 */
+	static void smooth(float[] field, float[] tmp, int width, int height, float[] kernel) {
+		int radius = kernel.length / 2;
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				float sum = 0;
+				for (int k = -radius; k <= radius; k++) {
+					int sx = x + k;
+					if (sx >= 0 && sx < width)
+						sum += kernel[k + radius] * field[y * width + sx];
+				}
+				tmp[y * width + x] = sum;
+			}
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				float sum = 0;
+				for (int k = -radius; k <= radius; k++) {
+					int sy = y + k;
+					if (sy >= 0 && sy < height)
+						sum += kernel[k + radius] * tmp[sy * width + x];
+				}
+				field[y * width + x] = sum;
+			}
+	}
+}
@@ -0,0 +1,378 @@
+package main.training;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Dataset that augments the images of another dataset on the fly, without
+ * storing the augmented copies. When the dataset is iterated, the matches of
+ * the source dataset are passed through the augmentation stages, in order, by
+ * a pool of worker threads that work ahead of the iteration, so that the
+ * training thread never waits for the augmentation.
+ *
+ * The random source of each stage is seeded from the seed of the dataset, the
+ * epoch and the position of the match, so the same epoch always produces the
+ * same images regardless of the number of threads. Iterating does not advance
+ * the epoch: Network.train calls nextEpoch at the end of each training epoch,
+ * so other passes over the dataset (i.e. to evaluate the network) don't change
+ * the images of the following epochs. Other training loops must call nextEpoch
+ * themselves.
+ *
+ * The augmented images are written in a small pool of buffers that are reused
+ * during the epoch: a Match returned by the iterator is only valid until the
+ * next one is requested. This is how Network.train uses it, but the matches
+ * must be copied if they have to be kept.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * DataSet augmented = new AugmentedDataSet(dataSet, 42, Augmentation.shift(2), Augmentation.rotation(10),
+ * 		Augmentation.noise(0.05f));
+ * network.train(augmented, batchSize, epochs);
+ * </pre>
+ *
+ * The views (slice, split, ...) are augmented datasets over the views of the
+ * source dataset, with the same seed, stages and settings; each one has its
+ * own worker threads.
+ */
+public class AugmentedDataSet extends DataSet implements AutoCloseable {
+
+	private final DataSet source;
+	private final Augmentation[] stages;
+	private final long seed;
+
+	private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	private int prefetch = 64;
+	private int epoch = 0;
+
+	private ExecutorService executor;
+
+	/*
+	 * scratch buffer for the intermediate stages, one per worker thread.
+	 */
+	private final ThreadLocal<float[]> scratch = new ThreadLocal<>();
+
+	/**
+	 * @param source the dataset to augment; its matches must have width and height
+	 * @param seed   the seed of the augmentation
+	 * @param stages the augmentation stages, applied in order
+	 */
+	public AugmentedDataSet(DataSet source, long seed, Augmentation... stages) {
+		this.source = source;
+		this.seed = seed;
+		this.stages = stages.clone();
+	}
+
+	/**
+	 * Sets the number of worker threads. The default one is the number of
+	 * processors minus one, as one is used by the training.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of threads must be more than or equal to one.");
+		if (executor != null)
+			throw new IllegalStateException("The number of threads can't be changed after the first epoch.");
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets how many matches are augmented ahead of the iteration. The default one
+	 * is 64.
+	 */
+	public void setPrefetch(int prefetch) {
+		if (prefetch < 1)
+			throw new IllegalArgumentException("The prefetch must be more than or equal to one.");
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Sets the epoch of the following iterations, i.e. to reproduce the images of
+	 * a previous epoch. Epochs are counted from zero.
+	 */
+	public void setEpoch(int epoch) {
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Moves to the next epoch: the following iterations produce new images.
+	 */
+	public void nextEpoch() {
+		epoch++;
+	}
+
+	public int getEpoch() {
+		return epoch;
+	}
+
+	public DataSet getSource() {
+		return source;
+	}
+
+	@Override
+	public int size() {
+		return source.size();
+	}
+
+	/**
+	 * Returns the i-th match of the source dataset, not augmented.
+	 */
+	@Override
+	public Match get(int i) {
+		return source.get(i);
+	}
+
+	@Override
+	public void addMatch(Match match) {
+		throw new UnsupportedOperationException("Add the matches to the source dataset.");
+	}
+
+	/**
+	 * Shuffles the source dataset.
+	 */
+	@Override
+	public void shuffle(Random random) {
+		source.shuffle(random);
+	}
+
+	@Override
+	public int[] getOrder() {
+		return source.getOrder();
+	}
+
+	@Override
+	public void setOrder(int[] order) {
+		source.setOrder(order);
+	}
+
+	/**
+	 * Iterates over the augmented matches of the current epoch.
+	 */
+	@Override
+	public Iterator<Match> iterator() {
+		return iterator(0);
+	}
+
+	/**
+	 * Iterates over the augmented matches of the current epoch from the given
+	 * position, skipping the matches before it without augmenting them. The
+	 * augmented matches are the same of a whole iteration.
+	 */
+	@Override
+	public Iterator<Match> iterator(int from) {
+		if (from < 0 || from > size())
+			throw new IndexOutOfBoundsException(String.format("from[%d] not in [0, %d].", from, size()));
+		if (executor == null)
+			executor = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "augmentation");
+				thread.setDaemon(true);
+				return thread;
+			});
+		return new Epoch(epoch, from);
+	}
+
+	/**
+	 * Stops the worker threads. They are started again by the next iteration.
+	 */
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/*
+	 * Ordered iteration over the augmented matches of an epoch. At most prefetch
+	 * matches are being augmented at the same time; each one takes a buffer from
+	 * the pool, and the buffer of a match goes back to the pool when the following
+	 * match is requested.
+	 */
+	private class Epoch implements Iterator<Match> {
+
+		private final long epochSeed;
+		private final int size = source.size();
+		private final ArrayDeque<Future<Match>> pending = new ArrayDeque<>();
+		private final BlockingQueue<Match> pool;
+
+		private int submitted;
+		private int returned;
+		private Match last;
+
+		Epoch(int epoch, int from) {
+			this.epochSeed = mix(seed, epoch);
+			this.pool = new ArrayBlockingQueue<>(prefetch + 1);
+			this.submitted = from;
+			this.returned = from;
+			fill();
+		}
+
+		private void fill() {
+			while (pending.size() < prefetch && submitted < size) {
+				final int index = submitted++;
+				pending.add(executor.submit(() -> augment(index, epochSeed, pool)));
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return returned < size;
+		}
+
+		@Override
+		public Match next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			if (last != null)
+				pool.offer(last);
+
+			try {
+				last = pending.poll().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while augmenting the dataset.", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Unable to augment the dataset.", e.getCause());
+			}
+
+			returned++;
+			fill();
+			return last;
+		}
+	}
+
+	/*
+	 * Augments the index-th match of the source dataset into a buffer of the pool.
+	 */
+	private Match augment(int index, long epochSeed, BlockingQueue<Match> pool) {
+
+		Match match = source.get(index);
+		float[] input = match.getInput();
+		int width = match.getWidth();
+		int height = match.getHeight();
+
+		if (width * height != input.length)
+			throw new IllegalArgumentException(
+					String.format("width[%d] * height[%d] != input.length[%d].", width, height, input.length));
+
+		Match result = pool.poll();
+		if (result == null)
+			result = new Match(width, height, new float[input.length]);
+		else if (result.getInput().length != input.length)
+			result.setInput(new float[input.length]);
+
+		result.setWidth(width);
+		result.setHeight(height);
+		result.setLabel(match.getLabel());
+
+		float[] out = result.getInput();
+		if (stages.length == 0) {
+			System.arraycopy(input, 0, out, 0, input.length);
+			return result;
+		}
+
+		float[] tmp = scratch.get();
+		if (tmp == null || tmp.length != input.length) {
+			tmp = new float[input.length];
+			scratch.set(tmp);
+		}
+
+		/*
+		 * the stages alternate between the two buffers so that the last one writes in
+		 * the output buffer.
+		 */
+		Random random = new Random(mix(epochSeed, index));
+		float[] current = input;
+		for (int s = 0; s < stages.length; s++) {
+			float[] dst = (stages.length - s) % 2 == 1 ? out : tmp;
+			stages[s].apply(current, dst, width, height, random);
+			current = dst;
+		}
+
+		return result;
+	}
+
+	/*
+	 * Mixes the two values into a seed (SplitMix64 finalizer).
+	 */
+	private static long mix(long a, long b) {
+		long z = a + 0x9E3779B97F4A7C15L * (b + 1);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	// views are taken from the source and augmented in the same way
+
+	/*
+	 * Returns the view of the source augmented as this dataset.
+	 */
+	private AugmentedDataSet augment(DataSet view) {
+		AugmentedDataSet res = new AugmentedDataSet(view, seed, stages);
+		res.threads = threads;
+		res.prefetch = prefetch;
+		res.epoch = epoch;
+		return res;
+	}
+
+	@Override
+	public DataSet slice(int from, int to) {
+		return augment(source.slice(from, to));
+	}
+
+	@Override
+	public DataSet[] split(float trainFraction) {
+		DataSet[] views = source.split(trainFraction);
+		return new DataSet[] { augment(views[0]), augment(views[1]) };
+	}
+
+	@Override
+	public DataSet[][] kFold(int k) {
+		DataSet[][] folds = source.kFold(k);
+		for (DataSet[] fold : folds)
+			for (int i = 0; i < fold.length; i++)
+				fold[i] = augment(fold[i]);
+		return folds;
+	}
+
+	@Override
+	public DataSet sample(int n, Random random) {
+		return augment(source.sample(n, random));
+	}
+
+	// creation of new datasets is delegated to the source
+
+	@Override
+	public DataSet createSet(File dataFile, File labelFile) {
+		return source.createSet(dataFile, labelFile);
+	}
+
+	@Override
+	public DataSet createSet(File dataFile) {
+		return source.createSet(dataFile);
+	}
+
+	@Override
+	public DataSet createSet(File dataFile, File labelFile, int matches) {
+		return source.createSet(dataFile, labelFile, matches);
+	}
+
+	@Override
+	public DataSet createSet(File dataFile, int matches) {
+		return source.createSet(dataFile, matches);
+	}
+
+	@Override
+	public DataSet createCachedSet(File dataFile, File labelFile, File cacheFile) {
+		return source.createCachedSet(dataFile, labelFile, cacheFile);
+	}
+}
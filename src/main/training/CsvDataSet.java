@@ -0,0 +1,441 @@
+package main.training;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Dataset created from a CSV file, one record per line. The label can be one
+ * of the columns of the data file or the first column of a separate label
+ * file; every other column is a value of the input vector.
+ *
+ * Large files are memory-mapped and split into chunks that end on a line
+ * boundary; the chunks are parsed in parallel, straight from the mapped bytes,
+ * so that no String is created for the fields. Only plain decimal numbers
+ * (with an optional sign, fraction and exponent) are supported.
+ */
+public class CsvDataSet extends DataSet {
+
+	public static final String ext = "csv";
+
+	/*
+	 * chunks are never bigger than this, so that each one can be mapped alone.
+	 */
+	private static final long MAX_CHUNK_SIZE = 1 << 28;
+
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	private final int labelColumn;
+	private final boolean header;
+	private final byte separator;
+	private final float scale;
+
+	/**
+	 * Creates a dataset with the label in the first column, no header line, comma
+	 * separated values and no scaling.
+	 */
+	public CsvDataSet() {
+		this(0, false, ',', 1.0f);
+	}
+
+	/**
+	 * @param labelColumn index of the label column in the data file, or a negative
+	 *                    number if the data file has no labels
+	 * @param header      whether the first line of the files must be skipped
+	 * @param separator   the field separator
+	 * @param scale       factor each input value is multiplied by (i.e. 1/255 for
+	 *                    pixels)
+	 */
+	public CsvDataSet(int labelColumn, boolean header, char separator, float scale) {
+		if (separator > 127)
+			throw new IllegalArgumentException("The separator must be an ASCII character.");
+		this.labelColumn = labelColumn;
+		this.header = header;
+		this.separator = (byte) separator;
+		this.scale = scale;
+	}
+
+	/**
+	 * Creates a dataset reading the label of each record from the label column of
+	 * the data file, if any.
+	 */
+	@Override
+	public DataSet createSet(File dataFile) {
+		return load(dataFile, null, -1);
+	}
+
+	/**
+	 * Creates a dataset reading the inputs from all the columns of the data file
+	 * and the labels from the first column of the label file.
+	 */
+	@Override
+	public DataSet createSet(File dataFile, File labelFile) {
+		return load(dataFile, labelFile, -1);
+	}
+
+	@Override
+	public DataSet createSet(File dataFile, File labelFile, int matches) {
+
+		if (matches < 0)
+			throw new IllegalArgumentException("The number of matches in the dataset must be positive.");
+
+		return load(dataFile, labelFile, matches);
+	}
+
+	@Override
+	public DataSet createSet(File dataFile, int matches) {
+
+		if (matches < 0)
+			throw new IllegalArgumentException("The number of matches in the dataset must be positive.");
+
+		return load(dataFile, null, matches);
+	}
+
+	@Override
+	protected String getCacheTag() {
+		return String.format("%s[labelColumn=%d, header=%b, separator=%d, scale=%08X]", getClass().getName(),
+				labelColumn, header, separator, Float.floatToIntBits(scale));
+	}
+
+	@Override
+	protected DataSet newInstance() {
+		return new CsvDataSet(labelColumn, header, (char) separator, scale);
+	}
+
+	/**
+	 * Counts the records of the data file, without parsing them.
+	 */
+	@Override
+	protected int countMatches(File dataFile, File labelFile) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+
+			long size = channel.size();
+			long position = header ? nextLine(channel, 0) : 0;
+
+			// a record is a line that is not made only of spaces, as in parse
+			int records = 0;
+			boolean counted = false;
+			while (position < size) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(1 << 16, size - position));
+				for (int i = 0; i < window.limit(); i++) {
+					byte b = window.get(i);
+					if (b == '\n')
+						counted = false;
+					else if (!counted && !isSpace(b)) {
+						records++;
+						counted = true;
+					}
+				}
+				position += window.limit();
+			}
+			return records;
+		}
+	}
+
+	private DataSet load(File dataFile, File labelFile, int matches) {
+
+		DataSet set = newInstance();
+
+		try {
+			Table data = parse(dataFile, labelFile == null ? labelColumn : -1, matches);
+			Table labels = labelFile == null ? null : parse(labelFile, 0, matches);
+
+			/*
+			 * when the number of matches is given, only the first records of the files
+			 * have been parsed.
+			 */
+			int n = matches < 0 ? data.rows.size() : matches;
+
+			if (labels != null && (matches < 0 ? labels.rows.size() != n : labels.rows.size() < n))
+				throw new IOException(
+						String.format("File %s and file %s contains data for a different number of records.",
+								dataFile.getName(), labelFile.getName()));
+
+			if (n > data.rows.size())
+				throw new IllegalArgumentException(
+						"The number of matches given exceeds the number of elements in the file.");
+
+			boolean labelled = labels != null || labelColumn >= 0;
+
+			for (int i = 0; i < n; i++) {
+				float[] input = data.rows.get(i);
+				if (scale != 1.0f)
+					for (int d = 0; d < input.length; d++)
+						input[d] *= scale;
+
+				int label = labels != null ? labels.labels[i] : data.labels[i];
+				set.addMatch(labelled ? new Match(input, label) : new Match(input));
+			}
+
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		return set;
+	}
+
+	/*
+	 * Parsed rows of a file, or of a chunk of it.
+	 */
+	private static class Table {
+		List<float[]> rows = new ArrayList<>();
+		int[] labels = new int[16];
+
+		void add(float[] row, int label) {
+			if (rows.size() == labels.length)
+				labels = Arrays.copyOf(labels, labels.length * 2);
+			labels[rows.size()] = label;
+			rows.add(row);
+		}
+
+		void addAll(Table other) {
+			if (rows.size() + other.rows.size() > labels.length)
+				labels = Arrays.copyOf(labels, rows.size() + other.rows.size());
+			System.arraycopy(other.labels, 0, labels, rows.size(), other.rows.size());
+			rows.addAll(other.rows);
+		}
+	}
+
+	/*
+	 * Splits the file into chunks ending on a line boundary and parses them in
+	 * parallel. Returns the rows in file order; the label column (if any) is
+	 * removed from the rows. If the limit is not negative, the chunks following
+	 * the one that reaches it are not parsed (so the table can hold some more
+	 * rows than the limit).
+	 */
+	private Table parse(File file, int labelColumn, int limit) throws IOException, InterruptedException {
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			long size = channel.size();
+			int threads = Runtime.getRuntime().availableProcessors();
+			long chunkSize = Math.max(1 << 16, Math.min(MAX_CHUNK_SIZE, size / (threads * 4L) + 1));
+
+			// chunk boundaries, each one right after a new line
+			List<Long> bounds = new ArrayList<>();
+			long start = header ? nextLine(channel, 0) : 0;
+			bounds.add(start);
+			while (start < size) {
+				start = nextLine(channel, Math.min(size, start + chunkSize));
+				bounds.add(start);
+			}
+
+			int columns = countColumns(channel, bounds.get(0));
+			if (columns > 0 && labelColumn >= columns)
+				throw new IllegalArgumentException(
+						String.format("labelColumn[%d] >= columns[%d].", labelColumn, columns));
+
+			/*
+			 * with a limit, only one chunk per thread is submitted ahead of the one being
+			 * collected, so that parsing stops soon after the limit is reached.
+			 */
+			int chunkCount = bounds.size() - 1;
+			int ahead = limit < 0 ? chunkCount : threads;
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<Table>> chunks = new ArrayList<>();
+				Table table = new Table();
+				for (int c = 0; c < chunkCount && (limit < 0 || table.rows.size() < limit); c++) {
+					while (chunks.size() < chunkCount && chunks.size() <= c + ahead) {
+						int i = chunks.size();
+						long offset = bounds.get(i);
+						MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+								bounds.get(i + 1) - offset);
+						chunks.add(executor.submit(() -> parse(chunk, offset, columns, labelColumn, file.getName())));
+					}
+					table.addAll(chunks.get(c).get());
+				}
+				return table;
+
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException(e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/*
+	 * Returns the position right after the first new line at or after the given
+	 * position, or the size of the file.
+	 */
+	private static long nextLine(FileChannel channel, long position) throws IOException {
+		long size = channel.size();
+		while (position < size) {
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(1 << 16, size - position));
+			for (int i = 0; i < window.limit(); i++)
+				if (window.get(i) == '\n')
+					return position + i + 1;
+			position += window.limit();
+		}
+		return size;
+	}
+
+	/*
+	 * Counts the fields in the first non empty line after the given position.
+	 */
+	private int countColumns(FileChannel channel, long position) throws IOException {
+		long end = nextLine(channel, position);
+		MappedByteBuffer line = channel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+		int columns = 1;
+		boolean empty = true;
+		for (int i = 0; i < line.limit(); i++) {
+			byte b = line.get(i);
+			if (b == separator)
+				columns++;
+			else if (b != '\n' && !isSpace(b))
+				empty = false;
+		}
+		if (empty && end < channel.size())
+			return countColumns(channel, end);
+		return empty ? 0 : columns;
+	}
+
+	/*
+	 * Parses the rows of a chunk that starts at the given offset in the file; the
+	 * offset is only used to report the position of the errors.
+	 */
+	private Table parse(MappedByteBuffer chunk, long offset, int columns, int labelColumn, String name)
+			throws IOException {
+
+		Table table = new Table();
+		int width = labelColumn >= 0 ? columns - 1 : columns;
+		int limit = chunk.limit();
+		int p = 0;
+
+		while (p < limit) {
+
+			// skip the lines made only of spaces
+			int q = p;
+			while (q < limit && isSpace(chunk.get(q)))
+				q++;
+			if (q == limit || chunk.get(q) == '\n') {
+				p = q + 1;
+				continue;
+			}
+
+			float[] row = new float[width];
+			int label = -1;
+
+			for (int column = 0, field = 0; column < columns; column++) {
+
+				int end = p;
+				while (end < limit && chunk.get(end) != separator && chunk.get(end) != '\n')
+					end++;
+
+				boolean last = end >= limit || chunk.get(end) == '\n';
+				if (last != (column == columns - 1))
+					throw new IOException(
+							String.format("A row in %s does not have %d columns (offset %d).", name, columns,
+									offset + p));
+
+				if (column == labelColumn)
+					label = (int) parseNumber(chunk, offset, p, end, name);
+				else
+					row[field++] = (float) parseNumber(chunk, offset, p, end, name);
+
+				p = end + 1;
+			}
+
+			table.add(row, label);
+		}
+
+		return table;
+	}
+
+	/*
+	 * Parses a decimal number between the two positions, ignoring spaces, quotes
+	 * and carriage returns around it. The offset of the buffer in the file is added
+	 * to the position reported in the error.
+	 */
+	private static double parseNumber(MappedByteBuffer buffer, long offset, int from, int to, String name)
+			throws IOException {
+
+		while (from < to && isBlank(buffer.get(from)))
+			from++;
+		while (to > from && isBlank(buffer.get(to - 1)))
+			to--;
+
+		int p = from;
+		boolean negative = false;
+		if (p < to && (buffer.get(p) == '-' || buffer.get(p) == '+'))
+			negative = buffer.get(p++) == '-';
+
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean point = false;
+
+		for (; p < to; p++) {
+			byte b = buffer.get(p);
+			if (b >= '0' && b <= '9') {
+				if (mantissa < 100_000_000_000_000_000L) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (point)
+						exponent--;
+				} else if (!point)
+					exponent++;
+				digits++;
+			} else if (b == '.' && !point)
+				point = true;
+			else
+				break;
+		}
+
+		if (p < to && (buffer.get(p) == 'e' || buffer.get(p) == 'E')) {
+			p++;
+			boolean negativeExponent = false;
+			if (p < to && (buffer.get(p) == '-' || buffer.get(p) == '+'))
+				negativeExponent = buffer.get(p++) == '-';
+			int e = 0;
+			int start = p;
+			for (; p < to && buffer.get(p) >= '0' && buffer.get(p) <= '9'; p++)
+				e = Math.min(e * 10 + (buffer.get(p) - '0'), 1000);
+			if (p == start)
+				digits = 0;
+			exponent += negativeExponent ? -e : e;
+		}
+
+		if (digits == 0 || p != to)
+			throw new IOException(String.format("Invalid number in %s at offset %d.", name, offset + from));
+
+		double value = mantissa;
+		if (exponent > 0)
+			value *= exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+		else if (exponent < 0)
+			value /= -exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent);
+
+		return negative ? -value : value;
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == '"' || isSpace(b);
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+}
@@ -1,43 +1,268 @@
 package main.training;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
 
 /**
  * Dataset object. Each dataset consists of at least one Match object.
  * 
  * Given a particular task, you need to extend the Dataset class to fit your
  * needs, as shown in the MNIST and EMNIST examples.
+ * 
+ * The matches are never copied or moved once added: a dataset keeps an array
+ * of indices into them, in the order it iterates them. Shuffling permutes the
+ * indices, while slices, splits, folds and samples are views that share the
+ * matches of the original dataset and only own their indices. Views can't be
+ * modified with addMatch.
  */
 public abstract class DataSet implements Iterable<Match> {
 
 	private List<Match> matches;
+	private int[] indices;
+	private int size;
+
+	/*
+	 * dataset from which the view has been taken, null if this is not a view.
+	 */
+	private DataSet source;
 
 	public DataSet() {
 		matches = new ArrayList<>();
+		indices = new int[16];
+		size = 0;
+	}
+
+	/*
+	 * Creates a view over the matches of the source dataset.
+	 */
+	private DataSet(DataSet source, int[] indices) {
+		this.source = source.source != null ? source.source : source;
+		this.matches = source.matches;
+		this.indices = indices;
+		this.size = indices.length;
 	}
 
 	public void addMatch(Match match) {
+		if (source != null)
+			throw new UnsupportedOperationException("Can't add matches to a view of a dataset.");
+		if (size == indices.length)
+			indices = Arrays.copyOf(indices, size * 2);
+		indices[size++] = matches.size();
 		matches.add(match);
 	}
 
+	/**
+	 * Returns the i-th match, in iteration order.
+	 */
+	public Match get(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException(String.format("index[%d] not in [0, %d).", i, size));
+		return matches.get(indices[i]);
+	}
+
 	@Override
 	public Iterator<Match> iterator() {
-		return matches.iterator();
+		return iterator(0);
+	}
+
+	/**
+	 * Returns an iterator that starts from the given position, in iteration order
+	 * (i.e. to resume an interrupted epoch).
+	 */
+	public Iterator<Match> iterator(int from) {
+		if (from < 0 || from > size)
+			throw new IndexOutOfBoundsException(String.format("from[%d] not in [0, %d].", from, size));
+
+		return new Iterator<Match>() {
+
+			private int i = from;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public Match next() {
+				if (i >= size)
+					throw new NoSuchElementException();
+				return matches.get(indices[i++]);
+			}
+		};
 	}
 
 	public int size() {
-		return matches.size();
+		return size;
 	}
 
 	/**
 	 * Shuffles the dataset.
 	 */
 	public void shuffle() {
-		Collections.shuffle(matches);
+		shuffle(new Random());
+	}
+
+	/**
+	 * Shuffles the dataset using the given source of randomness, so that the
+	 * resulting order can be reproduced.
+	 */
+	public void shuffle(Random random) {
+		// Fisher-Yates over the indices, the matches stay where they are
+		for (int i = size - 1; i > 0; i--)
+			swap(indices, i, random.nextInt(i + 1));
+	}
+
+	/**
+	 * Returns the current iteration order, as the positions of the matches in the
+	 * dataset they have been added to. It can be given back to setOrder to
+	 * reproduce the same order later, i.e. after the dataset has been shuffled.
+	 */
+	public int[] getOrder() {
+		return Arrays.copyOf(indices, size);
+	}
+
+	/**
+	 * Sets the iteration order, as returned by getOrder. An
+	 * IllegalArgumentException is thrown if the order is not a permutation of the
+	 * matches of this dataset.
+	 */
+	public void setOrder(int[] order) {
+		if (order.length != size)
+			throw new IllegalArgumentException(String.format("order.length[%d] != size[%d].", order.length, size));
+
+		int[] expected = Arrays.copyOf(indices, size);
+		int[] actual = order.clone();
+		Arrays.sort(expected);
+		Arrays.sort(actual);
+		if (!Arrays.equals(expected, actual))
+			throw new IllegalArgumentException("The order is not a permutation of the matches of the dataset.");
+
+		System.arraycopy(order, 0, indices, 0, size);
+	}
+
+	private static void swap(int[] array, int i, int j) {
+		int tmp = array[i];
+		array[i] = array[j];
+		array[j] = tmp;
+	}
+
+	// views
+
+	/**
+	 * Returns a view containing the matches from index <i>from</i> (inclusive) to
+	 * index <i>to</i> (exclusive), in iteration order.
+	 */
+	public DataSet slice(int from, int to) {
+		if (from < 0 || to > size || from > to)
+			throw new IllegalArgumentException(String.format("Invalid slice [%d, %d) of %d matches.", from, to, size));
+		return new View(this, Arrays.copyOfRange(indices, from, to));
+	}
+
+	/**
+	 * Splits the dataset in two views: the first one contains the first
+	 * <i>trainFraction</i> of the matches (i.e. for training), the second one the
+	 * remaining matches (i.e. for validation). Shuffle the dataset beforehand if
+	 * it is sorted.
+	 * 
+	 * @param trainFraction fraction of the matches in the first view, in [0, 1]
+	 * @return an array containing the two views
+	 */
+	public DataSet[] split(float trainFraction) {
+		if (trainFraction < 0 || trainFraction > 1)
+			throw new IllegalArgumentException("The train fraction must be in [0, 1].");
+		int n = Math.round(size * trainFraction);
+		return new DataSet[] { slice(0, n), slice(n, size) };
+	}
+
+	/**
+	 * Creates the views for a k-fold cross-validation. The matches are divided
+	 * into k contiguous folds of (almost) the same size; the i-th element of the
+	 * returned array contains the training view (all the folds but the i-th one)
+	 * and the validation view (the i-th fold), in this order.
+	 * 
+	 * @param k number of folds, between 2 and the size of the dataset
+	 * @return k pairs of training and validation views
+	 */
+	public DataSet[][] kFold(int k) {
+		if (k < 2 || k > size)
+			throw new IllegalArgumentException(String.format("k[%d] must be in [2, %d].", k, size));
+
+		DataSet[][] folds = new DataSet[k][];
+		for (int i = 0; i < k; i++) {
+			int from = (int) ((long) size * i / k);
+			int to = (int) ((long) size * (i + 1) / k);
+
+			int[] train = new int[size - (to - from)];
+			System.arraycopy(indices, 0, train, 0, from);
+			System.arraycopy(indices, to, train, from, size - to);
+
+			folds[i] = new DataSet[] { new View(this, train), slice(from, to) };
+		}
+		return folds;
+	}
+
+	/**
+	 * Returns a view of n matches chosen at random, without repetitions.
+	 */
+	public DataSet sample(int n) {
+		return sample(n, new Random());
+	}
+
+	/**
+	 * Returns a view of n matches chosen at random with the given source of
+	 * randomness, without repetitions.
+	 */
+	public DataSet sample(int n, Random random) {
+		if (n < 0 || n > size)
+			throw new IllegalArgumentException(String.format("n[%d] must be in [0, %d].", n, size));
+
+		// partial Fisher-Yates: only the first n positions are drawn
+		int[] sample = Arrays.copyOf(indices, size);
+		for (int i = 0; i < n; i++)
+			swap(sample, i, i + random.nextInt(size - i));
+		return new View(this, Arrays.copyOf(sample, n));
+	}
+
+	/*
+	 * Views delegate the creation of new datasets to the dataset they have been
+	 * taken from.
+	 */
+	private static class View extends DataSet {
+
+		private View(DataSet source, int[] indices) {
+			super(source, indices);
+		}
+
+		@Override
+		public DataSet createSet(File dataFile, File labelFile) {
+			return super.source.createSet(dataFile, labelFile);
+		}
+
+		@Override
+		public DataSet createSet(File dataFile) {
+			return super.source.createSet(dataFile);
+		}
+
+		@Override
+		public DataSet createSet(File dataFile, File labelFile, int matches) {
+			return super.source.createSet(dataFile, labelFile, matches);
+		}
+
+		@Override
+		public DataSet createSet(File dataFile, int matches) {
+			return super.source.createSet(dataFile, matches);
+		}
+
+		@Override
+		public DataSet createCachedSet(File dataFile, File labelFile, File cacheFile) {
+			return super.source.createCachedSet(dataFile, labelFile, cacheFile);
+		}
 	}
 
 	/**
@@ -67,4 +292,92 @@ public abstract class DataSet implements Iterable<Match> {
 	public abstract DataSet createSet(File dataFile, File labelFile, int matches);
 	
 	public abstract DataSet createSet(File dataFile, int matches);
+
+	/**
+	 * Returns the number of matches createSet(dataFile, labelFile) reads from the
+	 * files (createSet(dataFile) if the label file is null), or a negative number
+	 * if it can't be known in advance. createSet does not propagate the errors
+	 * met halfway through the files, so createCachedSet caches a dataset only if
+	 * it contains exactly that many matches; datasets that return a negative
+	 * number are cached whenever they are not empty.
+	 * 
+	 * @param dataFile	file containing dataset images
+	 * @param labelFile	file containing the labels, may be null
+	 * @throws IOException if the files can't be read
+	 */
+	protected int countMatches(File dataFile, File labelFile) throws IOException {
+		return -1;
+	}
+
+	/**
+	 * Returns the string identifying the way this dataset reads its files, stored
+	 * in the cache so that datasets reading the same files differently never
+	 * share it. It's the name of the class by default: subclasses with options
+	 * that change the matches read from the files must add them.
+	 */
+	protected String getCacheTag() {
+		return getClass().getName();
+	}
+
+	/**
+	 * Returns a new empty dataset, configured as this one, that createCachedSet
+	 * fills with the cached matches. The no-argument constructor of the class is
+	 * used by default: subclasses with options must override it.
+	 */
+	protected DataSet newInstance() throws ReflectiveOperationException {
+		return getClass().getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * Same as createSet(dataFile, labelFile), but the samples are read from a
+	 * binary cache placed next to the data file. The cache is built the first
+	 * time and rebuilt whenever the source files change.
+	 * 
+	 * @param dataFile	file containing dataset images
+	 * @param labelFile	file containing the labels
+	 */
+	public DataSet createCachedSet(File dataFile, File labelFile) {
+		return createCachedSet(dataFile, labelFile, new File(dataFile.getPath() + '.' + DataSetCache.ext));
+	}
+
+	/**
+	 * Same as createSet(dataFile, labelFile), but the samples are read from the
+	 * given cache file if it is still valid. Otherwise the dataset is created from
+	 * the source files and then written to the cache. The label file can be null,
+	 * in which case createSet(dataFile) is used.
+	 * 
+	 * @param dataFile	file containing dataset images
+	 * @param labelFile	file containing the labels, may be null
+	 * @param cacheFile	file containing the cached samples
+	 */
+	public DataSet createCachedSet(File dataFile, File labelFile, File cacheFile) {
+
+		DataSetCache cache = new DataSetCache(cacheFile, dataFile, labelFile, getCacheTag());
+
+		if (cache.isValid()) {
+			try {
+				DataSet set = newInstance();
+				cache.read(set);
+				return set;
+			} catch (Exception e) {
+				e.printStackTrace(); // fall back to the source files
+			}
+		}
+
+		DataSet set = labelFile == null ? createSet(dataFile) : createSet(dataFile, labelFile);
+
+		/*
+		 * createSet does not propagate errors: don't cache a dataset that could not be
+		 * read entirely, it would be served until the source files change.
+		 */
+		try {
+			int expected = countMatches(dataFile, labelFile);
+			if (set.size() > 0 && (expected < 0 || set.size() == expected))
+				cache.write(set);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return set;
+	}
 }
\ No newline at end of file
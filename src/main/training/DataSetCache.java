@@ -0,0 +1,294 @@
+package main.training;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Binary cache for the samples of a DataSet. Parsing the original files (and
+ * normalizing or rotating each image) is done only once: the resulting float
+ * vectors are written in a compact file that is memory-mapped on the following
+ * runs.
+ *
+ * The cache file is made of a fixed size header followed by the payload:
+ *
+ * <pre>
+ * magic | version | tag | data size | data mtime | label size | label mtime |
+ * count | length | width | height | labelled | crc32
+ * count * length little-endian floats (the samples)
+ * count little-endian ints (the labels)
+ * </pre>
+ *
+ * The size and the last modification time of the source files are stored in
+ * the header: if any of them changes, the cache is considered stale and it is
+ * rebuilt. The tag identifies the DataSet subclass that produced the samples,
+ * with its options, so that two datasets reading the same files in a different
+ * way (i.e. MNIST and EMNIST, or two CSV datasets with a different label
+ * column) never share a cache. Only the first 64 bits of the SHA-256 digest of
+ * the tag are stored, which is enough to make an accidental collision between
+ * two tags negligible.
+ */
+public class DataSetCache {
+
+	public static final String ext = "cache";
+
+	private static final int MAGIC = 0x4E4E4443; // NNDC
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 76;
+
+	/*
+	 * size of the chunks used to write the payload and upper bound of each mapped
+	 * region when reading it back.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+	private static final int MAX_MAPPED_REGION = 1 << 30;
+
+	private final File cacheFile;
+	private final File dataFile;
+	private final File labelFile;
+	private final long tag;
+
+	/**
+	 * Creates a cache for the dataset built from the given files. The label file
+	 * can be null if the dataset has no labels.
+	 *
+	 * @param cacheFile the file that contains (or will contain) the cached samples
+	 * @param dataFile  file containing dataset images
+	 * @param labelFile file containing the labels, may be null
+	 * @param tag       identifier of the way the samples are produced
+	 */
+	public DataSetCache(File cacheFile, File dataFile, File labelFile, String tag) {
+		this.cacheFile = cacheFile;
+		this.dataFile = dataFile;
+		this.labelFile = labelFile;
+		this.tag = digest(tag);
+	}
+
+	/*
+	 * first 64 bits of the SHA-256 digest of the UTF-8 encoded tag.
+	 */
+	private static long digest(String tag) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(tag.getBytes(StandardCharsets.UTF_8));
+			return ByteBuffer.wrap(hash).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available.", e); // required on every platform
+		}
+	}
+
+	public File getFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * Checks whether the cache file exists and has been built from the current
+	 * version of the source files. The checksum is not verified here as it
+	 * requires the whole payload to be read; this is done by the read method.
+	 */
+	public boolean isValid() {
+
+		if (!cacheFile.isFile() || cacheFile.length() < HEADER_SIZE)
+			return false;
+
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+
+			ByteBuffer header = readHeader(channel);
+			if (header == null)
+				return false;
+
+			long count = header.getInt(48);
+			long length = header.getInt(52);
+
+			return cacheFile.length() == HEADER_SIZE + count * length * Float.BYTES + count * Integer.BYTES;
+
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Reads the header and checks it against the source files. Returns null if the
+	 * cache is stale.
+	 */
+	private ByteBuffer readHeader(FileChannel channel) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining())
+			if (channel.read(header) < 0)
+				return null;
+		header.flip();
+
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(8) != tag)
+			return null;
+
+		if (header.getLong(16) != dataFile.length() || header.getLong(24) != dataFile.lastModified())
+			return null;
+
+		if (header.getLong(32) != length(labelFile) || header.getLong(40) != lastModified(labelFile))
+			return null;
+
+		return header;
+	}
+
+	private static long length(File file) {
+		return file == null ? -1 : file.length();
+	}
+
+	private static long lastModified(File file) {
+		return file == null ? -1 : file.lastModified();
+	}
+
+	/**
+	 * Writes the samples of the dataset in the cache file. The file is written
+	 * aside and then moved in place, so that a crash never leaves a truncated
+	 * cache behind. All the samples must have the same length.
+	 *
+	 * @param set the dataset to cache
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(DataSet set) throws IOException {
+
+		int count = set.size();
+		if (count == 0)
+			throw new IllegalArgumentException("Can't cache an empty dataset.");
+
+		Match first = set.iterator().next();
+		int length = first.getInput().length;
+
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			channel.position(HEADER_SIZE);
+
+			// samples
+			for (Match match : set) {
+				float[] input = match.getInput();
+				if (input.length != length)
+					throw new IllegalArgumentException(
+							String.format("input.length[%d] != length[%d]: samples must have the same length.",
+									input.length, length));
+
+				int offset = 0;
+				while (offset < length) {
+					if (buffer.remaining() < Float.BYTES)
+						flush(channel, buffer, crc);
+					int n = Math.min(length - offset, buffer.remaining() / Float.BYTES);
+					buffer.asFloatBuffer().put(input, offset, n);
+					buffer.position(buffer.position() + n * Float.BYTES);
+					offset += n;
+				}
+			}
+
+			// labels
+			for (Match match : set) {
+				if (buffer.remaining() < Integer.BYTES)
+					flush(channel, buffer, crc);
+				buffer.putInt(match.getLabel());
+			}
+			flush(channel, buffer, crc);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putLong(tag);
+			header.putLong(dataFile.length()).putLong(dataFile.lastModified());
+			header.putLong(length(labelFile)).putLong(lastModified(labelFile));
+			header.putInt(count).putInt(length).putInt(first.getWidth()).putInt(first.getHeight());
+			header.putInt(first.hasLabel() ? 1 : 0);
+			header.putLong(crc.getValue());
+			header.flip();
+
+			channel.position(0);
+			while (header.hasRemaining())
+				channel.write(header);
+		}
+
+		Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+		buffer.flip();
+		crc.update(buffer.duplicate());
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Maps the cache file in memory and adds its samples to the dataset. An
+	 * IOException is thrown if the cache is stale or if the checksum does not
+	 * match.
+	 *
+	 * @param set the dataset to fill
+	 * @throws IOException if the cache is invalid or can't be read
+	 */
+	public void read(DataSet set) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+
+			ByteBuffer header = readHeader(channel);
+			if (header == null)
+				throw new IOException(String.format("Stale cache file: %s.", cacheFile.getName()));
+
+			int count = header.getInt(48);
+			int length = header.getInt(52);
+			int width = header.getInt(56);
+			int height = header.getInt(60);
+			boolean labelled = header.getInt(64) != 0;
+			long checksum = header.getLong(68);
+
+			long sampleBytes = (long) length * Float.BYTES;
+			long labelsPosition = HEADER_SIZE + count * sampleBytes;
+
+			if (channel.size() != labelsPosition + (long) count * Integer.BYTES)
+				throw new IOException(String.format("Truncated cache file: %s.", cacheFile.getName()));
+
+			CRC32 crc = new CRC32();
+			float[][] inputs = new float[count][];
+
+			/*
+			 * map the samples in regions made of whole samples, each one smaller than the
+			 * maximum size of a single mapping.
+			 */
+			int samplesPerRegion = (int) Math.max(1, MAX_MAPPED_REGION / Math.max(1, sampleBytes));
+			for (int start = 0; start < count; start += samplesPerRegion) {
+				int n = Math.min(samplesPerRegion, count - start);
+				ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start * sampleBytes,
+						n * sampleBytes).order(ByteOrder.LITTLE_ENDIAN);
+				crc.update(region.duplicate());
+
+				FloatBuffer floats = region.asFloatBuffer();
+				for (int i = 0; i < n; i++) {
+					inputs[start + i] = new float[length];
+					floats.get(inputs[start + i]);
+				}
+			}
+
+			ByteBuffer labelRegion = channel
+					.map(FileChannel.MapMode.READ_ONLY, labelsPosition, (long) count * Integer.BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			crc.update(labelRegion.duplicate());
+
+			if (crc.getValue() != checksum)
+				throw new IOException(String.format("Corrupted cache file: %s.", cacheFile.getName()));
+
+			IntBuffer labels = labelRegion.asIntBuffer();
+			for (int i = 0; i < count; i++)
+				set.addMatch(new Match(width, height, inputs[i], labelled ? labels.get(i) : -1));
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package main.training;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader for the IDX file format, the one used by the MNIST and EMNIST
+ * datasets. An IDX file starts with a magic number made of two zero bytes, a
+ * byte for the type of the elements and a byte for the number of dimensions,
+ * followed by the size of each dimension (big-endian ints) and by the data.
+ *
+ * <pre>
+ * 0x08: unsigned byte
+ * 0x09: signed byte
+ * 0x0B: short (2 bytes)
+ * 0x0C: int (4 bytes)
+ * 0x0D: float (4 bytes)
+ * 0x0E: double (8 bytes)
+ * </pre>
+ *
+ * The first dimension is the number of records in the file; the others are
+ * the shape of each record (i.e. 28 rows and 28 columns for the MNIST images).
+ * Files compressed with gzip (as the ones of the official distributions) are
+ * recognized from their header and inflated on the fly.
+ *
+ * http://yann.lecun.com/exdb/mnist/
+ */
+public final class IdxCodec {
+
+	/*
+	 * buffer size for both the inflater and the buffered stream: the default 512
+	 * bytes of the GZIPInputStream make the decompression dominate the loading.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	private IdxCodec() {
+	}
+
+	/**
+	 * Type of the elements stored in an IDX file.
+	 */
+	public static enum Type {
+		UnsignedByte(0x08, 1), SignedByte(0x09, 1), Short(0x0B, 2), Int(0x0C, 4), Float(0x0D, 4), Double(0x0E, 8);
+
+		private final int code;
+		private final int size;
+
+		private Type(int code, int size) {
+			this.code = code;
+			this.size = size;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		private static Type fromCode(int code) throws IOException {
+			for (Type type : values())
+				if (type.code == code)
+					return type;
+			throw new IOException(String.format("Unknown IDX element type: 0x%02X.", code));
+		}
+	}
+
+	/**
+	 * Transformation applied to each record after it has been read, i.e. to
+	 * normalize or rotate the images. The record is modified in place.
+	 */
+	public static interface Transform {
+
+		/**
+		 * @param record the values of the record
+		 * @param shape  the dimensions of the record (the file dimensions except the
+		 *               first one)
+		 */
+		void apply(float[] record, int[] shape);
+
+		default Transform andThen(Transform next) {
+			return (record, shape) -> {
+				apply(record, shape);
+				next.apply(record, shape);
+			};
+		}
+	}
+
+	/**
+	 * Transposes two-dimensional records. The EMNIST images are stored transposed
+	 * with respect to the MNIST ones.
+	 */
+	public static final Transform TRANSPOSE = (record, shape) -> {
+		if (shape.length != 2)
+			throw new IllegalArgumentException(String.format("Can't transpose a %d-dimensional record.", shape.length));
+
+		int rows = shape[0];
+		int cols = shape[1];
+
+		if (rows == cols) {
+			for (int i = 0; i < rows; i++)
+				for (int j = i + 1; j < cols; j++) {
+					float tmp = record[i * cols + j];
+					record[i * cols + j] = record[j * cols + i];
+					record[j * cols + i] = tmp;
+				}
+		} else {
+			float[] copy = record.clone();
+			for (int i = 0; i < rows; i++)
+				for (int j = 0; j < cols; j++)
+					record[j * rows + i] = copy[i * cols + j];
+		}
+	};
+
+	/**
+	 * Multiplies each value of the record by the factor.
+	 */
+	public static Transform scale(float factor) {
+		return (record, shape) -> {
+			for (int i = 0; i < record.length; i++)
+				record[i] *= factor;
+		};
+	}
+
+	/**
+	 * Sequential reader of the records of an IDX file.
+	 */
+	public static class Reader implements Closeable {
+
+		private final DataInputStream stream;
+		private final Type type;
+		private final int[] dimensions;
+		private final int recordLength;
+		private final byte[] raw;
+		private final ByteBuffer buffer;
+
+		private int position = 0;
+
+		public Reader(File file) throws IOException {
+
+			stream = new DataInputStream(open(file));
+
+			try {
+				int magic = stream.readInt();
+				if ((magic >>> 16) != 0)
+					throw new IOException(String.format("Unknown file format for: %s.", file.getName()));
+
+				type = Type.fromCode((magic >>> 8) & 0xFF);
+
+				int nDimensions = magic & 0xFF;
+				if (nDimensions < 1)
+					throw new IOException(String.format("No dimensions in file: %s.", file.getName()));
+
+				dimensions = new int[nDimensions];
+				long length = 1;
+				for (int i = 0; i < nDimensions; i++) {
+					dimensions[i] = stream.readInt();
+					if (dimensions[i] < 0)
+						throw new IOException(String.format("Negative dimension in file: %s.", file.getName()));
+					if (i > 0)
+						length *= dimensions[i];
+				}
+
+				if (length * type.size > Integer.MAX_VALUE)
+					throw new IOException(String.format("Records too big in file: %s.", file.getName()));
+
+				recordLength = (int) length;
+				raw = new byte[recordLength * type.size];
+				buffer = ByteBuffer.wrap(raw); // big-endian, as the IDX format
+
+			} catch (IOException e) {
+				stream.close();
+				throw e;
+			}
+		}
+
+		/*
+		 * Opens the file, inflating it if it starts with the gzip magic number.
+		 */
+		private static InputStream open(File file) throws IOException {
+
+			BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+
+			in.mark(2);
+			int magic = in.read() | (in.read() << 8);
+			in.reset();
+
+			if (magic == GZIP_MAGIC)
+				return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+
+			return in;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public int[] getDimensions() {
+			return dimensions.clone();
+		}
+
+		/**
+		 * Returns the dimensions of each record (all the dimensions but the first).
+		 */
+		public int[] getShape() {
+			return Arrays.copyOfRange(dimensions, 1, dimensions.length);
+		}
+
+		/**
+		 * Returns the number of records in the file.
+		 */
+		public int size() {
+			return dimensions[0];
+		}
+
+		/**
+		 * Returns the number of values in each record.
+		 */
+		public int getRecordLength() {
+			return recordLength;
+		}
+
+		public boolean hasNext() {
+			return position < dimensions[0];
+		}
+
+		/**
+		 * Reads the next record, converting its values to float. No normalization is
+		 * done: unsigned bytes will be in the [0, 255] range.
+		 *
+		 * @param record destination array, at least getRecordLength() long
+		 * @throws IOException if there are no more records or the file is truncated
+		 */
+		public void read(float[] record) throws IOException {
+
+			if (!hasNext())
+				throw new EOFException("No more records.");
+
+			stream.readFully(raw);
+			position++;
+
+			switch (type) {
+			case UnsignedByte:
+				for (int i = 0; i < recordLength; i++)
+					record[i] = raw[i] & 255;
+				break;
+			case SignedByte:
+				for (int i = 0; i < recordLength; i++)
+					record[i] = raw[i];
+				break;
+			case Short:
+				for (int i = 0; i < recordLength; i++)
+					record[i] = buffer.getShort(i * 2);
+				break;
+			case Int:
+				for (int i = 0; i < recordLength; i++)
+					record[i] = buffer.getInt(i * 4);
+				break;
+			case Float:
+				buffer.asFloatBuffer().get(record, 0, recordLength);
+				break;
+			case Double:
+				for (int i = 0; i < recordLength; i++)
+					record[i] = (float) buffer.getDouble(i * 8);
+				break;
+			}
+		}
+
+		/**
+		 * Reads the next record of a file of labels, that is a file whose records are
+		 * made of a single integer value.
+		 */
+		public int readLabel() throws IOException {
+
+			if (recordLength != 1)
+				throw new IllegalStateException(String.format("Records of length %d are not labels.", recordLength));
+
+			if (!hasNext())
+				throw new EOFException("No more records.");
+
+			stream.readFully(raw);
+			position++;
+
+			switch (type) {
+			case UnsignedByte:
+				return raw[0] & 255;
+			case SignedByte:
+				return raw[0];
+			case Short:
+				return buffer.getShort(0);
+			case Int:
+				return buffer.getInt(0);
+			case Float:
+				return (int) buffer.getFloat(0);
+			default:
+				return (int) buffer.getDouble(0);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Returns the number of records in the file, reading only its header.
+	 *
+	 * @param file IDX file, optionally gzipped
+	 * @throws IOException if the file can't be read
+	 */
+	public static int count(File file) throws IOException {
+		try (Reader reader = new Reader(file)) {
+			return reader.size();
+		}
+	}
+
+	/**
+	 * Reads the records of the data file (and the labels, if any) and adds them
+	 * to the dataset. Unsigned bytes are normalized in the [0, 1] range before
+	 * the transform is applied; other types are left as they are. Records with
+	 * two dimensions keep their rows and columns in the Match object.
+	 *
+	 * @param set         the dataset to fill
+	 * @param dataFile    IDX file containing the data, optionally gzipped
+	 * @param labelFile   IDX file containing the labels, may be null
+	 * @param matches     number of records to read, or a negative number to read
+	 *                    them all
+	 * @param transform   transformation applied to each record, may be null
+	 * @param labelOffset value added to each label (i.e. -1 for 1-based labels)
+	 * @return the dataset passed as argument
+	 * @throws IOException if the files can't be read or don't match
+	 */
+	public static DataSet load(DataSet set, File dataFile, File labelFile, int matches, Transform transform,
+			int labelOffset) throws IOException {
+
+		try (Reader data = new Reader(dataFile); Reader labels = labelFile == null ? null : new Reader(labelFile)) {
+
+			if (labels != null && data.size() != labels.size())
+				throw new IOException(String.format("File %s and file %s contains data for a different number of images.",
+						dataFile.getName(), labelFile.getName()));
+
+			if (matches > data.size())
+				throw new IllegalArgumentException(
+						"The number of matches given exceeds the number of elements in the file.");
+
+			int n = matches < 0 ? data.size() : matches;
+			int[] shape = data.getShape();
+			int rows = shape.length == 2 ? shape[0] : 0;
+			int cols = shape.length == 2 ? shape[1] : 0;
+
+			boolean normalize = data.getType() == Type.UnsignedByte;
+
+			for (int i = 0; i < n; i++) {
+
+				float[] record = new float[data.getRecordLength()];
+				data.read(record);
+
+				if (normalize)
+					for (int d = 0; d < record.length; d++)
+						record[d] /= 255.0f;
+				if (transform != null)
+					transform.apply(record, shape);
+
+				if (labels != null)
+					set.addMatch(new Match(rows, cols, record, labels.readLabel() + labelOffset));
+				else
+					set.addMatch(new Match(rows, cols, record));
+			}
+		}
+
+		return set;
+	}
+}
@@ -0,0 +1,329 @@
+package main.training;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Array stored in the NumPy .npy format. The file starts with the magic string
+ * "\x93NUMPY", two bytes for the version and the length of the header, which
+ * is a python dictionary literal like:
+ *
+ * <pre>
+ * {'descr': '&lt;f4', 'fortran_order': False, 'shape': (60000, 784), }
+ * </pre>
+ *
+ * The header is followed by the raw data. Only C-order (row-major) arrays are
+ * supported. The first dimension is the number of records, the others are the
+ * shape of each record, as for the IDX files.
+ *
+ * https://numpy.org/doc/stable/reference/generated/numpy.lib.format.html
+ */
+final class NpyArray {
+
+	private static final byte[] MAGIC = { (byte) 0x93, 'N', 'U', 'M', 'P', 'Y' };
+
+	private static final int MAX_MAPPED_REGION = 1 << 30;
+
+	private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([<>|=])([a-z])(\\d+)'");
+	private static final Pattern FORTRAN = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+	private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+	/**
+	 * Element types that can be converted to float.
+	 */
+	static enum Type {
+		f4, f8, u1, i1, u2, i2, i4, i8;
+	}
+
+	private final Type type;
+	private final int elementSize;
+	private final int[] shape;
+	private final int recordLength;
+	private final long recordBytes;
+
+	/*
+	 * the data is split in regions made of whole records, each one smaller than
+	 * the maximum size of a single mapping.
+	 */
+	private final ByteBuffer[] regions;
+	private final int recordsPerRegion;
+
+	private NpyArray(Type type, ByteOrder order, int[] shape, FileChannel channel, long offset, ByteBuffer data)
+			throws IOException {
+
+		this.type = type;
+		this.elementSize = Integer.parseInt(type.name().substring(1));
+		this.shape = shape;
+
+		long length = 1;
+		for (int i = 1; i < shape.length; i++)
+			length *= shape[i];
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Records too big.");
+
+		this.recordLength = (int) length;
+		this.recordBytes = length * elementSize;
+
+		int records = shape.length == 0 ? 1 : shape[0];
+		recordsPerRegion = (int) Math.max(1, MAX_MAPPED_REGION / Math.max(1, recordBytes));
+		regions = new ByteBuffer[(records + recordsPerRegion - 1) / recordsPerRegion];
+
+		for (int r = 0; r < regions.length; r++) {
+			long start = r * (long) recordsPerRegion * recordBytes;
+			long bytes = Math.min(recordsPerRegion, records - r * (long) recordsPerRegion) * recordBytes;
+
+			if (channel != null)
+				regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, bytes);
+			else {
+				if (data.remaining() < start + bytes)
+					throw new IOException("Truncated array.");
+				ByteBuffer region = data.duplicate();
+				region.position((int) start).limit((int) (start + bytes));
+				regions[r] = region.slice();
+			}
+			regions[r].order(order);
+		}
+	}
+
+	/**
+	 * Memory-maps a .npy file. The mapping stays valid after the method returns.
+	 */
+	static NpyArray map(File file) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			ByteBuffer preamble = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 1 << 16));
+			Header header = parseHeader(preamble, file.getName());
+
+			if (channel.size() < header.offset + header.dataBytes())
+				throw new IOException(String.format("Truncated file: %s.", file.getName()));
+
+			return new NpyArray(header.type, header.order, header.shape, channel, header.offset, null);
+		}
+	}
+
+	/**
+	 * Reads a .npy array from a stream (i.e. an entry of a .npz archive) in heap
+	 * memory.
+	 */
+	static NpyArray read(InputStream in, long size, String name) throws IOException {
+
+		byte[] bytes;
+		if (size >= 0) {
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(String.format("Array too big: %s.", name));
+			bytes = new byte[(int) size];
+			int read = 0;
+			while (read < bytes.length) {
+				int n = in.read(bytes, read, bytes.length - read);
+				if (n < 0)
+					throw new IOException(String.format("Truncated array: %s.", name));
+				read += n;
+			}
+		} else {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] chunk = new byte[1 << 16];
+			for (int n; (n = in.read(chunk)) > 0;)
+				out.write(chunk, 0, n);
+			bytes = out.toByteArray();
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		Header header = parseHeader(buffer, name);
+
+		buffer.position((int) header.offset);
+		return new NpyArray(header.type, header.order, header.shape, null, 0, buffer.slice());
+	}
+
+	/**
+	 * Returns the number of records of the array read from the stream, reading
+	 * only its header.
+	 */
+	static int size(InputStream in, String name) throws IOException {
+		Header header = parseHeader(ByteBuffer.wrap(in.readNBytes(1 << 16)), name);
+		return header.shape.length == 0 ? 1 : header.shape[0];
+	}
+
+	private static class Header {
+		Type type;
+		ByteOrder order;
+		int[] shape;
+		long offset;
+
+		long dataBytes() {
+			long bytes = Integer.parseInt(type.name().substring(1));
+			for (int dim : shape)
+				bytes *= dim;
+			return bytes;
+		}
+	}
+
+	private static Header parseHeader(ByteBuffer buffer, String name) throws IOException {
+
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		for (int i = 0; i < MAGIC.length; i++)
+			if (buffer.limit() <= i || buffer.get(i) != MAGIC[i])
+				throw new IOException(String.format("Unknown file format for: %s.", name));
+
+		int major = buffer.get(6);
+		long length;
+		int start;
+		if (major == 1) {
+			length = buffer.getShort(8) & 0xFFFF;
+			start = 10;
+		} else if (major == 2 || major == 3) {
+			length = buffer.getInt(8) & 0xFFFFFFFFL;
+			start = 12;
+		} else
+			throw new IOException(String.format("Unsupported .npy version %d for: %s.", major, name));
+
+		if (start + length > buffer.limit())
+			throw new IOException(String.format("Header too long for: %s.", name));
+
+		byte[] text = new byte[(int) length];
+		for (int i = 0; i < text.length; i++)
+			text[i] = buffer.get(start + i);
+		String dict = new String(text, major == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+		Header header = new Header();
+		header.offset = start + length;
+
+		Matcher descr = DESCR.matcher(dict);
+		if (!descr.find())
+			throw new IOException(String.format("Missing descr in: %s.", name));
+		try {
+			header.type = Type.valueOf(descr.group(2) + descr.group(3));
+		} catch (IllegalArgumentException e) {
+			throw new IOException(String.format("Unsupported dtype %s%s in: %s.", descr.group(2), descr.group(3), name));
+		}
+		header.order = descr.group(1).equals(">") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+		Matcher fortran = FORTRAN.matcher(dict);
+		if (fortran.find() && fortran.group(1).equals("True"))
+			throw new IOException(String.format("Fortran-order arrays are not supported: %s.", name));
+
+		Matcher shape = SHAPE.matcher(dict);
+		if (!shape.find())
+			throw new IOException(String.format("Missing shape in: %s.", name));
+
+		String[] dims = shape.group(1).split(",");
+		int n = 0;
+		int[] values = new int[dims.length];
+		for (String dim : dims)
+			if (!dim.trim().isEmpty())
+				values[n++] = Integer.parseInt(dim.trim());
+		header.shape = Arrays.copyOf(values, n);
+
+		return header;
+	}
+
+	Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the number of records, that is the first dimension.
+	 */
+	int size() {
+		return shape.length == 0 ? 1 : shape[0];
+	}
+
+	/**
+	 * Returns the dimensions of each record (all the dimensions but the first).
+	 */
+	int[] getShape() {
+		return Arrays.copyOfRange(shape, Math.min(1, shape.length), shape.length);
+	}
+
+	int getRecordLength() {
+		return recordLength;
+	}
+
+	/**
+	 * Converts the i-th record to float. No normalization is done.
+	 */
+	void read(int record, float[] dst) {
+
+		ByteBuffer region = regions[record / recordsPerRegion];
+		int base = (int) ((record % recordsPerRegion) * recordBytes);
+
+		switch (type) {
+		case f4:
+			ByteBuffer slice = region.duplicate().order(region.order());
+			slice.position(base);
+			slice.asFloatBuffer().get(dst, 0, recordLength);
+			break;
+		case f8:
+			for (int i = 0; i < recordLength; i++)
+				dst[i] = (float) region.getDouble(base + i * 8);
+			break;
+		case u1:
+			for (int i = 0; i < recordLength; i++)
+				dst[i] = region.get(base + i) & 255;
+			break;
+		case i1:
+			for (int i = 0; i < recordLength; i++)
+				dst[i] = region.get(base + i);
+			break;
+		case u2:
+			for (int i = 0; i < recordLength; i++)
+				dst[i] = region.getShort(base + i * 2) & 0xFFFF;
+			break;
+		case i2:
+			for (int i = 0; i < recordLength; i++)
+				dst[i] = region.getShort(base + i * 2);
+			break;
+		case i4:
+			for (int i = 0; i < recordLength; i++)
+				dst[i] = region.getInt(base + i * 4);
+			break;
+		case i8:
+			for (int i = 0; i < recordLength; i++)
+				dst[i] = region.getLong(base + i * 8);
+			break;
+		}
+	}
+
+	/**
+	 * Returns the i-th record of an array of labels, that is an array whose
+	 * records are made of a single integer value.
+	 */
+	int readLabel(int record) {
+
+		if (recordLength != 1)
+			throw new IllegalStateException(String.format("Records of length %d are not labels.", recordLength));
+
+		ByteBuffer region = regions[record / recordsPerRegion];
+		int base = (int) ((record % recordsPerRegion) * recordBytes);
+
+		switch (type) {
+		case u1:
+			return region.get(base) & 255;
+		case i1:
+			return region.get(base);
+		case u2:
+			return region.getShort(base) & 0xFFFF;
+		case i2:
+			return region.getShort(base);
+		case i4:
+			return region.getInt(base);
+		case i8:
+			return (int) region.getLong(base);
+		case f4:
+			return (int) region.getFloat(base);
+		default:
+			return (int) region.getDouble(base);
+		}
+	}
+}
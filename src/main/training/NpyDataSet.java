@@ -0,0 +1,193 @@
+package main.training;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Dataset created from NumPy arrays. The data and the labels can be stored in
+ * two .npy files or in a single .npz archive (as written by numpy.savez or
+ * numpy.savez_compressed), in which case the arrays are looked up by name.
+ *
+ * The .npy files are memory-mapped, so only the records actually put in the
+ * dataset are read from disk; the arrays inside a .npz archive are inflated
+ * in memory. Arrays of unsigned bytes are normalized in the [0, 1] range, as
+ * for the IDX files; arrays of any other type are left as they are. Records
+ * with two dimensions keep their rows and columns in the Match object.
+ */
+public class NpyDataSet extends DataSet {
+
+	public static final String npyExt = "npy";
+	public static final String npzExt = "npz";
+
+	private final String dataName;
+	private final String labelName;
+
+	/**
+	 * Creates a dataset that looks for the arrays named "x" (data) and "y"
+	 * (labels) inside the .npz archives.
+	 */
+	public NpyDataSet() {
+		this("x", "y");
+	}
+
+	/**
+	 * @param dataName  name of the data array inside the .npz archives
+	 * @param labelName name of the label array inside the .npz archives
+	 */
+	public NpyDataSet(String dataName, String labelName) {
+		this.dataName = dataName;
+		this.labelName = labelName;
+	}
+
+	/**
+	 * Creates a dataset from the data and the labels. Each file can either be a
+	 * .npy file or a .npz archive containing the array.
+	 */
+	@Override
+	public DataSet createSet(File dataFile, File labelFile) {
+		return load(dataFile, labelFile, -1);
+	}
+
+	/**
+	 * Creates a dataset from a .npy file, without labels, or from a .npz archive,
+	 * with labels if the archive contains them.
+	 */
+	@Override
+	public DataSet createSet(File dataFile) {
+		return load(dataFile, null, -1);
+	}
+
+	@Override
+	public DataSet createSet(File dataFile, File labelFile, int matches) {
+
+		if (matches < 0)
+			throw new IllegalArgumentException("The number of matches in the dataset must be positive.");
+
+		return load(dataFile, labelFile, matches);
+	}
+
+	@Override
+	public DataSet createSet(File dataFile, int matches) {
+
+		if (matches < 0)
+			throw new IllegalArgumentException("The number of matches in the dataset must be positive.");
+
+		return load(dataFile, null, matches);
+	}
+
+	@Override
+	protected String getCacheTag() {
+		return String.format("%s[dataName=%s, labelName=%s]", getClass().getName(), dataName, labelName);
+	}
+
+	@Override
+	protected DataSet newInstance() {
+		return new NpyDataSet(dataName, labelName);
+	}
+
+	/**
+	 * Reads the number of records from the header of the data array.
+	 */
+	@Override
+	protected int countMatches(File dataFile, File labelFile) throws IOException {
+
+		if (!isArchive(dataFile))
+			try (InputStream in = new FileInputStream(dataFile)) {
+				return NpyArray.size(in, dataFile.getName());
+			}
+
+		try (ZipFile zip = new ZipFile(dataFile)) {
+
+			ZipEntry entry = zip.getEntry(dataName + '.' + npyExt);
+			if (entry == null)
+				throw new IOException(String.format("No array named %s in: %s.", dataName, dataFile.getName()));
+
+			try (InputStream in = zip.getInputStream(entry)) {
+				return NpyArray.size(in, dataFile.getName() + ':' + entry.getName());
+			}
+		}
+	}
+
+	private DataSet load(File dataFile, File labelFile, int matches) {
+
+		DataSet set = newInstance();
+
+		try {
+			NpyArray data = open(dataFile, dataName, true);
+			NpyArray labels;
+			if (labelFile != null)
+				labels = open(labelFile, labelName, true);
+			else if (isArchive(dataFile))
+				labels = open(dataFile, labelName, false);
+			else
+				labels = null;
+
+			if (labels != null && data.size() != labels.size())
+				throw new IOException(
+						String.format("File %s and file %s contains data for a different number of records.",
+								dataFile.getName(), (labelFile != null ? labelFile : dataFile).getName()));
+
+			if (matches > data.size())
+				throw new IllegalArgumentException(
+						"The number of matches given exceeds the number of elements in the file.");
+
+			int n = matches < 0 ? data.size() : matches;
+			int[] shape = data.getShape();
+			int rows = shape.length == 2 ? shape[0] : 0;
+			int cols = shape.length == 2 ? shape[1] : 0;
+			boolean normalize = data.getType() == NpyArray.Type.u1;
+
+			for (int i = 0; i < n; i++) {
+
+				float[] record = new float[data.getRecordLength()];
+				data.read(i, record);
+
+				if (normalize)
+					for (int d = 0; d < record.length; d++)
+						record[d] /= 255.0f;
+
+				if (labels != null)
+					set.addMatch(new Match(rows, cols, record, labels.readLabel(i)));
+				else
+					set.addMatch(new Match(rows, cols, record));
+			}
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		return set;
+	}
+
+	private static boolean isArchive(File file) {
+		return file.getName().toLowerCase().endsWith('.' + npzExt);
+	}
+
+	/*
+	 * Opens the array contained in the file: a .npy file is memory-mapped, a .npz
+	 * archive is searched for an entry with the given name.
+	 */
+	private static NpyArray open(File file, String name, boolean required) throws IOException {
+
+		if (!isArchive(file))
+			return NpyArray.map(file);
+
+		try (ZipFile zip = new ZipFile(file)) {
+
+			ZipEntry entry = zip.getEntry(name + '.' + npyExt);
+			if (entry == null) {
+				if (required)
+					throw new IOException(String.format("No array named %s in: %s.", name, file.getName()));
+				return null;
+			}
+
+			try (InputStream in = zip.getInputStream(entry)) {
+				return NpyArray.read(in, entry.getSize(), file.getName() + ':' + entry.getName());
+			}
+		}
+	}
+}